@@ -0,0 +1,60 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.Filters;
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+import com.nummist.secondsight.matching.FeatureMatcher;
+import com.nummist.secondsight.matching.OpenCVMatcher;
+
+// Creates the app's filters by name, for the command-line tools.
+public final class BenchmarkFilters {
+    
+    public static final String[] NAMES = Filters.NAMES;
+    
+    private BenchmarkFilters() {
+    }
+    
+    public static Filter create(final String name) {
+        return Filters.create(name);
+    }
+    
+    // Creates an image detection filter for a reference image file.
+    public static ImageDetectionFilter createImageDetectionFilter(
+            final String referenceImagePath) {
+        return createImageDetectionFilter(
+                new String[] { referenceImagePath });
+    }
+    
+    // Creates an image detection filter for several reference image
+    // files, which share one descriptor index.
+    public static ImageDetectionFilter createImageDetectionFilter(
+            final String[] referenceImagePaths) {
+        return createImageDetectionFilter(referenceImagePaths,
+                new OpenCVMatcher());
+    }
+    
+    // Creates an image detection filter for several reference image
+    // files, with the given matcher.
+    public static ImageDetectionFilter createImageDetectionFilter(
+            final String[] referenceImagePaths,
+            final FeatureMatcher matcher) {
+        final Mat[] referenceImages =
+                new Mat[referenceImagePaths.length];
+        for (int i = 0; i < referenceImagePaths.length; i++) {
+            referenceImages[i] = Highgui.imread(
+                    referenceImagePaths[i],
+                    Highgui.CV_LOAD_IMAGE_COLOR);
+            if (referenceImages[i].empty()) {
+                throw new IllegalArgumentException(
+                        "Failed to load reference image: " +
+                                referenceImagePaths[i]);
+            }
+        }
+        return new ImageDetectionFilter(referenceImages,
+                new CameraProjectionAdapter(), matcher);
+    }
+}
@@ -0,0 +1,78 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import com.nummist.secondsight.filters.Filter;
+
+// Helpers for running filters on a desktop JVM, outside of Android.
+// The benchmarks need the desktop OpenCV jar and its native library
+// (for example, -Djava.library.path=/usr/local/share/OpenCV/java)
+// along with the app's classes and libs/commons-math3-3.2.jar.
+public final class BenchmarkUtils {
+    
+    public static final int DEFAULT_WARMUP_FRAMES = 30;
+    public static final int DEFAULT_MEASURED_FRAMES = 200;
+    
+    private BenchmarkUtils() {
+    }
+    
+    public static void loadOpenCV() {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+    
+    // Creates an RGBA frame of random noise with opaque alpha, like
+    // the frames that the camera delivers.
+    public static Mat newRandomFrame(final int width, final int height) {
+        final Mat frame = new Mat(height, width, CvType.CV_8UC4);
+        Core.randu(frame, 0.0, 256.0);
+        final Mat alpha = new Mat(height, width, CvType.CV_8UC1,
+                new Scalar(255.0));
+        Core.insertChannel(alpha, frame, 3);
+        alpha.release();
+        return frame;
+    }
+    
+    // Returns the mean time in milliseconds that the filters take to
+    // process one frame, applied in sequence like in CameraActivity.
+    // Each measured frame starts from a fresh copy of the source so
+    // that in-place filters do not converge on a degenerate image.
+    public static double millisPerFrame(final Filter[] filters,
+            final Mat src, final int warmupFrames,
+            final int measuredFrames) {
+        final Mat frame = new Mat();
+        for (int i = 0; i < warmupFrames; i++) {
+            src.copyTo(frame);
+            applyAll(filters, frame);
+        }
+        
+        long elapsedNanos = 0L;
+        for (int i = 0; i < measuredFrames; i++) {
+            src.copyTo(frame);
+            final long startNanos = System.nanoTime();
+            applyAll(filters, frame);
+            elapsedNanos += System.nanoTime() - startNanos;
+        }
+        frame.release();
+        return elapsedNanos / 1e6 / measuredFrames;
+    }
+    
+    // Returns the maximum absolute difference between two images.
+    public static double maxDifference(final Mat a, final Mat b) {
+        final Mat difference = new Mat();
+        Core.absdiff(a, b, difference);
+        final double max = Core.minMaxLoc(
+                difference.reshape(1)).maxVal;
+        difference.release();
+        return max;
+    }
+    
+    private static void applyAll(final Filter[] filters,
+            final Mat frame) {
+        for (final Filter filter : filters) {
+            filter.apply(frame, frame);
+        }
+    }
+}
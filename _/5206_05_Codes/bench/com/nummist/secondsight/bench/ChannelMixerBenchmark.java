@@ -0,0 +1,117 @@
+package com.nummist.secondsight.bench;
+
+import java.util.ArrayList;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.mixer.RecolorCMVFilter;
+import com.nummist.secondsight.filters.mixer.RecolorRCFilter;
+import com.nummist.secondsight.filters.mixer.RecolorRGVFilter;
+
+// Compares the recolor filters, as configurations of
+// ChannelMixerFilter, against the split/merge implementations that
+// they replaced, which copied the frame into four planes and back.
+// Prints the milliseconds per frame of each, the time saved, and the
+// maximum per-channel difference between their outputs.
+public final class ChannelMixerBenchmark {
+    
+    private static final int[][] RESOLUTIONS = {
+            { 640, 480 },
+            { 1280, 720 },
+            { 1920, 1080 }
+    };
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        final Filter[] mixers = {
+                new RecolorRCFilter(),
+                new RecolorRGVFilter(),
+                new RecolorCMVFilter()
+        };
+        final Filter[] splitMergeMixers = {
+                new SplitMergeRCFilter(),
+                new SplitMergeRGVFilter(),
+                new SplitMergeCMVFilter()
+        };
+        
+        System.out.println("resolution\tmixer\tsplit_merge_ms" +
+                "\tmixer_ms\tsaved_ms\tmax_diff");
+        for (final int[] resolution : RESOLUTIONS) {
+            final Mat src = BenchmarkUtils.newRandomFrame(
+                    resolution[0], resolution[1]);
+            for (int i = 0; i < mixers.length; i++) {
+                final double splitMergeMillis = millisPerFrame(
+                        splitMergeMixers[i], src);
+                final double mixerMillis = millisPerFrame(mixers[i],
+                        src);
+                
+                final Mat splitMergeDst = new Mat();
+                final Mat mixerDst = new Mat();
+                splitMergeMixers[i].apply(src, splitMergeDst);
+                mixers[i].apply(src, mixerDst);
+                
+                System.out.println(String.format(
+                        "%dx%d\t%s\t%.3f\t%.3f\t%.3f\t%.0f",
+                        resolution[0], resolution[1],
+                        mixers[i].getClass().getSimpleName(),
+                        splitMergeMillis, mixerMillis,
+                        splitMergeMillis - mixerMillis,
+                        BenchmarkUtils.maxDifference(splitMergeDst,
+                                mixerDst)));
+                splitMergeDst.release();
+                mixerDst.release();
+            }
+            src.release();
+        }
+    }
+    
+    private static double millisPerFrame(final Filter filter,
+            final Mat src) {
+        return BenchmarkUtils.millisPerFrame(new Filter[] { filter },
+                src, BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+    }
+    
+    private static final class SplitMergeRCFilter implements Filter {
+        private final ArrayList<Mat> mChannels = new ArrayList<Mat>(4);
+        
+        @Override
+        public void apply(final Mat src, final Mat dst) {
+            Core.split(src, mChannels);
+            final Mat g = mChannels.get(1);
+            final Mat b = mChannels.get(2);
+            Core.addWeighted(g, 0.5, b, 0.5, 0.0, g);
+            mChannels.set(2, g);
+            Core.merge(mChannels, dst);
+        }
+    }
+    
+    private static final class SplitMergeRGVFilter implements Filter {
+        private final ArrayList<Mat> mChannels = new ArrayList<Mat>(4);
+        
+        @Override
+        public void apply(final Mat src, final Mat dst) {
+            Core.split(src, mChannels);
+            final Mat b = mChannels.get(2);
+            Core.min(b, mChannels.get(0), b);
+            Core.min(b, mChannels.get(1), b);
+            Core.merge(mChannels, dst);
+        }
+    }
+    
+    private static final class SplitMergeCMVFilter implements Filter {
+        private final ArrayList<Mat> mChannels = new ArrayList<Mat>(4);
+        
+        @Override
+        public void apply(final Mat src, final Mat dst) {
+            Core.split(src, mChannels);
+            final Mat b = mChannels.get(2);
+            Core.max(b, mChannels.get(0), b);
+            Core.max(b, mChannels.get(1), b);
+            Core.merge(mChannels, dst);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.Filters;
+import com.nummist.secondsight.filters.FusedColorFilter;
+import com.nummist.secondsight.filters.PixelFilter;
+import com.nummist.secondsight.filters.lut.ColorLUT;
+import com.nummist.secondsight.filters.lut.ColorLUTFilter;
+
+// Bakes a sequence of per-pixel filters into 17^3, 33^3 and 65^3
+// ColorLUTs. For each size, prints the time to bake it, its accuracy
+// against the unbaked filters over all 2^24 colors, and the
+// milliseconds per 1280x720 frame of the table, of the filters one
+// after another, and of the filters fused into one pass.
+//
+// Usage: ColorLUTBenchmark [filter names...]
+// The default is "portra recolor_cmv".
+public final class ColorLUTBenchmark {
+    
+    private static final int[] SIZES = {
+            ColorLUT.SIZE_17, ColorLUT.SIZE_33, ColorLUT.SIZE_65
+    };
+    
+    public static void main(final String[] args) {
+        final String[] names = (args.length > 0) ?
+                args : new String[] { "portra", "recolor_cmv" };
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final PixelFilter[] filters = new PixelFilter[names.length];
+        for (int i = 0; i < names.length; i++) {
+            filters[i] = (PixelFilter)Filters.create(names[i]);
+        }
+        
+        final Mat src = BenchmarkUtils.newRandomFrame(1280, 720);
+        final double sequentialMillis = BenchmarkUtils.millisPerFrame(
+                filters, src, BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+        final double fusedMillis = BenchmarkUtils.millisPerFrame(
+                new Filter[] { new FusedColorFilter(filters, null) },
+                src, BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+        
+        System.out.println("size\tbake_ms\tmax_error\tmean_error" +
+                "\tlut_ms\tsequential_ms\tfused_ms");
+        for (final int size : SIZES) {
+            final long startNanos = System.nanoTime();
+            final ColorLUT lut = ColorLUT.bake(filters, size);
+            final double bakeMillis =
+                    (System.nanoTime() - startNanos) / 1000000.0;
+            
+            final ColorLUT.Accuracy accuracy =
+                    lut.measureAccuracy(filters, 1);
+            final double lutMillis = BenchmarkUtils.millisPerFrame(
+                    new Filter[] { new ColorLUTFilter(lut) }, src,
+                    BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                    BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+            
+            System.out.println(String.format(
+                    "%d\t%.1f\t%d\t%.3f\t%.3f\t%.3f\t%.3f",
+                    size, bakeMillis, accuracy.maxError,
+                    accuracy.meanError, lutMillis, sequentialMillis,
+                    fusedMillis));
+        }
+        src.release();
+    }
+}
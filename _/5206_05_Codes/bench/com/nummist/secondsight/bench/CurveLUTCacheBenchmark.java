@@ -0,0 +1,76 @@
+package com.nummist.secondsight.bench;
+
+import java.io.File;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.Filters;
+import com.nummist.secondsight.filters.curve.CurveLUTCache;
+
+// Measures the time to create each curve filter when its table is
+// compiled from the spline, loaded from a cache file (as after a
+// restart), and found in memory (as on resume), and checks that the
+// three tables give identical output.
+public final class CurveLUTCacheBenchmark {
+    
+    private static final String[] CURVE_FILTER_NAMES = {
+            "portra", "provia", "velvia", "cross_process"
+    };
+    
+    private static final int NUM_REPEATS = 20;
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        final File directory = new File(System.getProperty(
+                "java.io.tmpdir"), "curve_lut_cache_benchmark");
+        directory.mkdirs();
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        CurveLUTCache.setDirectory(directory);
+        
+        final Mat src = BenchmarkUtils.newRandomFrame(640, 480);
+        System.out.println("filter\tcompile_ms\tfile_ms\tmemory_ms" +
+                "\tmax_diff");
+        for (final String name : CURVE_FILTER_NAMES) {
+            CurveLUTCache.clearMemory();
+            long startNanos = System.nanoTime();
+            final Filter compiled = Filters.create(name);
+            final double compileMillis =
+                    (System.nanoTime() - startNanos) / 1000000.0;
+            
+            double fileMillis = 0.0;
+            Filter loaded = null;
+            for (int i = 0; i < NUM_REPEATS; i++) {
+                CurveLUTCache.clearMemory();
+                startNanos = System.nanoTime();
+                loaded = Filters.create(name);
+                fileMillis += (System.nanoTime() - startNanos) /
+                        1000000.0;
+            }
+            fileMillis /= NUM_REPEATS;
+            
+            startNanos = System.nanoTime();
+            for (int i = 0; i < NUM_REPEATS; i++) {
+                Filters.create(name);
+            }
+            final double memoryMillis = (System.nanoTime() -
+                    startNanos) / 1000000.0 / NUM_REPEATS;
+            
+            final Mat compiledDst = new Mat();
+            final Mat loadedDst = new Mat();
+            compiled.apply(src, compiledDst);
+            loaded.apply(src, loadedDst);
+            
+            System.out.println(String.format("%s\t%.3f\t%.3f\t%.3f\t%.0f",
+                    name, compileMillis, fileMillis, memoryMillis,
+                    BenchmarkUtils.maxDifference(compiledDst,
+                            loadedDst)));
+            compiledDst.release();
+            loadedDst.release();
+        }
+        src.release();
+    }
+}
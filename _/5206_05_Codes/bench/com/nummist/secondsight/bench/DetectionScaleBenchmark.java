@@ -0,0 +1,193 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+
+// Renders a reference image into 1280x720 frames at known poses, and
+// prints the ms per detection and the pose error at each detection
+// scale. The translation error is relative to the distance to the
+// target, and the rotation error is the angle between the estimated
+// and the true orientations.
+//
+// Usage: DetectionScaleBenchmark [reference image]
+public final class DetectionScaleBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final double[] SCALES = { 1.0, 0.5, 0.25 };
+    
+    // The true rotation vectors. The target is centered in the frame,
+    // where it covers TARGET_WIDTH_FRACTION of the frame's width.
+    private static final double[][] RVECS = {
+            { 0.0, 0.0, 0.0 },
+            { 0.35, 0.0, 0.0 },
+            { 0.0, 0.35, 0.1 },
+            { -0.25, 0.25, -0.2 }
+    };
+    private static final double TARGET_WIDTH_FRACTION = 0.6;
+    
+    private static final int WARMUP_FRAMES = 5;
+    private static final int MEASURED_FRAMES = 20;
+    
+    private static final String DEFAULT_REFERENCE_IMAGE_PATH =
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg";
+    
+    public static void main(final String[] args) {
+        final String referenceImagePath = (args.length > 0) ?
+                args[0] : DEFAULT_REFERENCE_IMAGE_PATH;
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final Mat reference = Highgui.imread(referenceImagePath,
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        if (reference.empty()) {
+            throw new IllegalArgumentException(
+                    "Failed to load reference image: " +
+                            referenceImagePath);
+        }
+        Imgproc.cvtColor(reference, reference, Imgproc.COLOR_BGR2RGBA);
+        
+        final CameraProjectionAdapter cameraProjectionAdapter =
+                new CameraProjectionAdapter();
+        cameraProjectionAdapter.setImageSize(WIDTH, HEIGHT);
+        final MatOfDouble projection =
+                cameraProjectionAdapter.getProjectionCV();
+        
+        final Mat[] scenes = new Mat[RVECS.length];
+        final double[][] tVecs = new double[RVECS.length][];
+        for (int i = 0; i < RVECS.length; i++) {
+            tVecs[i] = getTVec(reference, projection);
+            scenes[i] = renderScene(reference, projection, RVECS[i],
+                    tVecs[i]);
+        }
+        
+        for (final double scale : SCALES) {
+            final ImageDetectionFilter filter =
+                    BenchmarkFilters.createImageDetectionFilter(
+                            referenceImagePath);
+            filter.setDetectionScale(scale);
+            
+            long totalNanos = 0L;
+            double totalTranslationError = 0.0;
+            double totalRotationErrorDegrees = 0.0;
+            int numFound = 0;
+            for (int i = 0; i < scenes.length; i++) {
+                for (int j = 0; j < WARMUP_FRAMES; j++) {
+                    filter.detect(scenes[i]);
+                }
+                final long startNanos = System.nanoTime();
+                for (int j = 0; j < MEASURED_FRAMES; j++) {
+                    filter.detect(scenes[i]);
+                }
+                totalNanos += System.nanoTime() - startNanos;
+                
+                final float[] glPose = filter.getGLPose();
+                if (glPose != null) {
+                    numFound++;
+                    totalTranslationError +=
+                            getTranslationError(glPose, tVecs[i]);
+                    totalRotationErrorDegrees +=
+                            getRotationErrorDegrees(glPose, RVECS[i]);
+                }
+            }
+            
+            System.out.println(String.format(
+                    "scale %.2f: %.2f ms per detection, found %d/%d, " +
+                            "mean translation error %.2f%%, " +
+                            "mean rotation error %.2f degrees",
+                    scale, totalNanos / 1e6 /
+                            (scenes.length * MEASURED_FRAMES),
+                    numFound, scenes.length,
+                    numFound == 0 ? Double.NaN :
+                            100.0 * totalTranslationError / numFound,
+                    numFound == 0 ? Double.NaN :
+                            totalRotationErrorDegrees / numFound));
+        }
+    }
+    
+    // Returns a translation that centers the target in the frame at a
+    // distance where it covers TARGET_WIDTH_FRACTION of the width.
+    static double[] getTVec(final Mat reference,
+            final MatOfDouble projection) {
+        final double focalLengthPx = projection.get(0, 0)[0];
+        final double distance = focalLengthPx * reference.cols() /
+                (TARGET_WIDTH_FRACTION * WIDTH);
+        return new double[] {
+                -0.5 * reference.cols(), -0.5 * reference.rows(),
+                distance
+        };
+    }
+    
+    // Renders the reference image at a pose, on a gray background.
+    static Mat renderScene(final Mat reference,
+            final MatOfDouble projection, final double[] rVec,
+            final double[] tVec) {
+        final double w = reference.cols();
+        final double h = reference.rows();
+        final MatOfPoint3f corners3D = new MatOfPoint3f(
+                new Point3(0.0, 0.0, 0.0), new Point3(w, 0.0, 0.0),
+                new Point3(w, h, 0.0), new Point3(0.0, h, 0.0));
+        final MatOfPoint2f corners = new MatOfPoint2f(
+                new Point(0.0, 0.0), new Point(w, 0.0),
+                new Point(w, h), new Point(0.0, h));
+        final MatOfPoint2f projectedCorners = new MatOfPoint2f();
+        Calib3d.projectPoints(corners3D, new MatOfDouble(rVec),
+                new MatOfDouble(tVec), projection,
+                new MatOfDouble(0.0, 0.0, 0.0, 0.0), projectedCorners);
+        
+        final Mat homography = Imgproc.getPerspectiveTransform(
+                corners, projectedCorners);
+        final Mat scene = new Mat();
+        Imgproc.warpPerspective(reference, scene, homography,
+                new Size(WIDTH, HEIGHT), Imgproc.INTER_LINEAR,
+                Imgproc.BORDER_CONSTANT,
+                new Scalar(128.0, 128.0, 128.0, 255.0));
+        return scene;
+    }
+    
+    // The GL pose negates the y and z of OpenCV's translation.
+    static double getTranslationError(final float[] glPose,
+            final double[] tVec) {
+        final double dx = glPose[12] - tVec[0];
+        final double dy = -glPose[13] - tVec[1];
+        final double dz = -glPose[14] - tVec[2];
+        final double distance = Math.sqrt(tVec[0] * tVec[0] +
+                tVec[1] * tVec[1] + tVec[2] * tVec[2]);
+        return Math.sqrt(dx * dx + dy * dy + dz * dz) / distance;
+    }
+    
+    // The GL pose's rotation is column-major, and its rotation vector
+    // has the y and z of OpenCV's negated.
+    static double getRotationErrorDegrees(final float[] glPose,
+            final double[] rVec) {
+        final Mat expected = new Mat();
+        Calib3d.Rodrigues(new MatOfDouble(rVec[0], -rVec[1], -rVec[2]),
+                expected);
+        final double[] expectedArray = new double[9];
+        expected.get(0, 0, expectedArray);
+        
+        // trace(expected^T * actual)
+        double trace = 0.0;
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                trace += expectedArray[3 * r + c] * glPose[4 * c + r];
+            }
+        }
+        final double cosAngle = Math.max(-1.0,
+                Math.min(1.0, 0.5 * (trace - 1.0)));
+        return Math.toDegrees(Math.acos(cosAngle));
+    }
+}
@@ -0,0 +1,230 @@
+package com.nummist.secondsight.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.filters.Filter;
+
+// Measures every filter at 640x480, 1280x720 and 1920x1080, both in
+// place (src == dst) and out of place. Like JMH, each case runs warmup
+// iterations and then measurement iterations, and reports the mean
+// and standard deviation across the measurement iterations, along
+// with the Java heap bytes allocated per frame.
+//
+// The results are tab-separated, so the output of one revision can be
+// saved and passed back with --baseline to print the change against
+// it.
+//
+// Usage: FilterBenchmarks [--baseline <file>] [--reference <image>]
+//            [--iterations <n>] [--frames <n>] [filter names...]
+public final class FilterBenchmarks {
+    
+    private static final int[][] RESOLUTIONS = {
+            { 640, 480 },
+            { 1280, 720 },
+            { 1920, 1080 }
+    };
+    
+    private static final String IMAGE_DETECTION = "image_detection";
+    private static final String DEFAULT_REFERENCE_IMAGE_PATH =
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg";
+    
+    private static final int WARMUP_ITERATIONS = 3;
+    
+    private static int sMeasuredIterations = 5;
+    private static int sFramesPerIteration = 20;
+    
+    public static void main(final String[] args) throws IOException {
+        String baselinePath = null;
+        String referenceImagePath = DEFAULT_REFERENCE_IMAGE_PATH;
+        final List<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--baseline")) {
+                baselinePath = args[++i];
+            } else if (args[i].equals("--reference")) {
+                referenceImagePath = args[++i];
+            } else if (args[i].equals("--iterations")) {
+                sMeasuredIterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--frames")) {
+                sFramesPerIteration = Integer.parseInt(args[++i]);
+            } else {
+                names.add(args[i]);
+            }
+        }
+        if (names.isEmpty()) {
+            for (final String name : BenchmarkFilters.NAMES) {
+                names.add(name);
+            }
+            names.add(IMAGE_DETECTION);
+        }
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final Map<String, Double> baseline = (baselinePath == null) ?
+                null : readBaseline(baselinePath);
+        
+        System.out.println("benchmark\tresolution\tmode\tns_per_frame" +
+                "\terror_ns\tbytes_per_frame" +
+                (baseline == null ? "" : "\tchange"));
+        for (final String name : names) {
+            for (final int[] resolution : RESOLUTIONS) {
+                final Mat src;
+                final Filter filter;
+                if (name.equals(IMAGE_DETECTION)) {
+                    src = newSceneFrame(referenceImagePath,
+                            resolution[0], resolution[1]);
+                    filter = BenchmarkFilters.createImageDetectionFilter(
+                            referenceImagePath);
+                } else {
+                    src = BenchmarkUtils.newRandomFrame(resolution[0],
+                            resolution[1]);
+                    filter = BenchmarkFilters.create(name);
+                }
+                for (final boolean inPlace : new boolean[] {
+                        true, false }) {
+                    final Result result = measure(filter, src, inPlace);
+                    final String key = name + "\t" + resolution[0] +
+                            "x" + resolution[1] + "\t" +
+                            (inPlace ? "in_place" : "out_of_place");
+                    final StringBuilder line = new StringBuilder(key);
+                    line.append(String.format("\t%.0f\t%.0f\t%.0f",
+                            result.nanosPerFrame, result.errorNanos,
+                            result.bytesPerFrame));
+                    if (baseline != null) {
+                        final Double baselineNanos = baseline.get(key);
+                        if (baselineNanos == null) {
+                            line.append("\tnew");
+                        } else {
+                            line.append(String.format("\t%+.1f%%",
+                                    100.0 * (result.nanosPerFrame /
+                                            baselineNanos - 1.0)));
+                        }
+                    }
+                    System.out.println(line);
+                }
+                src.release();
+            }
+        }
+    }
+    
+    private static final class Result {
+        double nanosPerFrame;
+        double errorNanos;
+        double bytesPerFrame;
+    }
+    
+    private static Result measure(final Filter filter, final Mat src,
+            final boolean inPlace) {
+        final Mat frame = new Mat();
+        final Mat dst = new Mat();
+        final ThreadMXBean threadBean =
+                ManagementFactory.getThreadMXBean();
+        final long threadID = Thread.currentThread().getId();
+        
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(filter, src, frame, dst, inPlace);
+        }
+        
+        final double[] iterationNanos = new double[sMeasuredIterations];
+        final long startBytes = allocatedBytes(threadBean, threadID);
+        for (int i = 0; i < sMeasuredIterations; i++) {
+            iterationNanos[i] = runIteration(filter, src, frame, dst,
+                    inPlace) / (double)sFramesPerIteration;
+        }
+        final long endBytes = allocatedBytes(threadBean, threadID);
+        
+        final Result result = new Result();
+        for (final double nanos : iterationNanos) {
+            result.nanosPerFrame += nanos;
+        }
+        result.nanosPerFrame /= sMeasuredIterations;
+        for (final double nanos : iterationNanos) {
+            result.errorNanos += (nanos - result.nanosPerFrame) *
+                    (nanos - result.nanosPerFrame);
+        }
+        result.errorNanos = Math.sqrt(result.errorNanos /
+                Math.max(1, sMeasuredIterations - 1));
+        result.bytesPerFrame = (startBytes < 0L) ? -1.0 :
+                (endBytes - startBytes) /
+                        (double)(sMeasuredIterations * sFramesPerIteration);
+        
+        frame.release();
+        dst.release();
+        return result;
+    }
+    
+    // Returns the total nanoseconds that the filter spent on a batch
+    // of frames. Each frame starts from a fresh copy of the source,
+    // which is not timed.
+    private static long runIteration(final Filter filter, final Mat src,
+            final Mat frame, final Mat dst, final boolean inPlace) {
+        long nanos = 0L;
+        for (int i = 0; i < sFramesPerIteration; i++) {
+            src.copyTo(frame);
+            final long startNanos = System.nanoTime();
+            filter.apply(frame, inPlace ? frame : dst);
+            nanos += System.nanoTime() - startNanos;
+        }
+        return nanos;
+    }
+    
+    // Returns the bytes that a thread has allocated on the Java heap,
+    // or -1 if the JVM does not track them.
+    static long allocatedBytes(final ThreadMXBean threadBean,
+            final long threadID) {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean)
+                    .getThreadAllocatedBytes(threadID);
+        }
+        return -1L;
+    }
+    
+    // Creates a frame that shows the reference image, so that the
+    // image detection filter finds and matches real keypoints.
+    private static Mat newSceneFrame(final String referenceImagePath,
+            final int width, final int height) {
+        final Mat bgr = Highgui.imread(referenceImagePath,
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        final Mat rgba = new Mat();
+        Imgproc.resize(bgr, bgr, new Size(width, height));
+        Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+        bgr.release();
+        return rgba;
+    }
+    
+    // Reads the ns/frame column of a previous run, keyed by the
+    // benchmark, resolution and mode columns.
+    private static Map<String, Double> readBaseline(final String path)
+            throws IOException {
+        final Map<String, Double> baseline =
+                new HashMap<String, Double>();
+        final BufferedReader reader =
+                new BufferedReader(new FileReader(path));
+        try {
+            String line = reader.readLine(); // header
+            while ((line = reader.readLine()) != null) {
+                final String[] columns = line.split("\t");
+                if (columns.length < 4) {
+                    continue;
+                }
+                baseline.put(columns[0] + "\t" + columns[1] + "\t" +
+                        columns[2], Double.valueOf(columns[3]));
+            }
+        } finally {
+            reader.close();
+        }
+        return baseline;
+    }
+}
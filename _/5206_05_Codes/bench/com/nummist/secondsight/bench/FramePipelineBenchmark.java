@@ -0,0 +1,62 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.ar.NoneARFilter;
+import com.nummist.secondsight.filters.curve.PortraCurveFilter;
+import com.nummist.secondsight.pipeline.FramePipeline;
+import com.nummist.secondsight.stats.FrameStats;
+
+// Feeds 30 fps of 1280x720 frames to a FramePipeline whose detection
+// takes 80 ms, and prints the rate at which filtered frames come out
+// along with each ring's depth and drop counts and each stage's
+// latencies.
+public final class FramePipelineBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final long FRAME_INTERVAL_MILLIS = 33L;
+    private static final long DETECTION_MILLIS = 80L;
+    private static final int NUM_FRAMES = 300;
+    
+    public static void main(final String[] args)
+            throws InterruptedException {
+        BenchmarkUtils.loadOpenCV();
+        
+        final FramePipeline framePipeline =
+                new FramePipeline(WIDTH, HEIGHT);
+        framePipeline.setARFilter(new NoneARFilter() {
+            @Override
+            public void detect(final Mat src) {
+                try {
+                    Thread.sleep(DETECTION_MILLIS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        framePipeline.setColorFilter(new PortraCurveFilter(),
+                FrameStats.STAGE_CURVE);
+        framePipeline.start();
+        
+        final Mat rgba = BenchmarkUtils.newRandomFrame(WIDTH, HEIGHT);
+        int numDisplayedFrames = 0;
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            if (framePipeline.submit(rgba) != null) {
+                numDisplayedFrames++;
+            }
+            Thread.sleep(FRAME_INTERVAL_MILLIS);
+        }
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        
+        System.out.println(String.format(
+                "camera %.1f fps, display %.1f fps",
+                NUM_FRAMES / seconds, numDisplayedFrames / seconds));
+        System.out.println(framePipeline);
+        System.out.println(framePipeline.getStats());
+        
+        framePipeline.stop();
+        rgba.release();
+    }
+}
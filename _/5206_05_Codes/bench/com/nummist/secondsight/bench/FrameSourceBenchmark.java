@@ -0,0 +1,118 @@
+package com.nummist.secondsight.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.bench.sources.VideoFrameSource;
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.FilterChain;
+import com.nummist.secondsight.sources.FrameSource;
+import com.nummist.secondsight.sources.ImageSequenceFrameSource;
+import com.nummist.secondsight.sources.PacedFrameSource;
+
+// Replays recorded frames through a chain of filters and prints the
+// throughput and per-frame processing times, excluding decoding.
+//
+// Usage: FrameSourceBenchmark [options] <image directory or video>
+//            [filter names...]
+// Options:
+//   --fps <n>             frame rate of an image directory (30)
+//   --paced               deliver frames at their timestamps
+//   --reference <image>   detect this reference image first
+public final class FrameSourceBenchmark {
+    
+    public static void main(final String[] args) throws IOException {
+        double framesPerSecond = 30.0;
+        boolean isPaced = false;
+        String referenceImagePath = null;
+        String path = null;
+        final List<String> filterNames = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--fps")) {
+                framesPerSecond = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--paced")) {
+                isPaced = true;
+            } else if (args[i].equals("--reference")) {
+                referenceImagePath = args[++i];
+            } else if (path == null) {
+                path = args[i];
+            } else {
+                filterNames.add(args[i]);
+            }
+        }
+        if (path == null) {
+            System.err.println("Usage: FrameSourceBenchmark [--fps n] " +
+                    "[--paced] [--reference image] " +
+                    "<image directory or video> [filters...]");
+            System.err.println("Filters: " +
+                    join(BenchmarkFilters.NAMES));
+            System.exit(1);
+        }
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final List<Filter> filters = new ArrayList<Filter>();
+        if (referenceImagePath != null) {
+            filters.add(BenchmarkFilters.createImageDetectionFilter(
+                    referenceImagePath));
+        }
+        for (final String name : filterNames) {
+            filters.add(BenchmarkFilters.create(name));
+        }
+        final FilterChain filterChain = new FilterChain(
+                filters.toArray(new Filter[filters.size()]));
+        
+        FrameSource source;
+        final File file = new File(path);
+        if (file.isDirectory()) {
+            source = new ImageSequenceFrameSource(file, framesPerSecond);
+        } else {
+            source = new VideoFrameSource(path);
+        }
+        if (isPaced) {
+            source = new PacedFrameSource(source);
+        }
+        
+        final Mat rgba = new Mat();
+        int numFrames = 0;
+        long totalNanos = 0L;
+        long maxNanos = 0L;
+        final long startNanos = System.nanoTime();
+        while (source.read(rgba)) {
+            final long frameStartNanos = System.nanoTime();
+            filterChain.apply(rgba, rgba);
+            final long frameNanos = System.nanoTime() - frameStartNanos;
+            totalNanos += frameNanos;
+            maxNanos = Math.max(maxNanos, frameNanos);
+            numFrames++;
+        }
+        final long wallNanos = System.nanoTime() - startNanos;
+        source.close();
+        rgba.release();
+        
+        if (numFrames == 0) {
+            System.err.println("No frames were read from " + path);
+            System.exit(1);
+        }
+        System.out.println(String.format(
+                "%d frames, %.1f fps overall, %.3f ms mean, " +
+                        "%.3f ms max processing per frame",
+                numFrames, numFrames / (wallNanos / 1e9),
+                totalNanos / 1e6 / numFrames, maxNanos / 1e6));
+    }
+    
+    private static String join(final String[] strings) {
+        final StringBuilder builder = new StringBuilder();
+        for (final String string : strings) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+}
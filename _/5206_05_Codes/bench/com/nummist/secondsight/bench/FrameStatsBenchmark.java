@@ -0,0 +1,42 @@
+package com.nummist.secondsight.bench;
+
+import com.nummist.secondsight.stats.FrameStats;
+
+// Measures the cost of timing one stage, which is a System.nanoTime()
+// call and a histogram update, and compares the cost of timing every
+// stage of a frame to a 30 fps frame interval.
+public final class FrameStatsBenchmark {
+    
+    private static final int NUM_WARMUP_RECORDS = 1000000;
+    private static final int NUM_MEASURED_RECORDS = 10000000;
+    
+    // The number of stages that are timed per frame.
+    private static final int STAGES_PER_FRAME = 5;
+    
+    public static void main(final String[] args) {
+        final FrameStats stats = new FrameStats();
+        record(stats, NUM_WARMUP_RECORDS);
+        
+        final long startNanos = System.nanoTime();
+        record(stats, NUM_MEASURED_RECORDS);
+        final double nanosPerRecord =
+                (System.nanoTime() - startNanos) /
+                        (double)NUM_MEASURED_RECORDS;
+        
+        System.out.println(String.format(
+                "%.1f ns per stage, %.4f%% of a 30 fps frame " +
+                        "for %d stages",
+                nanosPerRecord, 100.0 * nanosPerRecord *
+                        STAGES_PER_FRAME /
+                        FrameStats.DEFAULT_FRAME_BUDGET_NANOS,
+                STAGES_PER_FRAME));
+    }
+    
+    private static void record(final FrameStats stats,
+            final int numRecords) {
+        for (int i = 0; i < numRecords; i++) {
+            final long startNanos = System.nanoTime();
+            stats.recordSince(FrameStats.STAGE_CURVE, startNanos);
+        }
+    }
+}
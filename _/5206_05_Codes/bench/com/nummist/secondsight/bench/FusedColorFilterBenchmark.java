@@ -0,0 +1,82 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.FusedColorFilter;
+import com.nummist.secondsight.filters.PixelFilter;
+import com.nummist.secondsight.filters.convolution.StrokeEdgesFilter;
+import com.nummist.secondsight.filters.curve.PortraCurveFilter;
+import com.nummist.secondsight.filters.mixer.RecolorCMVFilter;
+import com.nummist.secondsight.filters.mixer.RecolorRCFilter;
+import com.nummist.secondsight.filters.mixer.RecolorRGVFilter;
+
+// Compares the chain of curve, mixer, and stroke edges filters, as
+// CameraActivity used to apply them, against FusedColorFilter.
+// Prints the milliseconds per frame of each, the time saved, and the
+// maximum per-channel difference between their outputs.
+public final class FusedColorFilterBenchmark {
+    
+    private static final int[][] RESOLUTIONS = {
+            { 640, 480 },
+            { 1280, 720 },
+            { 1920, 1080 }
+    };
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        final PixelFilter curveFilter = new PortraCurveFilter();
+        final PixelFilter[] mixerFilters = {
+                new RecolorRCFilter(),
+                new RecolorRGVFilter(),
+                new RecolorCMVFilter()
+        };
+        final StrokeEdgesFilter strokeEdgesFilter =
+                new StrokeEdgesFilter();
+        
+        System.out.println(
+                "resolution\tmixer\tchain_ms\tfused_ms\tsaved_ms\tmax_diff");
+        for (final int[] resolution : RESOLUTIONS) {
+            final Mat src = BenchmarkUtils.newRandomFrame(
+                    resolution[0], resolution[1]);
+            for (final PixelFilter mixerFilter : mixerFilters) {
+                final Filter[] chain = {
+                        curveFilter, mixerFilter, strokeEdgesFilter
+                };
+                final Filter[] fused = {
+                        new FusedColorFilter(
+                                new PixelFilter[] {
+                                        curveFilter, mixerFilter
+                                },
+                                strokeEdgesFilter)
+                };
+                
+                final double chainMillis = BenchmarkUtils.millisPerFrame(
+                        chain, src, BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                        BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+                final double fusedMillis = BenchmarkUtils.millisPerFrame(
+                        fused, src, BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                        BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+                
+                final Mat chainDst = src.clone();
+                final Mat fusedDst = src.clone();
+                for (final Filter filter : chain) {
+                    filter.apply(chainDst, chainDst);
+                }
+                fused[0].apply(fusedDst, fusedDst);
+                
+                System.out.println(String.format(
+                        "%dx%d\t%s\t%.3f\t%.3f\t%.3f\t%.0f",
+                        resolution[0], resolution[1],
+                        mixerFilter.getClass().getSimpleName(),
+                        chainMillis, fusedMillis,
+                        chainMillis - fusedMillis,
+                        BenchmarkUtils.maxDifference(chainDst, fusedDst)));
+                chainDst.release();
+                fusedDst.release();
+            }
+            src.release();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.nummist.secondsight.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DMatch;
+
+import com.nummist.secondsight.matching.BlockedHammingMatcher;
+import com.nummist.secondsight.matching.FeatureMatcher;
+import com.nummist.secondsight.matching.OpenCVMatcher;
+import com.nummist.secondsight.parallel.WorkerPool;
+
+// Compares the ms per match of OpenCV's brute-force Hamming matcher
+// with the pure-Java blocked matcher, on one thread and on a worker
+// per processor, for sets of 500, 2000, and 10000 FREAK-sized
+// descriptors. Half of the queries are noisy copies of train rows, as
+// in a scene that shows a target, and half are random. Also prints
+// how many of the blocked matcher's matches differ from OpenCV's.
+//
+// Usage: HammingMatcherBenchmark
+public final class HammingMatcherBenchmark {
+    
+    private static final int[] SIZES = { 500, 2000, 10000 };
+    
+    // The bytes per descriptor, as in FREAK's.
+    private static final int DESCRIPTOR_SIZE = 64;
+    
+    // The most bits that are flipped in a noisy copy.
+    private static final int MAX_NOISE_BITS = 64;
+    
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 10;
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        final WorkerPool workerPool = new WorkerPool();
+        final Random random = new Random(0L);
+        
+        for (final int size : SIZES) {
+            final byte[] trainBytes = new byte[size * DESCRIPTOR_SIZE];
+            random.nextBytes(trainBytes);
+            final byte[] queryBytes = new byte[trainBytes.length];
+            random.nextBytes(queryBytes);
+            for (int row = 0; row < size; row += 2) {
+                System.arraycopy(trainBytes,
+                        random.nextInt(size) * DESCRIPTOR_SIZE,
+                        queryBytes, row * DESCRIPTOR_SIZE,
+                        DESCRIPTOR_SIZE);
+                final int numNoiseBits =
+                        random.nextInt(MAX_NOISE_BITS + 1);
+                for (int i = 0; i < numNoiseBits; i++) {
+                    final int bit =
+                            random.nextInt(8 * DESCRIPTOR_SIZE);
+                    queryBytes[row * DESCRIPTOR_SIZE + bit / 8] ^=
+                            (byte)(1 << (bit % 8));
+                }
+            }
+            final Mat trainDescriptors = newDescriptors(trainBytes);
+            final Mat queryDescriptors = newDescriptors(queryBytes);
+            final List<Mat> trainCollection = new ArrayList<Mat>();
+            trainCollection.add(trainDescriptors);
+            
+            final OpenCVMatcher bruteForceMatcher = new OpenCVMatcher();
+            final DMatch[] expected = measure("brute force", size,
+                    bruteForceMatcher, trainCollection,
+                    queryDescriptors);
+            check(expected, measure("blocked, 1 thread", size,
+                    new BlockedHammingMatcher(), trainCollection,
+                    queryDescriptors));
+            check(expected, measure(String.format(
+                    "blocked, %d threads", workerPool.getNumWorkers()),
+                    size, new BlockedHammingMatcher(workerPool),
+                    trainCollection, queryDescriptors));
+        }
+        
+        workerPool.close();
+    }
+    
+    private static Mat newDescriptors(final byte[] bytes) {
+        final Mat descriptors = new Mat(bytes.length / DESCRIPTOR_SIZE,
+                DESCRIPTOR_SIZE, CvType.CV_8UC1);
+        descriptors.put(0, 0, bytes);
+        return descriptors;
+    }
+    
+    // Prints the ms per match, and returns the matches.
+    private static DMatch[] measure(final String name, final int size,
+            final FeatureMatcher matcher,
+            final List<Mat> trainCollection,
+            final Mat queryDescriptors) {
+        matcher.train(trainCollection);
+        final MatOfDMatch matches = new MatOfDMatch();
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            matcher.match(queryDescriptors, matches);
+        }
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            matcher.match(queryDescriptors, matches);
+        }
+        final double ms = (System.nanoTime() - startNanos) / 1e6 /
+                MEASURED_RUNS;
+        System.out.println(String.format(
+                "%5d x %5d, %s: %.2f ms per match", size, size, name,
+                ms));
+        return matches.toArray();
+    }
+    
+    private static void check(final DMatch[] expected,
+            final DMatch[] actual) {
+        int numDifferent = Math.abs(expected.length - actual.length);
+        for (int i = 0; i < Math.min(expected.length, actual.length);
+                i++) {
+            if (actual[i].queryIdx != expected[i].queryIdx ||
+                    actual[i].trainIdx != expected[i].trainIdx ||
+                    actual[i].imgIdx != expected[i].imgIdx ||
+                    actual[i].distance != expected[i].distance) {
+                numDifferent++;
+            }
+        }
+        System.out.println(String.format(
+                "    %d of %d matches differ", numDifferent,
+                expected.length));
+    }
+}
@@ -0,0 +1,85 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.Filters;
+import com.nummist.secondsight.filters.JavaPixelFilter;
+import com.nummist.secondsight.filters.PixelFilter;
+import com.nummist.secondsight.parallel.WorkerPool;
+
+// Compares each curve and mixer filter's OpenCV path against its
+// pure-Java kernel, on one thread and on every processor, from small
+// thumbnails up to 1080p, where the JNI calls matter less. Prints the
+// milliseconds per frame of each and the maximum per-channel
+// difference from the OpenCV output, which must be 0.
+//
+// Usage: JavaBackendBenchmark [filter names...]
+public final class JavaBackendBenchmark {
+    
+    private static final int[][] RESOLUTIONS = {
+            { 160, 120 },
+            { 320, 240 },
+            { 640, 480 },
+            { 1280, 720 },
+            { 1920, 1080 }
+    };
+    
+    private static final String[] DEFAULT_NAMES = {
+            "portra", "provia", "velvia", "cross_process",
+            "recolor_rc", "recolor_rgv", "recolor_cmv"
+    };
+    
+    public static void main(final String[] args) {
+        final String[] names = (args.length > 0) ? args : DEFAULT_NAMES;
+        
+        BenchmarkUtils.loadOpenCV();
+        final WorkerPool workerPool = new WorkerPool();
+        
+        System.out.println("filter\tresolution\topencv_ms\tjava_ms" +
+                "\tjava_" + workerPool.getNumWorkers() +
+                "_threads_ms\tmax_diff");
+        for (final String name : names) {
+            final PixelFilter filter = (PixelFilter)Filters.create(name);
+            final Filter java = new JavaPixelFilter(filter);
+            final Filter parallelJava = new JavaPixelFilter(filter,
+                    workerPool);
+            for (final int[] resolution : RESOLUTIONS) {
+                final Mat src = BenchmarkUtils.newRandomFrame(
+                        resolution[0], resolution[1]);
+                final double openCVMillis = millisPerFrame(filter, src);
+                final double javaMillis = millisPerFrame(java, src);
+                final double parallelJavaMillis =
+                        millisPerFrame(parallelJava, src);
+                
+                final Mat openCVDst = new Mat();
+                final Mat javaDst = new Mat();
+                final Mat parallelJavaDst = new Mat();
+                filter.apply(src, openCVDst);
+                java.apply(src, javaDst);
+                parallelJava.apply(src, parallelJavaDst);
+                final double maxDiff = Math.max(
+                        BenchmarkUtils.maxDifference(openCVDst, javaDst),
+                        BenchmarkUtils.maxDifference(openCVDst,
+                                parallelJavaDst));
+                
+                System.out.println(String.format(
+                        "%s\t%dx%d\t%.4f\t%.4f\t%.4f\t%.0f", name,
+                        resolution[0], resolution[1], openCVMillis,
+                        javaMillis, parallelJavaMillis, maxDiff));
+                openCVDst.release();
+                javaDst.release();
+                parallelJavaDst.release();
+                src.release();
+            }
+        }
+        workerPool.close();
+    }
+    
+    private static double millisPerFrame(final Filter filter,
+            final Mat src) {
+        return BenchmarkUtils.millisPerFrame(new Filter[] { filter },
+                src, BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+    }
+}
@@ -0,0 +1,92 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.convolution.KernelFilter;
+
+// Shows the strategy that KernelFilter selects for kernels of several
+// shapes and sizes, and its measured cost per 1280x720 frame against
+// a plain filter2D of the same kernel, which OpenCV runs directly or
+// through its own DFT depending on the kernel's size and the CPU.
+// Prints the maximum per-channel difference between the two, which
+// comes from rounding only.
+public final class KernelFilterBenchmark {
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        final Mat src = BenchmarkUtils.newRandomFrame(1280, 720);
+        System.out.println("kernel\tsize\trank\tstrategy\tms" +
+                "\tfilter2d_ms\tmax_diff");
+        for (final int radius : new int[] { 1, 3, 7, 15 }) {
+            measure("blur", KernelFilter.newBlur(radius), src);
+            measure("gaussian", newGaussian(radius), src);
+            measure("glow", KernelFilter.newGlow(radius, 0.6f), src);
+        }
+        measure("sharpen", KernelFilter.newSharpen(), src);
+        measure("emboss", KernelFilter.newEmboss(), src);
+        src.release();
+    }
+    
+    private static void measure(final String name,
+            final KernelFilter filter, final Mat src) {
+        final Mat kernel = new Mat(filter.getRows(), filter.getCols(),
+                CvType.CV_32FC1);
+        kernel.put(0, 0, filter.getKernel());
+        final double delta = filter.getDelta();
+        final Filter filter2D = new Filter() {
+            @Override
+            public void apply(final Mat src, final Mat dst) {
+                Imgproc.filter2D(src, dst, -1, kernel,
+                        new Point(-1, -1), delta);
+            }
+        };
+        final double millis = BenchmarkUtils.millisPerFrame(
+                new Filter[] { filter }, src,
+                BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+        final double filter2DMillis = BenchmarkUtils.millisPerFrame(
+                new Filter[] { filter2D }, src,
+                BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+        
+        final Mat dst = new Mat();
+        final Mat filter2DDst = new Mat();
+        filter.apply(src, dst);
+        filter2D.apply(src, filter2DDst);
+        
+        System.out.println(String.format("%s\t%dx%d\t%d\t%s" +
+                "\t%.3f\t%.3f\t%.0f", name, filter.getCols(),
+                filter.getRows(), filter.getRank(),
+                filter.getStrategyName(), millis, filter2DMillis,
+                BenchmarkUtils.maxDifference(dst, filter2DDst)));
+        dst.release();
+        filter2DDst.release();
+        kernel.release();
+    }
+    
+    // A Gaussian blur, which is separable.
+    private static KernelFilter newGaussian(final int radius) {
+        final int size = 2 * radius + 1;
+        final double sigma = Math.max(radius / 2.0, 0.5);
+        final double[] gaussian = new double[size];
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            final double x = i - radius;
+            gaussian[i] = Math.exp(-x * x / (2.0 * sigma * sigma));
+            sum += gaussian[i];
+        }
+        final float[] kernel = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                kernel[y * size + x] = (float)(gaussian[y] *
+                        gaussian[x] / (sum * sum));
+            }
+        }
+        return new KernelFilter(kernel, size, size, 0.0);
+    }
+}
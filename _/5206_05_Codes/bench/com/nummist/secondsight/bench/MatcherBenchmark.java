@@ -0,0 +1,286 @@
+package com.nummist.secondsight.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.bench.sources.VideoFrameSource;
+import com.nummist.secondsight.matching.BlockedHammingMatcher;
+import com.nummist.secondsight.matching.FeatureMatcher;
+import com.nummist.secondsight.matching.LSHMatcher;
+import com.nummist.secondsight.matching.OpenCVMatcher;
+import com.nummist.secondsight.parallel.WorkerPool;
+import com.nummist.secondsight.sources.FrameSource;
+import com.nummist.secondsight.sources.ImageSequenceFrameSource;
+
+// Matches the FREAK descriptors of recorded frames against those of
+// the reference images, with OpenCV's and the blocked Java brute force
+// and with LSH indices of several sizes. Prints the ms per frame, the recall of the exact
+// nearest neighbors, and the recall of the neighbors that are near
+// enough for ImageDetectionFilter to use. Without a recording, the
+// frames show the first reference image at several scales and
+// rotations.
+//
+// Usage: MatcherBenchmark [--frames <image directory or video>]
+//            [reference images...]
+public final class MatcherBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final int MAX_FRAMES = 100;
+    private static final int REPEATS = 3;
+    
+    // ImageDetectionFilter treats a target as lost if no match is
+    // nearer than this.
+    private static final float GOOD_DISTANCE = 50f;
+    
+    private static final int[] NUM_TABLES = { 2, 4, 8 };
+    private static final int[] KEY_SIZES = { 12, 16, 20 };
+    private static final int[] MULTI_PROBE_LEVELS = { 0, 1 };
+    
+    private static final double[] SYNTHETIC_SCALES = {
+            0.4, 0.6, 0.8
+    };
+    private static final double[] SYNTHETIC_ANGLES = {
+            -20.0, 0.0, 20.0
+    };
+    
+    private static final String[] DEFAULT_REFERENCE_IMAGE_PATHS = {
+            "res/drawable-mdpi/starry_night.jpg",
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg"
+    };
+    
+    private static final FeatureDetector sFeatureDetector =
+            FeatureDetector.create(FeatureDetector.STAR);
+    private static final DescriptorExtractor sDescriptorExtractor =
+            DescriptorExtractor.create(DescriptorExtractor.FREAK);
+    
+    public static void main(final String[] args) throws IOException {
+        String framesPath = null;
+        final List<String> referenceImagePaths =
+                new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--frames")) {
+                framesPath = args[++i];
+            } else {
+                referenceImagePaths.add(args[i]);
+            }
+        }
+        if (referenceImagePaths.isEmpty()) {
+            for (final String path : DEFAULT_REFERENCE_IMAGE_PATHS) {
+                referenceImagePaths.add(path);
+            }
+        }
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final List<Mat> referenceImages = new ArrayList<Mat>();
+        final List<Mat> trainDescriptors = new ArrayList<Mat>();
+        int numTrainDescriptors = 0;
+        for (final String path : referenceImagePaths) {
+            final Mat image = Highgui.imread(path,
+                    Highgui.CV_LOAD_IMAGE_COLOR);
+            if (image.empty()) {
+                throw new IllegalArgumentException(
+                        "Failed to load reference image: " + path);
+            }
+            Imgproc.cvtColor(image, image, Imgproc.COLOR_BGR2RGBA);
+            referenceImages.add(image);
+            final Mat descriptors = describe(image);
+            trainDescriptors.add(descriptors);
+            numTrainDescriptors += descriptors.rows();
+        }
+        
+        final List<Mat> frames = (framesPath == null) ?
+                renderFrames(referenceImages.get(0)) :
+                readFrames(framesPath);
+        final List<Mat> queryDescriptors = new ArrayList<Mat>();
+        int numQueryDescriptors = 0;
+        for (final Mat frame : frames) {
+            final Mat descriptors = describe(frame);
+            queryDescriptors.add(descriptors);
+            numQueryDescriptors += descriptors.rows();
+        }
+        System.out.println(String.format(
+                "%d reference descriptors, %d frames, %.0f scene " +
+                        "descriptors per frame",
+                numTrainDescriptors, frames.size(),
+                numQueryDescriptors / (double)frames.size()));
+        
+        // The brute-force matches are the ground truth.
+        final OpenCVMatcher bruteForceMatcher = new OpenCVMatcher();
+        bruteForceMatcher.train(trainDescriptors);
+        final List<float[]> bestDistances = new ArrayList<float[]>();
+        for (final Mat descriptors : queryDescriptors) {
+            bestDistances.add(getDistances(bruteForceMatcher,
+                    descriptors));
+        }
+        
+        report("brute force", bruteForceMatcher, trainDescriptors,
+                queryDescriptors, bestDistances);
+        final WorkerPool workerPool = new WorkerPool();
+        report("blocked brute force", new BlockedHammingMatcher(
+                workerPool), trainDescriptors, queryDescriptors,
+                bestDistances);
+        workerPool.close();
+        for (final int numTables : NUM_TABLES) {
+            for (final int keySize : KEY_SIZES) {
+                for (final int multiProbeLevel : MULTI_PROBE_LEVELS) {
+                    report(String.format(
+                            "LSH %d tables, %d-bit keys, probe %d",
+                            numTables, keySize, multiProbeLevel),
+                            new LSHMatcher(numTables, keySize,
+                                    multiProbeLevel),
+                            trainDescriptors, queryDescriptors,
+                            bestDistances);
+                }
+            }
+        }
+    }
+    
+    private static void report(final String name,
+            final FeatureMatcher matcher,
+            final List<Mat> trainDescriptors,
+            final List<Mat> queryDescriptors,
+            final List<float[]> bestDistances) {
+        final long trainStartNanos = System.nanoTime();
+        matcher.train(trainDescriptors);
+        final long trainNanos = System.nanoTime() - trainStartNanos;
+        
+        final MatOfDMatch matches = new MatOfDMatch();
+        for (final Mat descriptors : queryDescriptors) {
+            matcher.match(descriptors, matches);
+        }
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < REPEATS; i++) {
+            for (final Mat descriptors : queryDescriptors) {
+                matcher.match(descriptors, matches);
+            }
+        }
+        final double msPerFrame = (System.nanoTime() - startNanos) /
+                1e6 / (REPEATS * queryDescriptors.size());
+        
+        int numQueries = 0;
+        int numExact = 0;
+        int numGood = 0;
+        int numGoodFound = 0;
+        for (int i = 0; i < queryDescriptors.size(); i++) {
+            final float[] expected = bestDistances.get(i);
+            final float[] actual =
+                    getDistances(matcher, queryDescriptors.get(i));
+            for (int j = 0; j < expected.length; j++) {
+                numQueries++;
+                final boolean isExact = (actual[j] == expected[j]);
+                if (isExact) {
+                    numExact++;
+                }
+                if (expected[j] <= GOOD_DISTANCE) {
+                    numGood++;
+                    if (isExact) {
+                        numGoodFound++;
+                    }
+                }
+            }
+        }
+        
+        System.out.println(String.format(
+                "%s: %.3f ms per frame, trained in %.1f ms, " +
+                        "recall %.3f, good recall %.3f",
+                name, msPerFrame, trainNanos / 1e6,
+                numExact / (double)Math.max(1, numQueries),
+                numGoodFound / (double)Math.max(1, numGood)));
+    }
+    
+    // Returns the distance of each query descriptor's match, or
+    // infinity if it has none.
+    private static float[] getDistances(final FeatureMatcher matcher,
+            final Mat queryDescriptors) {
+        final float[] distances = new float[queryDescriptors.rows()];
+        Arrays.fill(distances, Float.POSITIVE_INFINITY);
+        final MatOfDMatch matches = new MatOfDMatch();
+        matcher.match(queryDescriptors, matches);
+        for (final DMatch match : matches.toArray()) {
+            distances[match.queryIdx] = match.distance;
+        }
+        return distances;
+    }
+    
+    private static Mat describe(final Mat rgba) {
+        final Mat gray = new Mat();
+        Imgproc.cvtColor(rgba, gray, Imgproc.COLOR_RGBA2GRAY);
+        final MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        final Mat descriptors = new Mat();
+        sFeatureDetector.detect(gray, keypoints);
+        sDescriptorExtractor.compute(gray, keypoints, descriptors);
+        return descriptors;
+    }
+    
+    // Reads up to MAX_FRAMES frames from a directory of images or a
+    // video.
+    static List<Mat> readFrames(final String path)
+            throws IOException {
+        final FrameSource source;
+        final File file = new File(path);
+        if (file.isDirectory()) {
+            source = new ImageSequenceFrameSource(file, 30.0);
+        } else {
+            source = new VideoFrameSource(path);
+        }
+        final List<Mat> frames = new ArrayList<Mat>();
+        Mat rgba = new Mat();
+        while (frames.size() < MAX_FRAMES && source.read(rgba)) {
+            frames.add(rgba);
+            rgba = new Mat();
+        }
+        source.close();
+        return frames;
+    }
+    
+    // Renders the reference image at each scale and angle, in the
+    // middle of a gray frame.
+    private static List<Mat> renderFrames(final Mat reference) {
+        final List<Mat> frames = new ArrayList<Mat>();
+        final double fitScale = Math.min(
+                WIDTH / (double)reference.cols(),
+                HEIGHT / (double)reference.rows());
+        for (final double scale : SYNTHETIC_SCALES) {
+            for (final double angle : SYNTHETIC_ANGLES) {
+                final Mat transform = Imgproc.getRotationMatrix2D(
+                        new Point(0.5 * reference.cols(),
+                                0.5 * reference.rows()),
+                        angle, scale * fitScale);
+                
+                // Move the reference's center to the frame's center.
+                final double[] tx = transform.get(0, 2);
+                final double[] ty = transform.get(1, 2);
+                transform.put(0, 2, tx[0] +
+                        0.5 * (WIDTH - reference.cols()));
+                transform.put(1, 2, ty[0] +
+                        0.5 * (HEIGHT - reference.rows()));
+                
+                final Mat frame = new Mat();
+                Imgproc.warpAffine(reference, frame, transform,
+                        new Size(WIDTH, HEIGHT), Imgproc.INTER_LINEAR,
+                        Imgproc.BORDER_CONSTANT,
+                        new Scalar(128.0, 128.0, 128.0, 255.0));
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,116 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+
+// Compares the ms per frame of looking for 1 to N targets with N
+// single-target filters, which each detect, describe, and match the
+// scene, against one multi-target filter, which detects and describes
+// the scene once and matches it against one index of all targets.
+// The scene is a 1280x720 frame that shows the first target.
+//
+// Usage: MultiTargetDetectionBenchmark [reference image]...
+public final class MultiTargetDetectionBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final double DETECTION_SCALE = 0.5;
+    
+    private static final int WARMUP_FRAMES = 5;
+    private static final int MEASURED_FRAMES = 20;
+    
+    private static final String[] DEFAULT_REFERENCE_IMAGE_PATHS = {
+            "res/drawable-mdpi/starry_night.jpg",
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg",
+            "res/drawable-mdpi/akbar_crossing_river.jpg",
+            "res/drawable-mdpi/church_at_auvers_sur_oise.jpg",
+            "res/drawable-mdpi/flight_of_sultan_bahadur.jpg",
+            "res/drawable-mdpi/self_portrait.jpg"
+    };
+    
+    public static void main(final String[] args) {
+        final String[] referenceImagePaths = (args.length > 0) ?
+                args : DEFAULT_REFERENCE_IMAGE_PATHS;
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final Mat scene = renderScene(referenceImagePaths[0]);
+        
+        for (int n = 1; n <= referenceImagePaths.length; n++) {
+            final String[] paths = new String[n];
+            System.arraycopy(referenceImagePaths, 0, paths, 0, n);
+            
+            final ImageDetectionFilter[] singleFilters =
+                    new ImageDetectionFilter[n];
+            for (int i = 0; i < n; i++) {
+                singleFilters[i] =
+                        BenchmarkFilters.createImageDetectionFilter(
+                                paths[i]);
+                singleFilters[i].setDetectionScale(DETECTION_SCALE);
+            }
+            final ImageDetectionFilter multiFilter =
+                    BenchmarkFilters.createImageDetectionFilter(paths);
+            multiFilter.setDetectionScale(DETECTION_SCALE);
+            
+            final double singleMs = measureMs(singleFilters, scene);
+            final double multiMs = measureMs(
+                    new ImageDetectionFilter[] { multiFilter }, scene);
+            
+            System.out.println(String.format(
+                    "%d targets: %.2f ms per frame with %d filters, " +
+                            "%.2f ms with 1 filter (%.2fx), " +
+                            "found first target: %b",
+                    n, singleMs, n, multiMs, singleMs / multiMs,
+                    multiFilter.isTargetFound(0)));
+        }
+    }
+    
+    private static double measureMs(
+            final ImageDetectionFilter[] filters, final Mat scene) {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            for (final ImageDetectionFilter filter : filters) {
+                filter.detect(scene);
+            }
+        }
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            for (final ImageDetectionFilter filter : filters) {
+                filter.detect(scene);
+            }
+        }
+        return (System.nanoTime() - startNanos) / 1e6 /
+                MEASURED_FRAMES;
+    }
+    
+    // Renders a reference image, scaled to half the frame's height,
+    // in the middle of a gray frame.
+    private static Mat renderScene(final String referenceImagePath) {
+        final Mat reference = Highgui.imread(referenceImagePath,
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        if (reference.empty()) {
+            throw new IllegalArgumentException(
+                    "Failed to load reference image: " +
+                            referenceImagePath);
+        }
+        Imgproc.cvtColor(reference, reference, Imgproc.COLOR_BGR2RGBA);
+        
+        final int height = HEIGHT / 2;
+        final int width = Math.min(WIDTH,
+                height * reference.cols() / reference.rows());
+        final Mat scene = new Mat(HEIGHT, WIDTH, reference.type(),
+                new Scalar(128.0, 128.0, 128.0, 255.0));
+        final int top = (HEIGHT - height) / 2;
+        final int left = (WIDTH - width) / 2;
+        final Mat sceneROI = scene.submat(top, top + height, left,
+                left + width);
+        Imgproc.resize(reference, sceneROI, new Size(width, height),
+                0.0, 0.0, Imgproc.INTER_AREA);
+        return scene;
+    }
+}
@@ -0,0 +1,157 @@
+package com.nummist.secondsight.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+import com.nummist.secondsight.matching.FeatureMatcher;
+import com.nummist.secondsight.matching.LSHMatcher;
+import com.nummist.secondsight.matching.OpenCVMatcher;
+
+// Measures the Java heap bytes that ImageDetectionFilter.detect()
+// allocates per frame, once warmed up, along the rendered camera path
+// of TrackingBenchmark:
+// - With full detection and the default options, every allocation is
+//   in the correspondence and pose stages, since the OpenCV wrappers
+//   of detection, extraction, and brute-force matching allocate
+//   nothing on the Java heap.
+// - With tracking, most frames only track the points and solve the
+//   pose.
+// - With the ratio test, as the app's tracker of both paintings uses
+//   it, through LSHMatcher, which reuses its kNN matches, and through
+//   OpenCVMatcher, whose knnMatch wrapper allocates a MatOfDMatch per
+//   scene descriptor, so it is expected to allocate.
+// - With the cross-check.
+//
+// The counts come from HotSpot's per-thread allocation counter, and
+// are negative on JVMs without one.
+//
+// Usage: PoseAllocationBenchmark [reference image]
+public final class PoseAllocationBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final int NUM_FRAMES = 90;
+    
+    private static final double DETECTION_SCALE = 0.5;
+    
+    private static final int WARMUP_FRAMES = 10;
+    
+    private static final String DEFAULT_REFERENCE_IMAGE_PATH =
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg";
+    
+    private static final int MODE_FULL_DETECTION = 0;
+    private static final int MODE_RANSAC = 1;
+    private static final int MODE_TRACKING = 2;
+    private static final int MODE_RATIO_TEST_LSH = 3;
+    private static final int MODE_RATIO_TEST_OPENCV = 4;
+    private static final int MODE_CROSS_CHECK = 5;
+    
+    private static final String[] MODE_NAMES = {
+            "full detection",
+            "full detection + RANSAC",
+            "tracking + RANSAC",
+            "ratio test (LSH) + RANSAC + tracking",
+            "ratio test (OpenCV knnMatch) + RANSAC",
+            "cross-check + RANSAC"
+    };
+    
+    public static void main(final String[] args) {
+        final String referenceImagePath = (args.length > 0) ?
+                args[0] : DEFAULT_REFERENCE_IMAGE_PATH;
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final ThreadMXBean threadBean =
+                ManagementFactory.getThreadMXBean();
+        final long threadID = Thread.currentThread().getId();
+        
+        final Mat reference = Highgui.imread(referenceImagePath,
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        if (reference.empty()) {
+            throw new IllegalArgumentException(
+                    "Failed to load reference image: " +
+                            referenceImagePath);
+        }
+        Imgproc.cvtColor(reference, reference, Imgproc.COLOR_BGR2RGBA);
+        
+        final CameraProjectionAdapter cameraProjectionAdapter =
+                new CameraProjectionAdapter();
+        cameraProjectionAdapter.setImageSize(WIDTH, HEIGHT);
+        final MatOfDouble projection =
+                cameraProjectionAdapter.getProjectionCV();
+        final double[] baseTVec =
+                DetectionScaleBenchmark.getTVec(reference, projection);
+        
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            final FeatureMatcher matcher =
+                    (mode == MODE_RATIO_TEST_LSH) ?
+                            new LSHMatcher() : new OpenCVMatcher();
+            final ImageDetectionFilter filter =
+                    BenchmarkFilters.createImageDetectionFilter(
+                            new String[] { referenceImagePath },
+                            matcher);
+            filter.setDetectionScale(DETECTION_SCALE);
+            if (mode != MODE_FULL_DETECTION) {
+                filter.setRansacParameters(
+                        ImageDetectionFilter.DEFAULT_RANSAC_ITERATIONS,
+                        ImageDetectionFilter
+                                .DEFAULT_RANSAC_REPROJECTION_ERROR);
+            }
+            if (mode == MODE_RATIO_TEST_LSH ||
+                    mode == MODE_RATIO_TEST_OPENCV) {
+                filter.setRatioTestThreshold(
+                        ImageDetectionFilter
+                                .DEFAULT_RATIO_TEST_THRESHOLD);
+            }
+            if (mode == MODE_CROSS_CHECK) {
+                filter.setCrossCheckEnabled(true);
+            }
+            if (mode == MODE_TRACKING || mode == MODE_RATIO_TEST_LSH) {
+                filter.setTrackingParameters(
+                        ImageDetectionFilter
+                                .DEFAULT_REDETECTION_INTERVAL,
+                        ImageDetectionFilter
+                                .DEFAULT_MIN_TRACKED_FRACTION);
+            }
+            
+            // Warm up along the path, so that the buffers have grown.
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                filter.detect(TrackingBenchmark.renderFrame(reference,
+                        projection, baseTVec,
+                        i * NUM_FRAMES / WARMUP_FRAMES));
+            }
+            
+            long totalBytes = 0L;
+            long maxBytes = 0L;
+            int numFound = 0;
+            for (int i = 0; i < NUM_FRAMES; i++) {
+                final Mat frame = TrackingBenchmark.renderFrame(
+                        reference, projection, baseTVec, i);
+                
+                final long startBytes = FilterBenchmarks
+                        .allocatedBytes(threadBean, threadID);
+                filter.detect(frame);
+                final long bytes = FilterBenchmarks.allocatedBytes(
+                        threadBean, threadID) - startBytes;
+                totalBytes += bytes;
+                maxBytes = Math.max(maxBytes, bytes);
+                if (filter.getGLPose() != null) {
+                    numFound++;
+                }
+            }
+            
+            System.out.println(String.format(
+                    "%s: %.0f bytes per frame (max %d), found %d/%d",
+                    MODE_NAMES[mode], totalBytes / (double)NUM_FRAMES,
+                    maxBytes, numFound, NUM_FRAMES));
+        }
+    }
+}
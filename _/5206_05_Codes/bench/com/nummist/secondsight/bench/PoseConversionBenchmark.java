@@ -0,0 +1,140 @@
+package com.nummist.secondsight.bench;
+
+import java.util.Random;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.MatOfDouble;
+
+import com.nummist.secondsight.filters.ar.PoseMath;
+
+// Measures the cost of converting an rvec and tvec, as solvePnP
+// leaves them, to an OpenGL pose matrix:
+// - per-element reads, the old way: toArray() and fromArray() to
+//   negate the rvec's y and z, Calib3d.Rodrigues, 9 get(row, col)
+//   calls on the rotation matrix, and toArray() on the tvec;
+// - bulk reads into reused arrays, with Calib3d.Rodrigues;
+// - bulk reads, with PoseMath.rodrigues in Java.
+// Each conversion is timed alone, so the times include the timer's
+// overhead, which is the same for each way. Each way's largest
+// difference from the first is reported, too.
+//
+// Usage: PoseConversionBenchmark
+public final class PoseConversionBenchmark {
+    
+    private static final int NUM_POSES = 1000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 100;
+    
+    private static final String[] MODE_NAMES = {
+            "per-element reads",
+            "bulk reads + Calib3d.Rodrigues",
+            "bulk reads + Java Rodrigues"
+    };
+    
+    // The reused arrays of the bulk reads.
+    private static final double[] sRVecArray = new double[3];
+    private static final double[] sTVecArray = new double[3];
+    private static final double[] sRotationArray = new double[9];
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        final Random random = new Random(42L);
+        final double[][] rVecs = new double[NUM_POSES][3];
+        final double[][] tVecs = new double[NUM_POSES][3];
+        for (int i = 0; i < NUM_POSES; i++) {
+            for (int j = 0; j < 3; j++) {
+                rVecs[i][j] = random.nextDouble() * 2.0 - 1.0;
+                tVecs[i][j] = random.nextDouble() * 1000.0 - 500.0;
+            }
+        }
+        
+        final MatOfDouble rVec = new MatOfDouble(0.0, 0.0, 0.0);
+        final MatOfDouble tVec = new MatOfDouble(0.0, 0.0, 0.0);
+        final MatOfDouble rotation = new MatOfDouble();
+        final float[][] expectedGLPoses = new float[NUM_POSES][16];
+        final float[] glPose = new float[16];
+        
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            long totalNanos = 0L;
+            float maxDiff = 0f;
+            for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS;
+                    round++) {
+                for (int i = 0; i < NUM_POSES; i++) {
+                    // Reset the vectors, as solvePnP would.
+                    rVec.put(0, 0, rVecs[i]);
+                    tVec.put(0, 0, tVecs[i]);
+                    
+                    final long startNanos = System.nanoTime();
+                    convert(mode, rVec, tVec, rotation, glPose);
+                    final long nanos = System.nanoTime() - startNanos;
+                    if (round < WARMUP_ROUNDS) {
+                        continue;
+                    }
+                    totalNanos += nanos;
+                    
+                    if (mode == 0) {
+                        System.arraycopy(glPose, 0, expectedGLPoses[i],
+                                0, 16);
+                    } else {
+                        for (int j = 0; j < 16; j++) {
+                            maxDiff = Math.max(maxDiff, Math.abs(
+                                    glPose[j] - expectedGLPoses[i][j]));
+                        }
+                    }
+                }
+            }
+            System.out.println(String.format(
+                    "%s: %.0f ns per pose, max diff %g",
+                    MODE_NAMES[mode],
+                    totalNanos / (double)(MEASURED_ROUNDS * NUM_POSES),
+                    maxDiff));
+        }
+    }
+    
+    private static void convert(final int mode, final MatOfDouble rVec,
+            final MatOfDouble tVec, final MatOfDouble rotation,
+            final float[] glPose) {
+        if (mode == 0) {
+            double[] rVecArray = rVec.toArray();
+            rVecArray[1] *= -1.0;
+            rVecArray[2] *= -1.0;
+            rVec.fromArray(rVecArray);
+            
+            Calib3d.Rodrigues(rVec, rotation);
+            
+            double[] tVecArray = tVec.toArray();
+            
+            glPose[0]  =  (float)rotation.get(0, 0)[0];
+            glPose[1]  =  (float)rotation.get(1, 0)[0];
+            glPose[2]  =  (float)rotation.get(2, 0)[0];
+            glPose[3]  =  0f;
+            glPose[4]  =  (float)rotation.get(0, 1)[0];
+            glPose[5]  =  (float)rotation.get(1, 1)[0];
+            glPose[6]  =  (float)rotation.get(2, 1)[0];
+            glPose[7]  =  0f;
+            glPose[8]  =  (float)rotation.get(0, 2)[0];
+            glPose[9]  =  (float)rotation.get(1, 2)[0];
+            glPose[10] =  (float)rotation.get(2, 2)[0];
+            glPose[11] =  0f;
+            glPose[12] =  (float)tVecArray[0];
+            glPose[13] = -(float)tVecArray[1];
+            glPose[14] = -(float)tVecArray[2];
+            glPose[15] =  1f;
+            return;
+        }
+        
+        rVec.get(0, 0, sRVecArray);
+        sRVecArray[1] *= -1.0;
+        sRVecArray[2] *= -1.0;
+        rVec.put(0, 0, sRVecArray);
+        if (mode == 2) {
+            PoseMath.rodrigues(sRVecArray, sRotationArray);
+        } else {
+            Calib3d.Rodrigues(rVec, rotation);
+            rotation.get(0, 0, sRotationArray);
+        }
+        tVec.get(0, 0, sTVecArray);
+        PoseMath.toGLPose(sRotationArray, sTVecArray, glPose);
+    }
+}
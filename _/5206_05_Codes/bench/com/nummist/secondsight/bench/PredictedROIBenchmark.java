@@ -0,0 +1,121 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+
+// Compares full-frame detection against detection in the predicted
+// region around the last pose, along the rendered camera path of
+// TrackingBenchmark, with the reference image filling a third of each
+// 1280x720 frame: the ms per frame, the frames where the target was
+// found, the frames where only the region was searched, and the mean
+// translation error.
+//
+// Usage: PredictedROIBenchmark [reference image]
+public final class PredictedROIBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final int NUM_FRAMES = 90;
+    
+    // The fraction of the frame's area that the target fills.
+    private static final double TARGET_AREA_FRACTION = 1.0 / 3.0;
+    
+    private static final double DETECTION_SCALE = 0.5;
+    
+    private static final int WARMUP_FRAMES = 3;
+    
+    private static final String DEFAULT_REFERENCE_IMAGE_PATH =
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg";
+    
+    public static void main(final String[] args) {
+        final String referenceImagePath = (args.length > 0) ?
+                args[0] : DEFAULT_REFERENCE_IMAGE_PATH;
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final Mat reference = Highgui.imread(referenceImagePath,
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        if (reference.empty()) {
+            throw new IllegalArgumentException(
+                    "Failed to load reference image: " +
+                            referenceImagePath);
+        }
+        Imgproc.cvtColor(reference, reference, Imgproc.COLOR_BGR2RGBA);
+        
+        final CameraProjectionAdapter cameraProjectionAdapter =
+                new CameraProjectionAdapter();
+        cameraProjectionAdapter.setImageSize(WIDTH, HEIGHT);
+        final MatOfDouble projection =
+                cameraProjectionAdapter.getProjectionCV();
+        
+        // At distance d, the target covers (f * w / d) * (f * h / d)
+        // pixels.
+        final double focalLengthPx = projection.get(0, 0)[0];
+        final double distance = focalLengthPx * Math.sqrt(
+                reference.cols() * (double)reference.rows() /
+                        (TARGET_AREA_FRACTION * WIDTH * HEIGHT));
+        final double[] baseTVec = {
+                -0.5 * reference.cols(), -0.5 * reference.rows(),
+                distance
+        };
+        
+        final Mat firstFrame = TrackingBenchmark.renderFrame(reference,
+                projection, baseTVec, 0);
+        
+        for (int mode = 0; mode < 2; mode++) {
+            final boolean isPredictedROIEnabled = (mode == 1);
+            final ImageDetectionFilter filter =
+                    BenchmarkFilters.createImageDetectionFilter(
+                            referenceImagePath);
+            filter.setDetectionScale(DETECTION_SCALE);
+            filter.setPredictedROIEnabled(isPredictedROIEnabled);
+            
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                filter.detect(firstFrame);
+            }
+            final long warmupPredictedROIFrames =
+                    filter.getNumPredictedROIFrames();
+            
+            long totalNanos = 0L;
+            int numFound = 0;
+            double totalTranslationError = 0.0;
+            for (int i = 0; i < NUM_FRAMES; i++) {
+                final Mat frame = TrackingBenchmark.renderFrame(
+                        reference, projection, baseTVec, i);
+                
+                final long startNanos = System.nanoTime();
+                filter.detect(frame);
+                totalNanos += System.nanoTime() - startNanos;
+                
+                final float[] glPose = filter.getGLPose();
+                if (glPose == null) {
+                    continue;
+                }
+                numFound++;
+                totalTranslationError += DetectionScaleBenchmark
+                        .getTranslationError(glPose,
+                                TrackingBenchmark.getTVec(baseTVec,
+                                        reference, i));
+            }
+            
+            System.out.println(String.format(
+                    "%s: %.2f ms per frame, found %d/%d, " +
+                            "region searched in %d frames, " +
+                            "mean translation error %.2f%%",
+                    isPredictedROIEnabled ? "predicted region" :
+                            "full frame",
+                    totalNanos / 1e6 / NUM_FRAMES, numFound,
+                    NUM_FRAMES,
+                    filter.getNumPredictedROIFrames() -
+                            warmupPredictedROIFrames,
+                    numFound == 0 ? Double.NaN :
+                            100.0 * totalTranslationError / numFound));
+        }
+    }
+}
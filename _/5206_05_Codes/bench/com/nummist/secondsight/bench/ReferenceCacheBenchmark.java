@@ -0,0 +1,151 @@
+package com.nummist.secondsight.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+import com.nummist.secondsight.filters.ar.ReferenceCache;
+import com.nummist.secondsight.matching.OpenCVMatcher;
+
+// Measures the time to create an image detection filter from each
+// encoded reference image when its keypoints and descriptors are
+// computed, and when they are loaded from a cache file (as after a
+// restart or on resume). Then, checks that both filters find the
+// same pose in a rendered 1280x720 scene.
+//
+// Usage: ReferenceCacheBenchmark [reference image]...
+public final class ReferenceCacheBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final int NUM_REPEATS = 10;
+    
+    private static final String[] DEFAULT_REFERENCE_IMAGE_PATHS = {
+            "res/drawable-mdpi/starry_night.jpg",
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg",
+            "res/drawable-mdpi/akbar_crossing_river.jpg",
+            "res/drawable-mdpi/church_at_auvers_sur_oise.jpg",
+            "res/drawable-mdpi/flight_of_sultan_bahadur.jpg",
+            "res/drawable-mdpi/self_portrait.jpg"
+    };
+    
+    public static void main(final String[] args) throws IOException {
+        final String[] referenceImagePaths = (args.length > 0) ?
+                args : DEFAULT_REFERENCE_IMAGE_PATHS;
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final File directory = new File(System.getProperty(
+                "java.io.tmpdir"), "reference_cache_benchmark");
+        directory.mkdirs();
+        for (final File file : directory.listFiles()) {
+            file.delete();
+        }
+        
+        final CameraProjectionAdapter cameraProjectionAdapter =
+                new CameraProjectionAdapter();
+        cameraProjectionAdapter.setImageSize(WIDTH, HEIGHT);
+        final MatOfDouble projection =
+                cameraProjectionAdapter.getProjectionCV();
+        
+        System.out.println("image\tcompute_ms\tfile_ms\tmax_pose_diff");
+        for (final String path : referenceImagePaths) {
+            final byte[][] encodedImages = { readFile(path) };
+            
+            ReferenceCache.setDirectory(null);
+            double computeMillis = 0.0;
+            ImageDetectionFilter computed = null;
+            for (int i = 0; i < NUM_REPEATS; i++) {
+                final long startNanos = System.nanoTime();
+                computed = new ImageDetectionFilter(encodedImages,
+                        cameraProjectionAdapter, new OpenCVMatcher());
+                computeMillis += (System.nanoTime() - startNanos) /
+                        1000000.0;
+            }
+            
+            // Write the file, then load it.
+            ReferenceCache.setDirectory(directory);
+            new ImageDetectionFilter(encodedImages,
+                    cameraProjectionAdapter, new OpenCVMatcher());
+            final int numLoaded = ReferenceCache.getLoadedCount();
+            double fileMillis = 0.0;
+            ImageDetectionFilter loaded = null;
+            for (int i = 0; i < NUM_REPEATS; i++) {
+                final long startNanos = System.nanoTime();
+                loaded = new ImageDetectionFilter(encodedImages,
+                        cameraProjectionAdapter, new OpenCVMatcher());
+                fileMillis += (System.nanoTime() - startNanos) /
+                        1000000.0;
+            }
+            if (ReferenceCache.getLoadedCount() - numLoaded !=
+                    NUM_REPEATS) {
+                System.out.println(path + ": the cache file was not " +
+                        "loaded");
+            }
+            
+            final Mat reference = Highgui.imread(path,
+                    Highgui.CV_LOAD_IMAGE_COLOR);
+            Imgproc.cvtColor(reference, reference,
+                    Imgproc.COLOR_BGR2RGBA);
+            final Mat scene = DetectionScaleBenchmark.renderScene(
+                    reference, projection, new double[] {
+                            0.2, -0.1, 0.05 },
+                    DetectionScaleBenchmark.getTVec(reference,
+                            projection));
+            computed.detect(scene);
+            loaded.detect(scene);
+            
+            System.out.println(String.format("%s\t%.2f\t%.2f\t%s",
+                    new File(path).getName(),
+                    computeMillis / NUM_REPEATS,
+                    fileMillis / NUM_REPEATS,
+                    getMaxDiff(computed.getGLPose(),
+                            loaded.getGLPose())));
+        }
+    }
+    
+    private static byte[] readFile(final String path)
+            throws IOException {
+        final File file = new File(path);
+        final byte[] bytes = new byte[(int)file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int length = in.read(bytes, offset,
+                        bytes.length - offset);
+                if (length < 0) {
+                    throw new IOException("Failed to read " + path);
+                }
+                offset += length;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+    
+    // Returns the largest difference between the poses, or a note if
+    // either pose is not found.
+    private static String getMaxDiff(final float[] expected,
+            final float[] actual) {
+        if (expected == null || actual == null) {
+            return (expected == actual) ? "neither found" :
+                    "found by one only";
+        }
+        float maxDiff = 0f;
+        for (int i = 0; i < expected.length; i++) {
+            maxDiff = Math.max(maxDiff,
+                    Math.abs(expected[i] - actual[i]));
+        }
+        return Float.toString(maxDiff);
+    }
+}
@@ -0,0 +1,177 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+
+// Renders a reference image at known poses into 1280x720 frames with
+// fresh sensor-like noise in each frame, and compares the matching
+// and pose options of ImageDetectionFilter: the ms per detection, the
+// mean pose error, the jitter of the translation between frames of
+// the same pose, relative to the distance, and the mean inliers.
+//
+// Usage: RobustPoseBenchmark [reference image]
+public final class RobustPoseBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final double[][] RVECS = {
+            { 0.0, 0.0, 0.0 },
+            { 0.35, 0.0, 0.0 },
+            { -0.25, 0.25, -0.2 }
+    };
+    
+    // The standard deviation of the noise, in gray levels.
+    private static final double NOISE_SIGMA = 8.0;
+    
+    private static final double DETECTION_SCALE = 0.5;
+    
+    private static final int WARMUP_FRAMES = 3;
+    private static final int MEASURED_FRAMES = 20;
+    
+    private static final String DEFAULT_REFERENCE_IMAGE_PATH =
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg";
+    
+    private static final String[] MODE_NAMES = {
+            "1.75 x min distance",
+            "ratio test",
+            "ratio test + cross-check",
+            "ratio test + RANSAC",
+            "ratio test + cross-check + RANSAC"
+    };
+    
+    public static void main(final String[] args) {
+        final String referenceImagePath = (args.length > 0) ?
+                args[0] : DEFAULT_REFERENCE_IMAGE_PATH;
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final Mat reference = Highgui.imread(referenceImagePath,
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        if (reference.empty()) {
+            throw new IllegalArgumentException(
+                    "Failed to load reference image: " +
+                            referenceImagePath);
+        }
+        Imgproc.cvtColor(reference, reference, Imgproc.COLOR_BGR2RGBA);
+        
+        final CameraProjectionAdapter cameraProjectionAdapter =
+                new CameraProjectionAdapter();
+        cameraProjectionAdapter.setImageSize(WIDTH, HEIGHT);
+        final MatOfDouble projection =
+                cameraProjectionAdapter.getProjectionCV();
+        
+        final Mat[] scenes = new Mat[RVECS.length];
+        final double[][] tVecs = new double[RVECS.length][];
+        for (int i = 0; i < RVECS.length; i++) {
+            tVecs[i] = DetectionScaleBenchmark.getTVec(reference,
+                    projection);
+            scenes[i] = DetectionScaleBenchmark.renderScene(reference,
+                    projection, RVECS[i], tVecs[i]);
+        }
+        
+        // The noise is signed. Detection only sees the gray levels, so
+        // the noise in the alpha channel does not matter.
+        final Mat noise = new Mat(HEIGHT, WIDTH, CvType.CV_16SC4);
+        final Mat noisyScene = new Mat();
+        final Mat noMask = new Mat();
+        
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            final ImageDetectionFilter filter =
+                    BenchmarkFilters.createImageDetectionFilter(
+                            referenceImagePath);
+            filter.setDetectionScale(DETECTION_SCALE);
+            configure(filter, mode);
+            
+            long totalNanos = 0L;
+            double totalTranslationError = 0.0;
+            double totalRotationErrorDegrees = 0.0;
+            double totalJitter = 0.0;
+            long totalInliers = 0L;
+            int numFound = 0;
+            for (int i = 0; i < scenes.length; i++) {
+                final double[] sum = new double[3];
+                final double[] sumOfSquares = new double[3];
+                int numFoundInScene = 0;
+                for (int j = 0; j < WARMUP_FRAMES + MEASURED_FRAMES;
+                        j++) {
+                    Core.randn(noise, 0.0, NOISE_SIGMA);
+                    Core.add(scenes[i], noise, noisyScene, noMask,
+                            CvType.CV_8U);
+                    
+                    final long startNanos = System.nanoTime();
+                    filter.detect(noisyScene);
+                    if (j < WARMUP_FRAMES) {
+                        continue;
+                    }
+                    totalNanos += System.nanoTime() - startNanos;
+                    
+                    final float[] glPose = filter.getGLPose();
+                    if (glPose == null) {
+                        continue;
+                    }
+                    numFound++;
+                    numFoundInScene++;
+                    totalInliers += filter.getNumInliers();
+                    totalTranslationError += DetectionScaleBenchmark
+                            .getTranslationError(glPose, tVecs[i]);
+                    totalRotationErrorDegrees += DetectionScaleBenchmark
+                            .getRotationErrorDegrees(glPose, RVECS[i]);
+                    for (int k = 0; k < 3; k++) {
+                        sum[k] += glPose[12 + k];
+                        sumOfSquares[k] += glPose[12 + k] *
+                                glPose[12 + k];
+                    }
+                }
+                if (numFoundInScene > 1) {
+                    double variance = 0.0;
+                    for (int k = 0; k < 3; k++) {
+                        final double mean = sum[k] / numFoundInScene;
+                        variance += sumOfSquares[k] / numFoundInScene -
+                                mean * mean;
+                    }
+                    totalJitter += Math.sqrt(Math.max(0.0, variance)) /
+                            tVecs[i][2];
+                }
+            }
+            
+            final int numFrames = scenes.length * MEASURED_FRAMES;
+            System.out.println(String.format(
+                    "%s: %.2f ms per detection, found %d/%d, " +
+                            "mean translation error %.2f%%, " +
+                            "mean rotation error %.2f degrees, " +
+                            "jitter %.2f%%, mean inliers %.1f",
+                    MODE_NAMES[mode], totalNanos / 1e6 / numFrames,
+                    numFound, numFrames,
+                    numFound == 0 ? Double.NaN :
+                            100.0 * totalTranslationError / numFound,
+                    numFound == 0 ? Double.NaN :
+                            totalRotationErrorDegrees / numFound,
+                    100.0 * totalJitter / scenes.length,
+                    numFound == 0 ? Double.NaN :
+                            totalInliers / (double)numFound));
+        }
+    }
+    
+    private static void configure(final ImageDetectionFilter filter,
+            final int mode) {
+        if (mode >= 1) {
+            filter.setRatioTestThreshold(
+                    ImageDetectionFilter.DEFAULT_RATIO_TEST_THRESHOLD);
+        }
+        filter.setCrossCheckEnabled(mode == 2 || mode == 4);
+        if (mode >= 3) {
+            filter.setRansacParameters(
+                    ImageDetectionFilter.DEFAULT_RANSAC_ITERATIONS,
+                    ImageDetectionFilter
+                            .DEFAULT_RANSAC_REPROJECTION_ERROR);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.convolution.StrokeEdgesFilter;
+
+// Compares StrokeEdgesFilter's exact mode (filter2D, bitwise_not and
+// multiply in OpenCV) against its fast mode (one decomposed,
+// fixed-point pass in Java). Prints the milliseconds per frame of
+// each, the speedup, and the maximum per-channel difference, which
+// is 0 for opaque frames.
+public final class StrokeEdgesBenchmark {
+    
+    private static final int[][] RESOLUTIONS = {
+            { 640, 480 },
+            { 1280, 720 },
+            { 1920, 1080 }
+    };
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        final Filter exact = new StrokeEdgesFilter(false);
+        final Filter fast = new StrokeEdgesFilter(true);
+        
+        System.out.println(
+                "resolution\texact_ms\tfast_ms\tspeedup\tmax_diff");
+        for (final int[] resolution : RESOLUTIONS) {
+            final Mat src = BenchmarkUtils.newRandomFrame(
+                    resolution[0], resolution[1]);
+            final double exactMillis = BenchmarkUtils.millisPerFrame(
+                    new Filter[] { exact }, src,
+                    BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                    BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+            final double fastMillis = BenchmarkUtils.millisPerFrame(
+                    new Filter[] { fast }, src,
+                    BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                    BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+            
+            final Mat exactDst = new Mat();
+            final Mat fastDst = new Mat();
+            exact.apply(src, exactDst);
+            fast.apply(src, fastDst);
+            
+            System.out.println(String.format("%dx%d\t%.3f\t%.3f\t%.2f\t%.0f",
+                    resolution[0], resolution[1], exactMillis, fastMillis,
+                    exactMillis / fastMillis,
+                    BenchmarkUtils.maxDifference(exactDst, fastDst)));
+            exactDst.release();
+            fastDst.release();
+            src.release();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.nummist.secondsight.bench;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.Filters;
+import com.nummist.secondsight.filters.JavaPixelFilter;
+import com.nummist.secondsight.filters.PixelFilter;
+import com.nummist.secondsight.filters.swar.SwarKernels;
+
+// Compares the SWAR kernels against the scalar kernels and OpenCV's
+// native implementations, for the mixer filters and the stroke edges
+// filter's multiplication step. For each filter, prints the
+// milliseconds per 1280x720 frame of:
+//
+// - apply() with the scalar backend, which is native OpenCV except
+//   for the min and max mixes
+// - apply() with the SWAR backend
+// - the Java kernel alone (through JavaPixelFilter), scalar and SWAR
+//
+// and the maximum per-channel difference from the scalar output,
+// which must be 0. The runtime selection is printed first.
+public final class SwarKernelsBenchmark {
+    
+    private static final String[] MIXER_NAMES = {
+            "recolor_rc", "recolor_rgv", "recolor_cmv"
+    };
+    
+    public static void main(final String[] args) {
+        BenchmarkUtils.loadOpenCV();
+        
+        System.out.println("SWAR kernels preferred at runtime: " +
+                SwarKernels.isPreferred());
+        
+        final Mat src = BenchmarkUtils.newRandomFrame(1280, 720);
+        System.out.println("filter\tnative_ms\tswar_ms" +
+                "\tjava_scalar_ms\tjava_swar_ms\tmax_diff");
+        for (final String name : MIXER_NAMES) {
+            final PixelFilter filter = (PixelFilter)Filters.create(name);
+            final Filter java = new JavaPixelFilter(filter);
+            final Result nativeResult = measure(filter, src, false);
+            final Result swarResult = measure(filter, src, true);
+            final Result javaScalarResult = measure(java, src, false);
+            final Result javaSwarResult = measure(java, src, true);
+            print(name, nativeResult, swarResult, javaScalarResult,
+                    javaSwarResult);
+        }
+        
+        final Filter strokeEdges = Filters.create("stroke_edges");
+        print("stroke_edges", measure(strokeEdges, src, false),
+                measure(strokeEdges, src, true), null, null);
+        
+        src.release();
+    }
+    
+    private static final class Result {
+        double millisPerFrame;
+        Mat dst;
+    }
+    
+    private static Result measure(final Filter filter, final Mat src,
+            final boolean isSwarPreferred) {
+        final boolean wasSwarPreferred = SwarKernels.isPreferred();
+        SwarKernels.setPreferred(isSwarPreferred);
+        final Result result = new Result();
+        result.millisPerFrame = BenchmarkUtils.millisPerFrame(
+                new Filter[] { filter }, src,
+                BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+        result.dst = new Mat();
+        filter.apply(src, result.dst);
+        SwarKernels.setPreferred(wasSwarPreferred);
+        return result;
+    }
+    
+    // The Java results may be null.
+    private static void print(final String name,
+            final Result nativeResult, final Result swarResult,
+            final Result javaScalarResult, final Result javaSwarResult) {
+        double maxDiff = BenchmarkUtils.maxDifference(nativeResult.dst,
+                swarResult.dst);
+        String javaColumns = "\t-\t-";
+        if (javaScalarResult != null) {
+            maxDiff = Math.max(maxDiff, Math.max(
+                    BenchmarkUtils.maxDifference(nativeResult.dst,
+                            javaScalarResult.dst),
+                    BenchmarkUtils.maxDifference(nativeResult.dst,
+                            javaSwarResult.dst)));
+            javaColumns = String.format("\t%.3f\t%.3f",
+                    javaScalarResult.millisPerFrame,
+                    javaSwarResult.millisPerFrame);
+            javaScalarResult.dst.release();
+            javaSwarResult.dst.release();
+        }
+        System.out.println(String.format("%s\t%.3f\t%.3f%s\t%.0f", name,
+                nativeResult.millisPerFrame, swarResult.millisPerFrame,
+                javaColumns, maxDiff));
+        nativeResult.dst.release();
+        swarResult.dst.release();
+    }
+}
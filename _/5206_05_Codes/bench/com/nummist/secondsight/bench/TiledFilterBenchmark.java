@@ -0,0 +1,135 @@
+package com.nummist.secondsight.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.Filters;
+import com.nummist.secondsight.parallel.TiledFilter;
+import com.nummist.secondsight.parallel.WorkerPool;
+
+// Prints how the ms per frame of tiled filters scales from 1 thread
+// to N threads (the number of processors by default), at 1280x720
+// and 1920x1080, for each filter and for a chain of a curve, a mixer
+// and stroke edges. Each line also prints the Java heap bytes
+// allocated per frame, on the calling thread and the workers
+// together, which should be 0 once the filters' buffers are warm,
+// and the max difference from the untiled filter's output, which
+// should be 0.
+//
+// Usage: TiledFilterBenchmark [max threads] [filter configs...]
+public final class TiledFilterBenchmark {
+    
+    private static final int[][] RESOLUTIONS = {
+            { 1280, 720 },
+            { 1920, 1080 }
+    };
+    
+    private static final String CHAIN_CONFIG =
+            "portra,recolor_rc,stroke_edges";
+    
+    public static void main(final String[] args) {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        String[] configs;
+        if (args.length > 0) {
+            maxThreads = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            configs = new String[args.length - 1];
+            System.arraycopy(args, 1, configs, 0, configs.length);
+        } else {
+            configs = new String[Filters.NAMES.length + 1];
+            System.arraycopy(Filters.NAMES, 0, configs, 0,
+                    Filters.NAMES.length);
+            configs[Filters.NAMES.length] = CHAIN_CONFIG;
+        }
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final WorkerPool[] workerPools = new WorkerPool[maxThreads];
+        for (int i = 0; i < maxThreads; i++) {
+            workerPools[i] = new WorkerPool(i + 1);
+        }
+        
+        for (final int[] resolution : RESOLUTIONS) {
+            final Mat src = BenchmarkUtils.newRandomFrame(resolution[0],
+                    resolution[1]);
+            final Mat expected = new Mat();
+            final Mat actual = new Mat();
+            for (final String config : configs) {
+                Filters.createChain(config).apply(src, expected);
+                double singleThreadMillis = 0.0;
+                for (final WorkerPool workerPool : workerPools) {
+                    final Filter filter = new TiledFilter(
+                            Filters.createChainFactory(config),
+                            workerPool);
+                    final double millis = BenchmarkUtils.millisPerFrame(
+                            new Filter[] { filter }, src,
+                            BenchmarkUtils.DEFAULT_WARMUP_FRAMES,
+                            BenchmarkUtils.DEFAULT_MEASURED_FRAMES);
+                    if (workerPool.getNumWorkers() == 1) {
+                        singleThreadMillis = millis;
+                    }
+                    final double bytes = bytesPerFrame(filter, src,
+                            actual);
+                    filter.apply(src, actual);
+                    System.out.println(String.format(
+                            "%dx%d %s, %d threads: %.3f ms, " +
+                                    "%.2fx speedup, %.0f B/frame, " +
+                                    "max diff %.0f",
+                            resolution[0], resolution[1], config,
+                            workerPool.getNumWorkers(), millis,
+                            singleThreadMillis / millis, bytes,
+                            BenchmarkUtils.maxDifference(expected,
+                                    actual)));
+                }
+            }
+            src.release();
+            expected.release();
+            actual.release();
+        }
+        
+        for (final WorkerPool workerPool : workerPools) {
+            workerPool.close();
+        }
+    }
+    
+    // Returns the heap bytes that all threads allocate per frame while
+    // the filter is applied in place, or -1 if the JVM does not track
+    // allocations. The filter should already be warm.
+    private static double bytesPerFrame(final Filter filter,
+            final Mat src, final Mat frame) {
+        final int numFrames = BenchmarkUtils.DEFAULT_MEASURED_FRAMES;
+        final long startBytes = allocatedBytes();
+        for (int i = 0; i < numFrames; i++) {
+            src.copyTo(frame);
+            filter.apply(frame, frame);
+        }
+        final long endBytes = allocatedBytes();
+        if (startBytes < 0L || endBytes < 0L) {
+            return -1.0;
+        }
+        return (endBytes - startBytes) / (double)numFrames;
+    }
+    
+    // Returns the heap bytes that the live threads have allocated, or
+    // -1 if the JVM does not track allocations. The workers live as
+    // long as their pools, so they are counted in both readings.
+    private static long allocatedBytes() {
+        final ThreadMXBean threadBean =
+                ManagementFactory.getThreadMXBean();
+        if (FilterBenchmarks.allocatedBytes(threadBean,
+                Thread.currentThread().getId()) < 0L) {
+            return -1L;
+        }
+        long bytes = 0L;
+        for (final long threadID : threadBean.getAllThreadIds()) {
+            // A thread that has exited since it was listed reads -1.
+            bytes += Math.max(0L, FilterBenchmarks.allocatedBytes(
+                    threadBean, threadID));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,177 @@
+package com.nummist.secondsight.bench;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
+
+// Compares full detection in every frame against detection followed
+// by optical flow tracking, at several redetection intervals: the
+// average ms per frame, the fraction of frames that were fully
+// detected, and the frames where the target was found. The frames
+// are recorded ones, or by default 1280x720 renders of the reference
+// image along a smooth camera path, where the mean pose error is
+// reported, too.
+//
+// Usage: TrackingBenchmark [--frames <image directory or video>]
+//         [reference image]
+public final class TrackingBenchmark {
+    
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    
+    private static final int SYNTHETIC_FRAMES = 90;
+    
+    private static final double DETECTION_SCALE = 0.5;
+    
+    private static final int WARMUP_FRAMES = 3;
+    
+    // The redetection intervals, where 1 is detection only.
+    private static final int[] REDETECTION_INTERVALS = { 1, 5, 10, 30 };
+    
+    private static final String DEFAULT_REFERENCE_IMAGE_PATH =
+            "res/drawable-mdpi/akbar_hunting_with_cheetahs.jpg";
+    
+    public static void main(final String[] args) throws IOException {
+        String framesPath = null;
+        String referenceImagePath = DEFAULT_REFERENCE_IMAGE_PATH;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--frames")) {
+                framesPath = args[++i];
+            } else {
+                referenceImagePath = args[i];
+            }
+        }
+        
+        BenchmarkUtils.loadOpenCV();
+        
+        final Mat reference = Highgui.imread(referenceImagePath,
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        if (reference.empty()) {
+            throw new IllegalArgumentException(
+                    "Failed to load reference image: " +
+                            referenceImagePath);
+        }
+        Imgproc.cvtColor(reference, reference, Imgproc.COLOR_BGR2RGBA);
+        
+        final CameraProjectionAdapter cameraProjectionAdapter =
+                new CameraProjectionAdapter();
+        cameraProjectionAdapter.setImageSize(WIDTH, HEIGHT);
+        final MatOfDouble projection =
+                cameraProjectionAdapter.getProjectionCV();
+        final double[] baseTVec =
+                DetectionScaleBenchmark.getTVec(reference, projection);
+        
+        final List<Mat> frames = (framesPath == null) ? null :
+                MatcherBenchmark.readFrames(framesPath);
+        final int numFrames = (frames == null) ?
+                SYNTHETIC_FRAMES : frames.size();
+        
+        for (final int interval : REDETECTION_INTERVALS) {
+            final ImageDetectionFilter filter =
+                    BenchmarkFilters.createImageDetectionFilter(
+                            referenceImagePath);
+            filter.setDetectionScale(DETECTION_SCALE);
+            filter.setRatioTestThreshold(
+                    ImageDetectionFilter.DEFAULT_RATIO_TEST_THRESHOLD);
+            filter.setRansacParameters(
+                    ImageDetectionFilter.DEFAULT_RANSAC_ITERATIONS,
+                    ImageDetectionFilter
+                            .DEFAULT_RANSAC_REPROJECTION_ERROR);
+            filter.setTrackingParameters(interval,
+                    ImageDetectionFilter.DEFAULT_MIN_TRACKED_FRACTION);
+            
+            // Warm up on the first frame, then start counting afresh.
+            final Mat firstFrame = (frames == null) ?
+                    renderFrame(reference, projection, baseTVec, 0) :
+                    frames.get(0);
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                filter.detect(firstFrame);
+            }
+            final long warmupDetectedFrames =
+                    filter.getNumDetectedFrames();
+            final long warmupTrackedFrames =
+                    filter.getNumTrackedFrames();
+            
+            long totalNanos = 0L;
+            int numFound = 0;
+            double totalTranslationError = 0.0;
+            for (int i = 0; i < numFrames; i++) {
+                final Mat frame = (frames == null) ?
+                        renderFrame(reference, projection, baseTVec,
+                                i) :
+                        frames.get(i);
+                
+                final long startNanos = System.nanoTime();
+                filter.detect(frame);
+                totalNanos += System.nanoTime() - startNanos;
+                
+                final float[] glPose = filter.getGLPose();
+                if (glPose == null) {
+                    continue;
+                }
+                numFound++;
+                if (frames == null) {
+                    totalTranslationError += DetectionScaleBenchmark
+                            .getTranslationError(glPose,
+                                    getTVec(baseTVec, reference, i));
+                }
+            }
+            
+            final long numDetectedFrames =
+                    filter.getNumDetectedFrames() - warmupDetectedFrames;
+            final long numTrackedFrames =
+                    filter.getNumTrackedFrames() - warmupTrackedFrames;
+            System.out.println(String.format(
+                    "%s: %.2f ms per frame, redetection rate %.2f, " +
+                            "found %d/%d%s",
+                    interval <= 1 ? "detection only" :
+                            "tracking, redetection interval " +
+                                    interval,
+                    totalNanos / 1e6 / numFrames,
+                    numDetectedFrames /
+                            (double)(numDetectedFrames +
+                                    numTrackedFrames),
+                    numFound, numFrames,
+                    (frames != null || numFound == 0) ? "" :
+                            String.format(
+                                    ", mean translation error %.2f%%",
+                                    100.0 * totalTranslationError /
+                                            numFound)));
+        }
+    }
+    
+    // The camera path sways and turns slowly around the base pose,
+    // and completes one cycle in SYNTHETIC_FRAMES frames.
+    static Mat renderFrame(final Mat reference,
+            final MatOfDouble projection, final double[] baseTVec,
+            final int frameIndex) {
+        final double phase =
+                2.0 * Math.PI * frameIndex / SYNTHETIC_FRAMES;
+        final double[] rVec = {
+                0.2 * Math.sin(phase), 0.25 * Math.sin(2.0 * phase),
+                0.1 * Math.cos(phase)
+        };
+        return DetectionScaleBenchmark.renderScene(reference,
+                projection, rVec,
+                getTVec(baseTVec, reference, frameIndex));
+    }
+    
+    static double[] getTVec(final double[] baseTVec,
+            final Mat reference, final int frameIndex) {
+        final double phase =
+                2.0 * Math.PI * frameIndex / SYNTHETIC_FRAMES;
+        return new double[] {
+                baseTVec[0] + 0.1 * reference.cols() * Math.sin(phase),
+                baseTVec[1] + 0.05 * reference.rows() *
+                        Math.cos(phase),
+                baseTVec[2]
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package com.nummist.secondsight.bench.sources;
+
+import java.io.IOException;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.highgui.VideoCapture;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.sources.FrameSource;
+
+// Replays a video file through desktop OpenCV. The Android build of
+// OpenCV cannot open files with VideoCapture, so this source lives
+// with the desktop tools.
+public class VideoFrameSource implements FrameSource {
+    
+    private final VideoCapture mCapture;
+    private final Mat mBgr = new Mat();
+    private final double mFramesPerSecond;
+    private int mNumFramesRead;
+    private long mTimestampNanos;
+    
+    public VideoFrameSource(final String path) throws IOException {
+        mCapture = new VideoCapture(path);
+        if (!mCapture.isOpened()) {
+            throw new IOException("Failed to open video: " + path);
+        }
+        mFramesPerSecond = mCapture.get(Highgui.CV_CAP_PROP_FPS);
+    }
+    
+    @Override
+    public boolean read(final Mat rgba) {
+        if (!mCapture.read(mBgr) || mBgr.empty()) {
+            return false;
+        }
+        Imgproc.cvtColor(mBgr, rgba, Imgproc.COLOR_BGR2RGBA);
+        
+        // After a read, the position is the timestamp of the frame
+        // that was read. Some containers do not report it, so fall
+        // back to the nominal frame rate.
+        final double positionMillis =
+                mCapture.get(Highgui.CV_CAP_PROP_POS_MSEC);
+        if (positionMillis > 0.0 || mNumFramesRead == 0 ||
+                mFramesPerSecond <= 0.0) {
+            mTimestampNanos = (long)(positionMillis * 1e6);
+        } else {
+            mTimestampNanos =
+                    (long)(mNumFramesRead * 1e9 / mFramesPerSecond);
+        }
+        mNumFramesRead++;
+        return true;
+    }
+    
+    @Override
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+    
+    @Override
+    public void close() {
+        mCapture.release();
+        mBgr.release();
+    }
+}
@@ -57,7 +57,9 @@ containing a value of this type.
         public static final int menu_next_image_detection_filter=0x7f030003;
         public static final int menu_next_mixer_filter=0x7f030005;
         public static final int menu_share=0x7f03000b;
+        public static final int menu_show_frame_stats=0x7f03000c;
         public static final int menu_take_photo=0x7f030008;
+        public static final int menu_unfuse_color_stages=0x7f03000d;
     }
     public static final class menu {
         public static final int activity_camera=0x7f060000;
@@ -81,6 +83,9 @@ containing a value of this type.
         public static final int photo_send_extra_subject=0x7f04000e;
         public static final int photo_send_extra_text=0x7f04000f;
         public static final int share=0x7f040010;
+        public static final int frame_stats_empty_message=0x7f040011;
+        public static final int menu_show_frame_stats=0x7f040012;
+        public static final int menu_unfuse_color_stages=0x7f040013;
     }
     public static final class style {
         /** 
@@ -2,6 +2,8 @@ package com.nummist.secondsight;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.net.Uri;
 import android.opengl.GLSurfaceView;
@@ -34,24 +36,33 @@ import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.NativeCameraView;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 
 import com.nummist.secondsight.adapters.CameraProjectionAdapter;
 import com.nummist.secondsight.filters.Filter;
-import com.nummist.secondsight.filters.NoneFilter;
+import com.nummist.secondsight.filters.FilterChain;
+import com.nummist.secondsight.filters.FilterFactory;
+import com.nummist.secondsight.filters.Filters;
+import com.nummist.secondsight.filters.PixelFilter;
+import com.nummist.secondsight.filters.PreallocatedFilter;
 import com.nummist.secondsight.filters.ar.ARFilter;
 import com.nummist.secondsight.filters.ar.ImageDetectionFilter;
 import com.nummist.secondsight.filters.ar.NoneARFilter;
-import com.nummist.secondsight.filters.convolution.StrokeEdgesFilter;
-import com.nummist.secondsight.filters.curve.CrossProcessCurveFilter;
-import com.nummist.secondsight.filters.curve.PortraCurveFilter;
-import com.nummist.secondsight.filters.curve.ProviaCurveFilter;
-import com.nummist.secondsight.filters.curve.VelviaCurveFilter;
-import com.nummist.secondsight.filters.mixer.RecolorCMVFilter;
-import com.nummist.secondsight.filters.mixer.RecolorRCFilter;
-import com.nummist.secondsight.filters.mixer.RecolorRGVFilter;
+import com.nummist.secondsight.filters.ar.ReferenceCache;
+import com.nummist.secondsight.filters.convolution.KernelFilter;
+import com.nummist.secondsight.filters.curve.CurveLUTCache;
+import com.nummist.secondsight.filters.lut.ColorLUT;
+import com.nummist.secondsight.filters.lut.ColorLUTBaker;
+import com.nummist.secondsight.filters.lut.ColorLUTFilter;
+import com.nummist.secondsight.matching.LSHMatcher;
+import com.nummist.secondsight.parallel.TiledFilter;
+import com.nummist.secondsight.parallel.WorkerPool;
+import com.nummist.secondsight.pipeline.FramePipeline;
+import com.nummist.secondsight.stats.FrameStats;
+import com.nummist.secondsight.stats.TimedFilter;
 
 public final class CameraActivity extends FragmentActivity
         implements CvCameraViewListener2 {
@@ -72,11 +83,32 @@ public final class CameraActivity extends FragmentActivity
     private static final String STATE_CONVOLUTION_FILTER_INDEX =
             "convolutionFilterIndex";
     
+    // A key for storing whether the color stages are unfused.
+    private static final String STATE_COLOR_STAGES_UNFUSED =
+            "colorStagesUnfused";
+    
+    // The names of the color filters, as in Filters.create(name).
+    private static final String[] CURVE_FILTER_NAMES = {
+            Filters.NONE, "portra", "provia", "velvia", "cross_process"
+    };
+    private static final String[] MIXER_FILTER_NAMES = {
+            Filters.NONE, "recolor_rc", "recolor_rgv", "recolor_cmv"
+    };
+    private static final String[] CONVOLUTION_FILTER_NAMES = {
+            Filters.NONE, "stroke_edges_fast", "blur", "sharpen",
+            "emboss", "glow"
+    };
+    
+    // The size of the images that the image detection filters find
+    // keypoints in, relative to the camera frames.
+    private static final double IMAGE_DETECTION_SCALE = 0.5;
+    
+    // The size of the lattice that the active curve and mixer filters
+    // are baked into.
+    private static final int COLOR_LUT_SIZE = ColorLUT.SIZE_33;
+    
     // The filters.
     private ARFilter[] mImageDetectionFilters;
-    private Filter[] mCurveFilters;
-    private Filter[] mMixerFilters;
-    private Filter[] mConvolutionFilters;
     
     // The indices of the active filters.
     private int mImageDetectionFilterIndex;
@@ -84,6 +116,45 @@ public final class CameraActivity extends FragmentActivity
     private int mMixerFilterIndex;
     private int mConvolutionFilterIndex;
     
+    // The filter that applies the active curve, mixer, and
+    // convolution filters, or null if none of them is active.
+    private Filter mColorFilter;
+    
+    // The stage of mColorFilter in mFrameStats.
+    private int mColorStage;
+    
+    // Whether the active curve, mixer, and convolution filters are
+    // applied as separate passes, so that mFrameStats times each of
+    // them under its own stage. This is a diagnostic, since it costs
+    // a traversal of the frame per filter.
+    private boolean mAreColorStagesUnfused;
+    
+    // Incremented whenever mColorFilter is recreated, so that a bake
+    // for an earlier selection is ignored.
+    private int mColorFilterGeneration;
+    
+    // The threads that share the color filtering of each frame.
+    private WorkerPool mWorkerPool;
+    
+    // The thread that bakes the active curve and mixer filters into
+    // one 3D lookup table.
+    private ColorLUTBaker mColorLUTBaker;
+    
+    // The threads that filter the camera frames, or null if the
+    // camera view is stopped.
+    private volatile FramePipeline mFramePipeline;
+    
+    // The last filtered frame that was displayed.
+    private Mat mDisplayedFrame;
+
+    // The latencies of each stage of frame processing.
+    private final FrameStats mFrameStats = new FrameStats();
+    
+    // The times of onCreate and onResume, for logging the startup
+    // time when the first frame arrives, or 0 once it is logged.
+    private volatile long mCreateNanos;
+    private volatile long mResumeNanos;
+    
     // The index of the active camera.
     private int mCameraIndex;
     
@@ -121,58 +192,13 @@ public final class CameraActivity extends FragmentActivity
             switch (status) {
                 case LoaderCallbackInterface.SUCCESS:
                     Log.d(TAG, "OpenCV loaded successfully");
-                    mCameraView.enableView();
                     mBgr = new Mat();
+                    createFilters();
                     
-	                final ARFilter starryNight;
-                    try {
-                        starryNight = new ImageDetectionFilter(
-                                CameraActivity.this,
-                                R.drawable.starry_night,
-                                mCameraProjectionAdapter);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to load drawable: " +
-                                "starry_night");
-                        e.printStackTrace();
-                        break;
-                    }
-                    
-                    final ARFilter akbarHunting;
-                    try {
-                        akbarHunting = new ImageDetectionFilter(
-                                CameraActivity.this,
-                                R.drawable.akbar_hunting_with_cheetahs,
-                                mCameraProjectionAdapter);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Failed to load drawable: " +
-                                "akbar_hunting_with_cheetahs");
-                        e.printStackTrace();
-                        break;
-                    }
-                    
-                    mImageDetectionFilters = new ARFilter[] {
-                            new NoneARFilter(),
-                            starryNight,
-                            akbarHunting
-                    };
-                    
-                    mCurveFilters = new Filter[] {
-                            new NoneFilter(),
-                            new PortraCurveFilter(),
-                            new ProviaCurveFilter(),
-                            new VelviaCurveFilter(),
-                            new CrossProcessCurveFilter()
-                    };
-                    mMixerFilters = new Filter[] {
-                            new NoneFilter(),
-                            new RecolorRCFilter(),
-                            new RecolorRGVFilter(),
-                            new RecolorCMVFilter()
-                    };
-                    mConvolutionFilters = new Filter[] {
-                            new NoneFilter(),
-                            new StrokeEdgesFilter(),
-                    };
+                    // Enable the view only once the filters exist,
+                    // since enableView() may call onCameraViewStarted()
+                    // right away, and that preallocates their buffers.
+                    mCameraView.enableView();
                     break;
                 default:
                     super.onManagerConnected(status);
@@ -181,10 +207,95 @@ public final class CameraActivity extends FragmentActivity
         }
     };
     
+    // Creates the image detection filters and the color filter.
+    private void createFilters() {
+        final long startNanos = System.nanoTime();
+        
+        final ImageDetectionFilter starryNight;
+        try {
+            starryNight = new ImageDetectionFilter(this,
+                    R.drawable.starry_night, mCameraProjectionAdapter);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load drawable: " +
+                    "starry_night");
+            e.printStackTrace();
+            return;
+        }
+        
+        final ImageDetectionFilter akbarHunting;
+        try {
+            akbarHunting = new ImageDetectionFilter(this,
+                    R.drawable.akbar_hunting_with_cheetahs,
+                    mCameraProjectionAdapter);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load drawable: " +
+                    "akbar_hunting_with_cheetahs");
+            e.printStackTrace();
+            return;
+        }
+        
+        // Both paintings, in one descriptor index. There are many
+        // reference descriptors, so match them with LSH instead of
+        // brute force.
+        final ImageDetectionFilter allPaintings;
+        try {
+            allPaintings = new ImageDetectionFilter(this,
+                    new int[] {
+                        R.drawable.starry_night,
+                        R.drawable.akbar_hunting_with_cheetahs
+                    },
+                    mCameraProjectionAdapter,
+                    new LSHMatcher());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load drawables: " +
+                    "starry_night, " +
+                    "akbar_hunting_with_cheetahs");
+            e.printStackTrace();
+            return;
+        }
+        
+        starryNight.setDetectionScale(IMAGE_DETECTION_SCALE);
+        akbarHunting.setDetectionScale(IMAGE_DETECTION_SCALE);
+        starryNight.setPredictedROIEnabled(true);
+        akbarHunting.setPredictedROIEnabled(true);
+        allPaintings.setDetectionScale(IMAGE_DETECTION_SCALE);
+        allPaintings.setRatioTestThreshold(
+                ImageDetectionFilter
+                        .DEFAULT_RATIO_TEST_THRESHOLD);
+        allPaintings.setRansacParameters(
+                ImageDetectionFilter
+                        .DEFAULT_RANSAC_ITERATIONS,
+                ImageDetectionFilter
+                        .DEFAULT_RANSAC_REPROJECTION_ERROR);
+        allPaintings.setTrackingParameters(
+                ImageDetectionFilter
+                        .DEFAULT_REDETECTION_INTERVAL,
+                ImageDetectionFilter
+                        .DEFAULT_MIN_TRACKED_FRACTION);
+        
+        mImageDetectionFilters = new ARFilter[] {
+                new NoneARFilter(),
+                starryNight,
+                akbarHunting,
+                allPaintings
+        };
+        
+        updateARFilter();
+        updateColorFilter();
+        Log.i(TAG, String.format(
+                "Filters created in %.1f ms; curve " +
+                "tables compiled %d, loaded %d",
+                (System.nanoTime() - startNanos) /
+                        1000000.0,
+                CurveLUTCache.getCompiledCount(),
+                CurveLUTCache.getLoadedCount()));
+    }
+    
     @SuppressLint("NewApi")
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateNanos = System.nanoTime();
         
         final Window window = getWindow();
         window.addFlags(
@@ -201,6 +312,8 @@ public final class CameraActivity extends FragmentActivity
                     STATE_MIXER_FILTER_INDEX, 0);
             mConvolutionFilterIndex = savedInstanceState.getInt(
                     STATE_CONVOLUTION_FILTER_INDEX, 0);
+            mAreColorStagesUnfused = savedInstanceState.getBoolean(
+                    STATE_COLOR_STAGES_UNFUSED, false);
         } else {
             mCameraIndex = 0;
             mImageDetectionFilterIndex = 0;
@@ -234,6 +347,11 @@ public final class CameraActivity extends FragmentActivity
         
         mCameraProjectionAdapter = new CameraProjectionAdapter();
         
+        mWorkerPool = new WorkerPool();
+        CurveLUTCache.setDirectory(getCacheDir());
+        ReferenceCache.setDirectory(getCacheDir());
+        mColorLUTBaker = new ColorLUTBaker();
+        
         mARRenderer = new ARCubeRenderer();
         mARRenderer.cameraProjectionAdapter =
                 mCameraProjectionAdapter;
@@ -244,7 +362,7 @@ public final class CameraActivity extends FragmentActivity
                 Build.VERSION_CODES.GINGERBREAD) {
             CameraInfo cameraInfo = new CameraInfo();
             Camera.getCameraInfo(mCameraIndex, cameraInfo);
-            mIsCameraFrontFacing = 
+            mIsCameraFrontFacing =
                     (cameraInfo.facing ==
                     CameraInfo.CAMERA_FACING_FRONT);
             mNumCameras = Camera.getNumberOfCameras();
@@ -275,6 +393,8 @@ public final class CameraActivity extends FragmentActivity
                 mMixerFilterIndex);
         savedInstanceState.putInt(STATE_CONVOLUTION_FILTER_INDEX,
                 mConvolutionFilterIndex);
+        savedInstanceState.putBoolean(STATE_COLOR_STAGES_UNFUSED,
+                mAreColorStagesUnfused);
         
         super.onSaveInstanceState(savedInstanceState);
     }
@@ -290,6 +410,7 @@ public final class CameraActivity extends FragmentActivity
     @Override
     public void onResume() {
         super.onResume();
+        mResumeNanos = System.nanoTime();
         OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION_2_4_3,
                 this, mLoaderCallback);
         mIsMenuLocked = false;
@@ -301,6 +422,12 @@ public final class CameraActivity extends FragmentActivity
         if (mCameraView != null) {
             mCameraView.disableView();
         }
+        if (mWorkerPool != null) {
+            mWorkerPool.close();
+        }
+        if (mColorLUTBaker != null) {
+            mColorLUTBaker.close();
+        }
     }
     
     @Override
@@ -311,6 +438,8 @@ public final class CameraActivity extends FragmentActivity
             // only 1.
             menu.removeItem(R.id.menu_next_camera);
         }
+        menu.findItem(R.id.menu_unfuse_color_stages).setChecked(
+                mAreColorStagesUnfused);
         return true;
     }
     
@@ -326,27 +455,29 @@ public final class CameraActivity extends FragmentActivity
                     mImageDetectionFilters.length) {
             	mImageDetectionFilterIndex = 0;
             }
-            mARRenderer.filter = mImageDetectionFilters[
-                    mImageDetectionFilterIndex];
+            updateARFilter();
             return true;
         case R.id.menu_next_curve_filter:
             mCurveFilterIndex++;
-            if (mCurveFilterIndex == mCurveFilters.length) {
+            if (mCurveFilterIndex == CURVE_FILTER_NAMES.length) {
                 mCurveFilterIndex = 0;
             }
+            updateColorFilter();
             return true;
         case R.id.menu_next_mixer_filter:
             mMixerFilterIndex++;
-            if (mMixerFilterIndex == mMixerFilters.length) {
+            if (mMixerFilterIndex == MIXER_FILTER_NAMES.length) {
                 mMixerFilterIndex = 0;
             }
+            updateColorFilter();
             return true;
         case R.id.menu_next_convolution_filter:
             mConvolutionFilterIndex++;
             if (mConvolutionFilterIndex ==
-                    mConvolutionFilters.length) {
+                    CONVOLUTION_FILTER_NAMES.length) {
                 mConvolutionFilterIndex = 0;
             }
+            updateColorFilter();
             return true;
         case R.id.menu_next_camera:
             mIsMenuLocked = true;
@@ -358,6 +489,14 @@ public final class CameraActivity extends FragmentActivity
             }
             recreate();
             
+            return true;
+        case R.id.menu_show_frame_stats:
+            showFrameStats();
+            return true;
+        case R.id.menu_unfuse_color_stages:
+            mAreColorStagesUnfused = !mAreColorStagesUnfused;
+            item.setChecked(mAreColorStagesUnfused);
+            updateColorFilter();
             return true;
         case R.id.menu_take_photo:
             mIsMenuLocked = true;
@@ -374,43 +513,288 @@ public final class CameraActivity extends FragmentActivity
     @Override
     public void onCameraViewStarted(final int width,
     		final int height) {
+        // Allocate the buffers for frames of this size up front. In
+        // debug builds, any further allocation throws.
+        if (mImageDetectionFilters != null) {
+            for (final ARFilter filter : mImageDetectionFilters) {
+                if (filter instanceof PreallocatedFilter) {
+                    final PreallocatedFilter preallocatedFilter =
+                            (PreallocatedFilter)filter;
+                    preallocatedFilter.preallocate(width, height);
+                    preallocatedFilter.getMatPool().setStrict(
+                            BuildConfig.DEBUG);
+                }
+            }
+        }
+        if (mBgr != null) {
+            mBgr.create(height, width, CvType.CV_8UC3);
+        }
+        
+        final FramePipeline framePipeline = new FramePipeline(width,
+                height, FramePipeline.DEFAULT_NUM_SLOTS, mFrameStats);
+        if (mImageDetectionFilters != null) {
+            framePipeline.setARFilter(getActiveARFilter());
+        }
+        framePipeline.setColorFilter(mColorFilter, mColorStage);
+        framePipeline.start();
+        mFramePipeline = framePipeline;
     }
 
     @Override
     public void onCameraViewStopped() {
+        final FramePipeline framePipeline = mFramePipeline;
+        if (framePipeline == null) {
+            return;
+        }
+        mFramePipeline = null;
+        Log.d(TAG, "Frame pipeline stopped: " + framePipeline);
+        Log.d(TAG, "Frame stats:\n" + mFrameStats);
+        if (mImageDetectionFilters != null) {
+            for (final ARFilter filter : mImageDetectionFilters) {
+                if (filter instanceof PreallocatedFilter) {
+                    Log.d(TAG, "Buffers: " +
+                            ((PreallocatedFilter)filter).getMatPool());
+                }
+            }
+        }
+        framePipeline.stop();
+        mDisplayedFrame = null;
     }
 
     @Override
     public Mat onCameraFrame(final CvCameraViewFrame inputFrame) {
+        final long startNanos = System.nanoTime();
         final Mat rgba = inputFrame.rgba();
-        
-        // Apply the active filters.
-        if (mImageDetectionFilters != null) {
-            mImageDetectionFilters[mImageDetectionFilterIndex].apply(
-                    rgba, rgba);
-        }
-        if (mCurveFilters != null) {
-            mCurveFilters[mCurveFilterIndex].apply(rgba, rgba);
+        if (mResumeNanos != 0L) {
+            logStartupTime(startNanos);
         }
-        if (mMixerFilters != null) {
-            mMixerFilters[mMixerFilterIndex].apply(rgba, rgba);
+        
+        final FramePipeline framePipeline = mFramePipeline;
+        if (framePipeline == null) {
+            return rgba;
         }
-        if (mConvolutionFilters != null) {
-            mConvolutionFilters[mConvolutionFilterIndex].apply(
-                    rgba, rgba);
+        
+        // Hand the frame to the filter threads and get the newest
+        // filtered frame.
+        Mat frame = framePipeline.submit(rgba);
+        if (frame != null) {
+            mDisplayedFrame = frame;
+        } else if (mDisplayedFrame != null) {
+            // No new frame is filtered yet, so show the last one
+            // again. It is already mirrored if necessary.
+            mFrameStats.recordSince(FrameStats.STAGE_CAMERA_FRAME,
+                    startNanos);
+            return mDisplayedFrame;
+        } else {
+            // No frame is filtered yet, so show the raw frame.
+            frame = rgba;
         }
         
         if (mIsPhotoPending) {
             mIsPhotoPending = false;
-            takePhoto(rgba);
+            final long photoStartNanos = System.nanoTime();
+            takePhoto(frame);
+            mFrameStats.recordSince(FrameStats.STAGE_PHOTO,
+                    photoStartNanos);
         }
         
         if (mIsCameraFrontFacing) {
             // Mirror (horizontally flip) the preview.
-            Core.flip(rgba, rgba, 1);
+            final long flipStartNanos = System.nanoTime();
+            Core.flip(frame, frame, 1);
+            mFrameStats.recordSince(FrameStats.STAGE_FLIP,
+                    flipStartNanos);
+        }
+        
+        mFrameStats.recordSince(FrameStats.STAGE_CAMERA_FRAME,
+                startNanos);
+        return frame;
+    }
+    
+    private ARFilter getActiveARFilter() {
+        final ARFilter filter =
+                mImageDetectionFilters[mImageDetectionFilterIndex];
+        if (filter instanceof NoneARFilter) {
+            // Do not copy frames for a filter that does nothing.
+            return null;
+        }
+        return filter;
+    }
+    
+    private void updateARFilter() {
+        mARRenderer.filter = mImageDetectionFilters[
+                mImageDetectionFilterIndex];
+        final FramePipeline framePipeline = mFramePipeline;
+        if (framePipeline != null) {
+            framePipeline.setARFilter(getActiveARFilter());
+        }
+    }
+    
+    // Selects the filter that applies the active curve, mixer, and
+    // convolution filters. The chain skips the inactive ones and
+    // fuses the active ones so that the frame is traversed only once.
+    // Each of the worker pool's threads applies its own chain to
+    // stripes of the frame.
+    private void updateColorFilter() {
+        if (mImageDetectionFilters == null) {
+            // OpenCV is not loaded yet. The filter will be created
+            // once it is.
+            return;
+        }
+        
+        final String curveFilterName =
+                CURVE_FILTER_NAMES[mCurveFilterIndex];
+        final String mixerFilterName =
+                MIXER_FILTER_NAMES[mMixerFilterIndex];
+        final String convolutionFilterName =
+                CONVOLUTION_FILTER_NAMES[mConvolutionFilterIndex];
+        
+        int activeStage = FrameStats.STAGE_FUSED_COLOR;
+        int numActiveFilters = 0;
+        if (!curveFilterName.equals(Filters.NONE)) {
+            activeStage = FrameStats.STAGE_CURVE;
+            numActiveFilters++;
+        }
+        if (!mixerFilterName.equals(Filters.NONE)) {
+            activeStage = FrameStats.STAGE_MIXER;
+            numActiveFilters++;
+        }
+        if (!convolutionFilterName.equals(Filters.NONE)) {
+            activeStage = FrameStats.STAGE_CONVOLUTION;
+            numActiveFilters++;
+        }
+        
+        final Filter convolutionFilter =
+                Filters.create(convolutionFilterName);
+        if (convolutionFilter instanceof KernelFilter) {
+            // Log the strategy, whose cost is recorded under the
+            // convolution stage when it is the only active filter or
+            // the color stages are unfused.
+            Log.d(TAG, "Convolution filter: " + convolutionFilter);
         }
         
-        return rgba;
+        final boolean isUnfused =
+                mAreColorStagesUnfused && numActiveFilters > 1;
+        if (numActiveFilters == 0) {
+            mColorFilter = null;
+        } else if (isUnfused) {
+            mColorFilter = createUnfusedColorFilter(curveFilterName,
+                    mixerFilterName, convolutionFilterName);
+        } else {
+            mColorFilter = new TiledFilter(Filters.createChainFactory(
+                    curveFilterName + "," + mixerFilterName + "," +
+                            convolutionFilterName),
+                    mWorkerPool);
+        }
+        mColorStage = (numActiveFilters > 1) ?
+                FrameStats.STAGE_FUSED_COLOR : activeStage;
+        mColorFilterGeneration++;
+        setFramePipelineColorFilter();
+        
+        // A curve and a mixer are cheaper as one table lookup. Until
+        // the table is baked, they run unbaked. Unfused, they stay
+        // separate.
+        if (!isUnfused && !curveFilterName.equals(Filters.NONE) &&
+                !mixerFilterName.equals(Filters.NONE)) {
+            bakeColorFilter(curveFilterName, mixerFilterName,
+                    convolutionFilterName);
+        }
+    }
+    
+    // Returns a chain that applies each active color filter in its own
+    // tiled pass, and records each pass's latency under its own
+    // stage. The whole chain's latency is still recorded under
+    // STAGE_FUSED_COLOR.
+    private Filter createUnfusedColorFilter(
+            final String curveFilterName, final String mixerFilterName,
+            final String convolutionFilterName) {
+        final List<Filter> stages = new ArrayList<Filter>();
+        addTimedColorStage(curveFilterName, FrameStats.STAGE_CURVE,
+                stages);
+        addTimedColorStage(mixerFilterName, FrameStats.STAGE_MIXER,
+                stages);
+        addTimedColorStage(convolutionFilterName,
+                FrameStats.STAGE_CONVOLUTION, stages);
+        return new FilterChain(stages.toArray(
+                new Filter[stages.size()]));
+    }
+    
+    private void addTimedColorStage(final String filterName,
+            final int stage, final List<Filter> stages) {
+        if (filterName.equals(Filters.NONE)) {
+            return;
+        }
+        stages.add(new TimedFilter(new TiledFilter(
+                Filters.createChainFactory(filterName), mWorkerPool),
+                mFrameStats, stage));
+    }
+    
+    private void bakeColorFilter(final String curveFilterName,
+            final String mixerFilterName,
+            final String convolutionFilterName) {
+        final int generation = mColorFilterGeneration;
+        final PixelFilter[] pixelFilters = {
+                (PixelFilter)Filters.create(curveFilterName),
+                (PixelFilter)Filters.create(mixerFilterName)
+        };
+        mColorLUTBaker.bake(pixelFilters, COLOR_LUT_SIZE,
+                new ColorLUTBaker.Callback() {
+            @Override
+            public void onBaked(final ColorLUT lut,
+                    final ColorLUT.Accuracy accuracy) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mColorFilterGeneration) {
+                            // The selection has changed since.
+                            return;
+                        }
+                        mColorFilter = new TiledFilter(
+                                new FilterFactory() {
+                            @Override
+                            public Filter create() {
+                                return new FilterChain(
+                                        new ColorLUTFilter(lut),
+                                        Filters.create(
+                                                convolutionFilterName));
+                            }
+                        }, mWorkerPool);
+                        setFramePipelineColorFilter();
+                    }
+                });
+            }
+        });
+    }
+    
+    private void logStartupTime(final long firstFrameNanos) {
+        final long createNanos = mCreateNanos;
+        if (createNanos != 0L) {
+            Log.i(TAG, String.format(
+                    "First frame %.1f ms after onCreate",
+                    (firstFrameNanos - createNanos) / 1000000.0));
+            mCreateNanos = 0L;
+        }
+        Log.i(TAG, String.format("First frame %.1f ms after onResume",
+                (firstFrameNanos - mResumeNanos) / 1000000.0));
+        mResumeNanos = 0L;
+    }
+    
+    private void setFramePipelineColorFilter() {
+        final FramePipeline framePipeline = mFramePipeline;
+        if (framePipeline != null) {
+            framePipeline.setColorFilter(mColorFilter, mColorStage);
+        }
+    }
+    
+    // Logs and shows the latencies of each stage of frame
+    // processing since the last time they were shown.
+    private void showFrameStats() {
+        final String frameStats = mFrameStats.toString();
+        mFrameStats.reset();
+        Log.i(TAG, "Frame stats:\n" + frameStats);
+        Toast.makeText(this, frameStats.length() > 0 ? frameStats :
+                getString(R.string.frame_stats_empty_message),
+                Toast.LENGTH_LONG).show();
     }
     
     private void takePhoto(final Mat rgba) {
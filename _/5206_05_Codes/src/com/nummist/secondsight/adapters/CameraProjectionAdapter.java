@@ -22,6 +22,10 @@ public class CameraProjectionAdapter {
     MatOfDouble mProjectionCV;
     boolean mProjectionDirtyCV = true;
     
+    MatOfDouble mScaledProjectionCV;
+    double mScaledProjectionScale;
+    boolean mScaledProjectionDirtyCV = true;
+    
     public void setCameraParameters(Parameters parameters) {
         mFOVY = parameters.getVerticalViewAngle();
         mFOVX = parameters.getHorizontalViewAngle();
@@ -32,6 +36,17 @@ public class CameraProjectionAdapter {
         
         mProjectionDirtyGL = true;
         mProjectionDirtyCV = true;
+        mScaledProjectionDirtyCV = true;
+    }
+    
+    // Sets the size of the images whose points are projected, for
+    // images that do not come from the camera, such as recorded
+    // frames.
+    public void setImageSize(final int widthPx, final int heightPx) {
+        mWidthPx = widthPx;
+        mHeightPx = heightPx;
+        mProjectionDirtyCV = true;
+        mScaledProjectionDirtyCV = true;
     }
     
     public void setClipDistances(float near, float far) {
@@ -67,7 +82,7 @@ public class CameraProjectionAdapter {
                     (Math.pow(mFOVX, 2.0) +
                     Math.pow(mFOVY, 2.0)));
             double focalLengthPx = diagonalPx /
-                    (2.0 * Math.tan(0.5 * diagonalFOV));
+                    (2.0 * Math.tan(0.5 * Math.toRadians(diagonalFOV)));
             
             mProjectionCV.put(0, 0, focalLengthPx);
             mProjectionCV.put(0, 1, 0.0);
@@ -77,8 +92,39 @@ public class CameraProjectionAdapter {
             mProjectionCV.put(1, 2, 0.5 * mHeightPx);
             mProjectionCV.put(2, 0, 0.0);
             mProjectionCV.put(2, 1, 0.0);
-            mProjectionCV.put(2, 2, 0.0);
+            mProjectionCV.put(2, 2, 1.0);
+            mProjectionDirtyCV = false;
         }
         return mProjectionCV;
     }
+    
+    // Returns the projection matrix for images that are resized by
+    // the given factor, such as downscaled images for feature
+    // detection. The focal length and the principal point scale
+    // with the image.
+    public MatOfDouble getProjectionCV(final double scale) {
+        if (scale == 1.0) {
+            return getProjectionCV();
+        }
+        if (mScaledProjectionDirtyCV ||
+                scale != mScaledProjectionScale) {
+            if (mScaledProjectionCV == null) {
+                mScaledProjectionCV = new MatOfDouble();
+                mScaledProjectionCV.create(3, 3, CvType.CV_64FC1);
+            }
+            
+            final double[] projection = new double[9];
+            getProjectionCV().get(0, 0, projection);
+            
+            // Scale the first two rows: fx, cx, fy, and cy.
+            for (int i = 0; i < 6; i++) {
+                projection[i] *= scale;
+            }
+            mScaledProjectionCV.put(0, 0, projection);
+            
+            mScaledProjectionScale = scale;
+            mScaledProjectionDirtyCV = false;
+        }
+        return mScaledProjectionCV;
+    }
 }
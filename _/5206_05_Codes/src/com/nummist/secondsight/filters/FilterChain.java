@@ -0,0 +1,109 @@
+package com.nummist.secondsight.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.convolution.StrokeEdgesFilter;
+
+// Applies a sequence of filters, of any length, as one filter.
+//
+// The stages are planned when the chain is built. NoneFilters are
+// dropped, nested chains are flattened, and each run of PixelFilters,
+// with the StrokeEdgesFilter that may follow it, is fused into one
+// FusedColorFilter.
+//
+// When the chain is applied, only the first stage reads src. It
+// writes dst, and each later stage filters dst in place. So, adding
+// stages never adds copies: src is copied into dst only if there are
+// no stages at all.
+public class FilterChain implements Filter {
+    
+    private final Filter[] mStages;
+    
+    public FilterChain(final Filter... filters) {
+        final List<Filter> filterList = new ArrayList<Filter>();
+        addFilters(filters, filterList);
+        
+        final List<Filter> stageList = new ArrayList<Filter>();
+        final List<PixelFilter> pixelFilters =
+                new ArrayList<PixelFilter>();
+        for (final Filter filter : filterList) {
+            if (filter instanceof PixelFilter) {
+                pixelFilters.add((PixelFilter)filter);
+            } else if (filter instanceof StrokeEdgesFilter) {
+                addPixelStage(pixelFilters, (StrokeEdgesFilter)filter,
+                        stageList);
+                pixelFilters.clear();
+            } else {
+                addPixelStage(pixelFilters, null, stageList);
+                pixelFilters.clear();
+                stageList.add(filter);
+            }
+        }
+        addPixelStage(pixelFilters, null, stageList);
+        
+        mStages = stageList.toArray(new Filter[stageList.size()]);
+    }
+    
+    // Returns the filters that are applied in order, after NoneFilters
+    // are dropped and pixel filters are fused.
+    public Filter[] getStages() {
+        return mStages.clone();
+    }
+    
+    public boolean isEmpty() {
+        return mStages.length == 0;
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        if (mStages.length == 0) {
+            if (src != dst) {
+                src.copyTo(dst);
+            }
+            return;
+        }
+        // After the first stage, filter in place.
+        mStages[0].apply(src, dst);
+        for (int i = 1; i < mStages.length; i++) {
+            mStages[i].apply(dst, dst);
+        }
+    }
+    
+    private static void addFilters(final Filter[] filters,
+            final List<Filter> filterList) {
+        for (final Filter filter : filters) {
+            if (filter instanceof NoneFilter) {
+                continue;
+            }
+            if (filter instanceof FilterChain) {
+                addFilters(((FilterChain)filter).mStages, filterList);
+            } else {
+                filterList.add(filter);
+            }
+        }
+    }
+    
+    // Adds a stage that applies the pixel filters and then the stroke
+    // edges filter, either of which may be absent.
+    private static void addPixelStage(
+            final List<PixelFilter> pixelFilters,
+            final StrokeEdgesFilter strokeEdgesFilter,
+            final List<Filter> stageList) {
+        final int numFilters = pixelFilters.size() +
+                (strokeEdgesFilter == null ? 0 : 1);
+        if (numFilters == 0) {
+            return;
+        }
+        if (numFilters == 1) {
+            stageList.add(strokeEdgesFilter == null ?
+                    pixelFilters.get(0) : strokeEdgesFilter);
+            return;
+        }
+        stageList.add(new FusedColorFilter(pixelFilters.toArray(
+                new PixelFilter[pixelFilters.size()]),
+                strokeEdgesFilter));
+    }
+}
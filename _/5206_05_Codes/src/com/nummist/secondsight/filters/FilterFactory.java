@@ -0,0 +1,7 @@
+package com.nummist.secondsight.filters;
+
+// Creates independent instances of a filter, for example one per
+// thread, since a filter's buffers must not be shared between threads.
+public interface FilterFactory {
+    public abstract Filter create();
+}
@@ -0,0 +1,102 @@
+package com.nummist.secondsight.filters;
+
+import com.nummist.secondsight.filters.convolution.KernelFilter;
+import com.nummist.secondsight.filters.convolution.StrokeEdgesFilter;
+import com.nummist.secondsight.filters.curve.CrossProcessCurveFilter;
+import com.nummist.secondsight.filters.curve.PortraCurveFilter;
+import com.nummist.secondsight.filters.curve.ProviaCurveFilter;
+import com.nummist.secondsight.filters.curve.VelviaCurveFilter;
+import com.nummist.secondsight.filters.mixer.RecolorCMVFilter;
+import com.nummist.secondsight.filters.mixer.RecolorRCFilter;
+import com.nummist.secondsight.filters.mixer.RecolorRGVFilter;
+
+// Creates filters by name, so that filter chains can be configured
+// as text. A per-pixel filter's name may end in JAVA_SUFFIX, such as
+// "portra@java", to run its pure-Java kernel instead of its OpenCV
+// calls.
+public final class Filters {
+    
+    public static final String NONE = "none";
+    
+    public static final String JAVA_SUFFIX = "@java";
+    
+    public static final String[] NAMES = {
+            "portra", "provia", "velvia", "cross_process",
+            "recolor_rc", "recolor_rgv", "recolor_cmv",
+            "stroke_edges", "stroke_edges_fast",
+            "blur", "sharpen", "emboss", "glow"
+    };
+    
+    // The radius and strength of the "glow" filter.
+    private static final int GLOW_RADIUS = 15;
+    private static final float GLOW_STRENGTH = 0.6f;
+    
+    private Filters() {
+    }
+    
+    public static Filter create(final String name) {
+        if (name.endsWith(JAVA_SUFFIX)) {
+            final Filter filter = create(name.substring(0,
+                    name.length() - JAVA_SUFFIX.length()));
+            if (!(filter instanceof PixelFilter)) {
+                throw new IllegalArgumentException(
+                        "Not a per-pixel filter: " + name);
+            }
+            if (filter instanceof NoneFilter) {
+                return filter;
+            }
+            return new JavaPixelFilter((PixelFilter)filter);
+        } else if (name.equals(NONE)) {
+            return new NoneFilter();
+        } else if (name.equals("portra")) {
+            return new PortraCurveFilter();
+        } else if (name.equals("provia")) {
+            return new ProviaCurveFilter();
+        } else if (name.equals("velvia")) {
+            return new VelviaCurveFilter();
+        } else if (name.equals("cross_process")) {
+            return new CrossProcessCurveFilter();
+        } else if (name.equals("recolor_rc")) {
+            return new RecolorRCFilter();
+        } else if (name.equals("recolor_rgv")) {
+            return new RecolorRGVFilter();
+        } else if (name.equals("recolor_cmv")) {
+            return new RecolorCMVFilter();
+        } else if (name.equals("stroke_edges")) {
+            return new StrokeEdgesFilter();
+        } else if (name.equals("stroke_edges_fast")) {
+            return new StrokeEdgesFilter(true);
+        } else if (name.equals("blur")) {
+            return KernelFilter.newBlur(2);
+        } else if (name.equals("sharpen")) {
+            return KernelFilter.newSharpen();
+        } else if (name.equals("emboss")) {
+            return KernelFilter.newEmboss();
+        } else if (name.equals("glow")) {
+            return KernelFilter.newGlow(GLOW_RADIUS, GLOW_STRENGTH);
+        }
+        throw new IllegalArgumentException("Unknown filter: " + name);
+    }
+    
+    // Creates a chain from filter names that are separated by commas
+    // or whitespace, such as "portra, recolor_rc, stroke_edges".
+    public static FilterChain createChain(final String config) {
+        final String[] names = config.trim().split("[,\\s]+");
+        final Filter[] filters = new Filter[names.length];
+        for (int i = 0; i < names.length; i++) {
+            filters[i] = (names[i].length() == 0) ?
+                    new NoneFilter() : create(names[i]);
+        }
+        return new FilterChain(filters);
+    }
+    
+    // Returns a factory for independent chains with the given config.
+    public static FilterFactory createChainFactory(final String config) {
+        return new FilterFactory() {
+            @Override
+            public Filter create() {
+                return createChain(config);
+            }
+        };
+    }
+}
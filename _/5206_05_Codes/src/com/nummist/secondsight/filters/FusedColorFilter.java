@@ -0,0 +1,97 @@
+package com.nummist.secondsight.filters;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.convolution.StrokeEdgesFilter;
+
+// Applies a sequence of per-pixel filters and, optionally, a
+// StrokeEdgesFilter as one streaming pass over the frame. Each row
+// goes through all of the per-pixel filters while it is still in
+// the cache, and the edges of a row are stroked as soon as the rows
+// below it are ready. No intermediate Mats are used: the frame is
+// read once and written once.
+public class FusedColorFilter implements LocalFilter {
+    
+    private final PixelFilter[] mPixelFilters;
+    private final StrokeEdgesFilter mStrokeEdgesFilter;
+    
+    // The frame's pixels after the per-pixel filters.
+    private byte[] mPixels;
+    
+    // The frame's pixels after the stroke edges filter.
+    private byte[] mStrokedPixels;
+    
+    // The stroke edges filter may be null. NoneFilters are skipped.
+    public FusedColorFilter(final PixelFilter[] pixelFilters,
+            final StrokeEdgesFilter strokeEdgesFilter) {
+        int numPixelFilters = 0;
+        for (final PixelFilter filter : pixelFilters) {
+            if (!(filter instanceof NoneFilter)) {
+                numPixelFilters++;
+            }
+        }
+        mPixelFilters = new PixelFilter[numPixelFilters];
+        int i = 0;
+        for (final PixelFilter filter : pixelFilters) {
+            if (!(filter instanceof NoneFilter)) {
+                mPixelFilters[i++] = filter;
+            }
+        }
+        mStrokeEdgesFilter = strokeEdgesFilter;
+    }
+    
+    @Override
+    public int getRadius() {
+        return (mStrokeEdgesFilter == null) ?
+                0 : mStrokeEdgesFilter.getRadius();
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        final int cols = src.cols();
+        final int rows = src.rows();
+        final int stride = 4 * cols;
+        final int length = stride * rows;
+        if (mPixels == null || mPixels.length < length) {
+            mPixels = new byte[length];
+            mStrokedPixels = (mStrokeEdgesFilter == null) ?
+                    null : new byte[length];
+        }
+        
+        src.get(0, 0, mPixels);
+        
+        if (mStrokeEdgesFilter == null) {
+            for (int y = 0; y < rows; y++) {
+                applyPixelFilters(y * stride, stride);
+            }
+            dst.create(src.size(), src.type());
+            dst.put(0, 0, mPixels);
+            return;
+        }
+        
+        final int radius = StrokeEdgesFilter.KERNEL_RADIUS;
+        for (int y = 0; y < rows; y++) {
+            applyPixelFilters(y * stride, stride);
+            
+            // The row that is radius rows above this one now has
+            // all of its neighbors.
+            final int readyRow = y - radius;
+            if (readyRow >= 0) {
+                mStrokeEdgesFilter.applyToPixels(mPixels,
+                        mStrokedPixels, cols, rows, readyRow,
+                        readyRow + 1);
+            }
+        }
+        mStrokeEdgesFilter.applyToPixels(mPixels, mStrokedPixels,
+                cols, rows, Math.max(0, rows - radius), rows);
+        
+        dst.create(src.size(), src.type());
+        dst.put(0, 0, mStrokedPixels);
+    }
+    
+    private void applyPixelFilters(final int offset, final int length) {
+        for (final PixelFilter filter : mPixelFilters) {
+            filter.applyToPixels(mPixels, offset, length);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.nummist.secondsight.filters;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.parallel.WorkerPool;
+
+// Applies a per-pixel filter with its pure-Java kernel instead of its
+// OpenCV calls: the frame is read into a byte array once, filtered in
+// place in bands of rows, and written back once. Nothing is allocated
+// per frame once the array matches the frame size.
+//
+// With a WorkerPool, the bands are shared between its workers, so the
+// wrapped filter's applyToPixels must be safe to call concurrently on
+// separate ranges. Every per-pixel filter in this package is, since
+// none of them modify shared state while filtering: the only state
+// that one keeps, ChannelMixerFilter's buffer for the SWAR kernels,
+// is kept per thread.
+//
+// A frame must be RGBA. The output is bit-exact with the wrapped
+// filter's apply(src, dst).
+public class JavaPixelFilter implements PixelFilter, WorkerPool.Task {
+    
+    // The number of bands per worker, when a pool is used.
+    private static final int BANDS_PER_WORKER = 4;
+    
+    private final PixelFilter mFilter;
+    private final WorkerPool mWorkerPool;
+    
+    // The frame's pixels. The array only grows, so it may be longer
+    // than the frame.
+    private byte[] mPixels;
+    
+    // The state of the current apply(src, dst) call.
+    private final AtomicInteger mNextBand = new AtomicInteger();
+    private int mNumBands;
+    private int mBandLength;
+    private int mLength;
+    
+    public JavaPixelFilter(final PixelFilter filter) {
+        this(filter, null);
+    }
+    
+    // The worker pool may be null, to filter on the calling thread.
+    public JavaPixelFilter(final PixelFilter filter,
+            final WorkerPool workerPool) {
+        mFilter = filter;
+        mWorkerPool = workerPool;
+    }
+    
+    public PixelFilter getFilter() {
+        return mFilter;
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        final int rows = src.rows();
+        final int stride = 4 * src.cols();
+        final int length = stride * rows;
+        if (mPixels == null || mPixels.length < length) {
+            mPixels = new byte[length];
+        }
+        src.get(0, 0, mPixels);
+        
+        if (mWorkerPool == null || mWorkerPool.getNumWorkers() < 2) {
+            mFilter.applyToPixels(mPixels, 0, length);
+        } else {
+            mNumBands = Math.min(rows,
+                    mWorkerPool.getNumWorkers() * BANDS_PER_WORKER);
+            final int rowsPerBand = (rows + mNumBands - 1) / mNumBands;
+            mNumBands = (rows + rowsPerBand - 1) / rowsPerBand;
+            mBandLength = rowsPerBand * stride;
+            mLength = length;
+            mNextBand.set(0);
+            mWorkerPool.run(this);
+        }
+        
+        dst.create(src.size(), src.type());
+        dst.put(0, 0, mPixels);
+    }
+    
+    @Override
+    public void applyToPixels(final byte[] pixels, final int offset,
+            final int length) {
+        mFilter.applyToPixels(pixels, offset, length);
+    }
+    
+    @Override
+    public void run(final int workerIndex) {
+        final byte[] pixels = mPixels;
+        int band;
+        while ((band = mNextBand.getAndIncrement()) < mNumBands) {
+            final int offset = band * mBandLength;
+            mFilter.applyToPixels(pixels, offset,
+                    Math.min(mBandLength, mLength - offset));
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.nummist.secondsight.filters;
+
+// A filter whose output pixel depends only on the input pixels within
+// getRadius() rows and columns of it. A stripe of a frame can be
+// filtered on its own if it is extended by that many rows on each
+// side.
+public interface LocalFilter extends Filter {
+    public abstract int getRadius();
+}
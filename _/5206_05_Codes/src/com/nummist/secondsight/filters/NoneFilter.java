@@ -2,10 +2,16 @@ package com.nummist.secondsight.filters;
 
 import org.opencv.core.Mat;
 
-public class NoneFilter implements Filter {
+public class NoneFilter implements PixelFilter {
     
     @Override
     public void apply(final Mat src, final Mat dst) {
         // Do nothing.
     }
+    
+    @Override
+    public void applyToPixels(final byte[] pixels, final int offset,
+            final int length) {
+        // Do nothing.
+    }
 }
@@ -0,0 +1,9 @@
+package com.nummist.secondsight.filters;
+
+// A filter whose output pixel depends only on the same input pixel.
+// Such a filter can also be applied in place to interleaved RGBA
+// bytes, so that several of them can share one pass over a frame.
+public interface PixelFilter extends Filter {
+    public abstract void applyToPixels(final byte[] pixels,
+            final int offset, final int length);
+}
@@ -0,0 +1,16 @@
+package com.nummist.secondsight.filters;
+
+import com.nummist.secondsight.pipeline.MatPool;
+
+// A filter that can allocate its buffers once the frame size is
+// known, so that filtering frames of that size allocates no native
+// buffers.
+public interface PreallocatedFilter extends Filter {
+    
+    // Allocates the buffers for frames of a size, and then locks the
+    // filter's pool.
+    public abstract void preallocate(final int width,
+            final int height);
+    
+    public abstract MatPool getMatPool();
+}
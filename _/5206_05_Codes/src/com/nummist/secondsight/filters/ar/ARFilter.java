@@ -1,7 +1,14 @@
 package com.nummist.secondsight.filters.ar;
 
+import org.opencv.core.Mat;
+
 import com.nummist.secondsight.filters.Filter;
 
+// apply(src, dst) is equivalent to detect(src) followed by
+// draw(src, dst). The two steps may be called separately, even on
+// different threads, so that drawing never waits for detection.
 public interface ARFilter extends Filter {
     public float[] getGLPose();
+    public void detect(final Mat src);
+    public void draw(final Mat src, final Mat dst);
 }
@@ -1,245 +1,1213 @@
 package com.nummist.secondsight.filters.ar;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.opencv.android.Utils;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfFloat;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
-import org.opencv.core.Point;
-import org.opencv.core.Point3;
-import org.opencv.features2d.DMatch;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import org.opencv.features2d.DescriptorExtractor;
-import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
-import org.opencv.features2d.KeyPoint;
-import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
 
 import android.content.Context;
 
 import com.nummist.secondsight.adapters.CameraProjectionAdapter;
+import com.nummist.secondsight.filters.PreallocatedFilter;
+import com.nummist.secondsight.matching.BinaryDescriptors;
+import com.nummist.secondsight.matching.FeatureMatcher;
+import com.nummist.secondsight.matching.OpenCVMatcher;
+import com.nummist.secondsight.pipeline.MatPool;
 
-public class ImageDetectionFilter implements ARFilter {
+// Finds one or more reference images (targets) in the scene. The
+// scene's keypoints are detected and described once per frame, and
+// matched in one pass against a single index of every target's
+// descriptors. Each match's image index tells which target it belongs
+// to, and a pose is found for each target that has enough good
+// matches. So, adding a target adds to the matching, but not to the
+// detection and extraction, which dominate the cost.
+//
+// By default, the good matches are those within 1.75 times the
+// nearest match's distance, and the pose is solved from all of them.
+// Optionally, for steadier poses from noisy matches:
+// - The ratio test keeps a match only if it is clearly nearer than
+//   the second nearest train descriptor.
+// - The cross-check keeps a match only if the scene descriptor is
+//   also the nearest one to the reference descriptor.
+// - RANSAC solves the pose from the largest consistent subset of the
+//   matches, the inliers.
+//
+// Optionally, after a target is found, its pose points are tracked
+// into the following frames with pyramidal Lucas-Kanade optical flow,
+// and the pose is solved from the tracked points. Tracking skips the
+// detection, extraction and matching, so it costs a fraction of a
+// full detection. A full detection runs again after a given number of
+// frames, or as soon as too many of the tracks are lost.
+//
+// Optionally, while any target is found, a full detection only
+// detects and describes keypoints in a predicted region of the frame:
+// the bounding box of the found targets' corners, projected at their
+// last poses and expanded by a margin. After a frame where no target
+// is found, the whole frame is searched again. A target that is not
+// found yet can only be found in the region until then.
+public class ImageDetectionFilter
+        implements ARFilter, PreallocatedFilter {
     
-    private final Mat mReferenceImage;
-    private final MatOfKeyPoint mReferenceKeypoints =
-            new MatOfKeyPoint();
-    private final Mat mReferenceDescriptors = new Mat();
-    private final Mat mReferenceCorners =
-            new Mat(4, 1, CvType.CV_32FC2);
+    public static final double DEFAULT_RATIO_TEST_THRESHOLD = 0.8;
+    public static final int DEFAULT_RANSAC_ITERATIONS = 100;
+    public static final float DEFAULT_RANSAC_REPROJECTION_ERROR = 8f;
+    public static final int DEFAULT_REDETECTION_INTERVAL = 10;
+    public static final double DEFAULT_MIN_TRACKED_FRACTION = 0.5;
+    public static final double DEFAULT_PREDICTED_ROI_MARGIN = 0.25;
+    
+    // The most point correspondences that a pose is found from.
+    private static final int MAX_POSE_POINTS = 512;
+    
+    // The settings of mFeatureDetector and mDescriptorExtractor, which
+    // key the reference data in the ReferenceCache.
+    private static final String DETECTOR_SETTINGS = "STAR;FREAK";
+    
+    // The fewest inliers that a pose is accepted from.
+    private static final int MIN_POSE_INLIERS = 4;
+    
+    // The fewest tracked points that a pose is found from.
+    private static final int MIN_TRACKS = 8;
+    
+    // The optical flow's search window and number of pyramid levels
+    // above the full-size image.
+    private static final Size TRACKING_WINDOW_SIZE =
+            new Size(21.0, 21.0);
+    private static final int TRACKING_MAX_LEVEL = 3;
+    
+    // A predicted region that covers more of the frame than this is
+    // not worth cropping, so the whole frame is searched instead.
+    private static final double MAX_PREDICTED_ROI_AREA_FRACTION = 0.75;
+    
+    // The smallest width or height of a predicted region.
+    private static final int MIN_PREDICTED_ROI_LENGTH = 32;
+    
+    // The number of floats in each keypoint of a MatOfKeyPoint, and in
+    // each match of a MatOfDMatch.
+    private static final int KEYPOINT_LENGTH = 7;
+    private static final int MATCH_LENGTH = 4;
+    
+    private final ImageTarget[] mTargets;
+    
+    // The target that getGLPose() returns, or -1 if none is found.
+    private volatile int mBestTargetIndex = -1;
     
     private final MatOfKeyPoint mSceneKeypoints =
             new MatOfKeyPoint();
     private final Mat mSceneDescriptors = new Mat();
     
-    private final Mat mGraySrc = new Mat();
     private final MatOfDMatch mMatches = new MatOfDMatch();
+    private final List<MatOfDMatch> mKnnMatches =
+            new ArrayList<MatOfDMatch>();
+    
+    // The scene keypoints and matches, as read in bulk from the Mats,
+    // in buffers that grow as needed. Each keypoint is KEYPOINT_LENGTH
+    // floats, starting with x and y, and each match is
+    // MATCH_LENGTH floats: the query, train, and image indices and
+    // the distance.
+    private float[] mSceneKeypointsArray = new float[0];
+    private float[] mMatchesArray = new float[0];
+    private final float[] mKnnMatchesArray =
+            new float[2 * MATCH_LENGTH];
+    
+    // The scene descriptors, packed for the cross-check.
+    private final BinaryDescriptors mPackedSceneDescriptors =
+            new BinaryDescriptors();
+    
+    // The last pose's vectors and rotation matrix, in row-major
+    // order, as read in bulk. Only touched by detect().
+    private final double[] mRVecArray = new double[3];
+    private final double[] mTVecArray = new double[3];
+    private final double[] mRotationArray = new double[9];
+    
+    // The inliers of the last RANSAC pose.
+    private final Mat mInliers = new Mat();
+    private final int[] mInlierIndices = new int[MAX_POSE_POINTS];
+    
+    // The buffers that detect() uses, which are only touched on the
+    // thread that calls detect().
+    private final MatPool mMatPool =
+            new MatPool("ImageDetectionFilter");
+    
+    // The good point correspondences, in arrays and in Mats that hold
+    // up to MAX_POSE_POINTS points. Views of the first n rows of the
+    // Mats are cached by n, since solvePnP needs Mats of exactly as
+    // many rows as there are points.
+    private final float[] mGoodReferencePointsArray =
+            new float[3 * MAX_POSE_POINTS];
+    private final float[] mGoodScenePointsArray =
+            new float[2 * MAX_POSE_POINTS];
+    private Mat mGoodReferencePointsBuffer;
+    private Mat mGoodScenePointsBuffer;
+    private final MatOfPoint3f[] mGoodReferencePointsViews =
+            new MatOfPoint3f[MAX_POSE_POINTS + 1];
+    private final MatOfPoint2f[] mGoodScenePointsViews =
+            new MatOfPoint2f[MAX_POSE_POINTS + 1];
     
     private final FeatureDetector mFeatureDetector =
             FeatureDetector.create(FeatureDetector.STAR);
     private final DescriptorExtractor mDescriptorExtractor =
             DescriptorExtractor.create(DescriptorExtractor.FREAK);
-    private final DescriptorMatcher mDescriptorMatcher =
-            DescriptorMatcher.create(
-                    DescriptorMatcher.BRUTEFORCE_HAMMING);
+    private final FeatureMatcher mMatcher;
     
     private final MatOfDouble mDistCoeffs = new MatOfDouble(
             0.0, 0.0, 0.0, 0.0);
     
     private final CameraProjectionAdapter mCameraProjectionAdapter;
-    private final MatOfDouble mRVec = new MatOfDouble();
-    private final MatOfDouble mTVec = new MatOfDouble();
-    private final MatOfDouble mRotation = new MatOfDouble();
-    private final float[] mGLPose = new float[16];
     
-    private boolean mTargetFound = false;
+    // For each target, the matches that belong to it. Only touched by
+    // detect().
+    private final MatchBuffer[] mTargetMatches;
+    
+    // The size of the image that keypoints are detected in.
+    private final Size mDetectionSize = new Size();
+    
+    // The size of the image that keypoints are detected in, relative
+    // to the source image.
+    private volatile double mDetectionScale = 1.0;
+    
+    // The matching and pose options, which are off by default. A
+    // ratio of 0 or 0 RANSAC iterations is off.
+    private volatile double mRatioTestThreshold = 0.0;
+    private volatile boolean mIsCrossCheckEnabled = false;
+    private volatile int mRansacIterations = 0;
+    private volatile float mRansacReprojectionError =
+            DEFAULT_RANSAC_REPROJECTION_ERROR;
+    
+    // Whether the rotation matrix is computed in Java rather than by
+    // Calib3d.Rodrigues. Off by default.
+    private volatile boolean mIsJavaRodriguesEnabled = false;
+    
+    // The tracking options. Tracking is off by default.
+    private volatile boolean mIsTrackingEnabled = false;
+    private volatile int mRedetectionInterval =
+            DEFAULT_REDETECTION_INTERVAL;
+    private volatile double mMinTrackedFraction =
+            DEFAULT_MIN_TRACKED_FRACTION;
+    
+    // The tracking state, which is only touched by detect(). The
+    // tracked target's reference points are paired with its scene
+    // points in the previous frame.
+    private int mTrackedTargetIndex = -1;
+    private int mNumTracks;
+    private int mNumInitialTracks;
+    private int mFramesSinceDetection;
+    private final Mat mPrevTrackingGray = new Mat();
+    
+    // The optical flow's points, status, and errors, in Mats of
+    // MAX_POSE_POINTS rows. Like the good points, they are used
+    // through views of their first n rows, which are cached by n, so
+    // that a change in the number of tracks allocates nothing. The
+    // views for the current number of tracks are selected by
+    // selectTrackViews(n).
+    private Mat mPrevTrackPointsBuffer;
+    private Mat mNextTrackPointsBuffer;
+    private Mat mTrackStatusBuffer;
+    private Mat mTrackErrorsBuffer;
+    private final MatOfPoint2f[] mPrevTrackPointsViews =
+            new MatOfPoint2f[MAX_POSE_POINTS + 1];
+    private final MatOfPoint2f[] mNextTrackPointsViews =
+            new MatOfPoint2f[MAX_POSE_POINTS + 1];
+    private final MatOfByte[] mTrackStatusViews =
+            new MatOfByte[MAX_POSE_POINTS + 1];
+    private final MatOfFloat[] mTrackErrorsViews =
+            new MatOfFloat[MAX_POSE_POINTS + 1];
+    private MatOfPoint2f mPrevTrackPoints;
+    private MatOfPoint2f mNextTrackPoints;
+    private MatOfByte mTrackStatus;
+    private MatOfFloat mTrackErrors;
+    private final float[] mTrackReferencePointsArray =
+            new float[3 * MAX_POSE_POINTS];
+    private final float[] mTrackScenePointsArray =
+            new float[2 * MAX_POSE_POINTS];
+    private final byte[] mTrackStatusArray = new byte[MAX_POSE_POINTS];
+    
+    // The candidate for tracking after a full detection: the newly
+    // solved target with the most inliers, or -1.
+    private int mTrackCandidateIndex = -1;
+    
+    // The numbers of frames that were fully detected and that were
+    // tracked. Only written by detect().
+    private volatile long mNumDetectedFrames;
+    private volatile long mNumTrackedFrames;
+    
+    // The predicted region options. The region is off by default. The
+    // margin is relative to the size of the projected bounding box.
+    private volatile boolean mIsPredictedROIEnabled = false;
+    private volatile double mPredictedROIMargin =
+            DEFAULT_PREDICTED_ROI_MARGIN;
+    
+    // The predicted region state, which is only touched by detect().
+    private final Rect mPredictedROI = new Rect();
+    private final MatOfDouble mPredictionRVec =
+            new MatOfDouble(0.0, 0.0, 0.0);
+    private final MatOfPoint2f mProjectedCorners = new MatOfPoint2f();
+    private final float[] mProjectedCornersArray = new float[8];
+    private final double[] mPredictionRVecArray = new double[3];
+    private final double[] mPredictionTVecArray = new double[3];
+    
+    // The number of full detections that searched a predicted region.
+    // Only written by detect().
+    private volatile long mNumPredictedROIFrames;
     
     public ImageDetectionFilter(final Context context,
             final int referenceImageResourceID,
             final CameraProjectionAdapter cameraProjectionAdapter)
                     throws IOException {
+        this(context, new int[] { referenceImageResourceID },
+                cameraProjectionAdapter);
+    }
+        
+    // Looks for several reference images at once. The images are
+    // only decoded and detected if the ReferenceCache has no valid
+    // data for them.
+    public ImageDetectionFilter(final Context context,
+            final int[] referenceImageResourceIDs,
+            final CameraProjectionAdapter cameraProjectionAdapter)
+                    throws IOException {
+        this(context, referenceImageResourceIDs,
+                cameraProjectionAdapter, new OpenCVMatcher());
+    }
+    
+    // Looks for several reference images at once, with the given
+    // matcher, for example an LSHMatcher.
+    public ImageDetectionFilter(final Context context,
+            final int[] referenceImageResourceIDs,
+            final CameraProjectionAdapter cameraProjectionAdapter,
+            final FeatureMatcher matcher) throws IOException {
+        this(readResources(context, referenceImageResourceIDs),
+                cameraProjectionAdapter, matcher);
+    }
+    
+    // Takes ownership of a BGR reference image. This constructor does
+    // not need a Context, so it also works outside of Android.
+    public ImageDetectionFilter(final Mat referenceImageBGR,
+            final CameraProjectionAdapter cameraProjectionAdapter) {
+        this(new Mat[] { referenceImageBGR }, cameraProjectionAdapter);
+    }
+        
+    // Takes ownership of the BGR reference images. The matcher is
+    // OpenCV's brute-force Hamming matcher.
+    public ImageDetectionFilter(final Mat[] referenceImagesBGR,
+            final CameraProjectionAdapter cameraProjectionAdapter) {
+        this(referenceImagesBGR, cameraProjectionAdapter,
+                new OpenCVMatcher());
+    }
+    
+    // Takes ownership of the BGR reference images, and of the
+    // matcher, which is trained on their descriptors.
+    public ImageDetectionFilter(final Mat[] referenceImagesBGR,
+            final CameraProjectionAdapter cameraProjectionAdapter,
+            final FeatureMatcher matcher) {
+        this(null, referenceImagesBGR, cameraProjectionAdapter,
+                matcher);
+    }
+        
+    // Takes encoded reference images, such as the bytes of JPEG
+    // files, and takes ownership of the matcher. The images are only
+    // decoded and detected if the ReferenceCache has no valid data
+    // for them. This constructor also works outside of Android.
+    public ImageDetectionFilter(final byte[][] encodedReferenceImages,
+            final CameraProjectionAdapter cameraProjectionAdapter,
+            final FeatureMatcher matcher) {
+        this(encodedReferenceImages, null, cameraProjectionAdapter,
+                matcher);
+    }
+    
+    // Either the encoded or the BGR reference images are null.
+    private ImageDetectionFilter(final byte[][] encodedReferenceImages,
+            final Mat[] referenceImagesBGR,
+            final CameraProjectionAdapter cameraProjectionAdapter,
+            final FeatureMatcher matcher) {
+        
+        mTargets = new ImageTarget[encodedReferenceImages != null ?
+                encodedReferenceImages.length :
+                referenceImagesBGR.length];
+        final List<Mat> descriptors =
+                new ArrayList<Mat>(mTargets.length);
+        mTargetMatches = new MatchBuffer[mTargets.length];
+        for (int i = 0; i < mTargets.length; i++) {
+            if (encodedReferenceImages != null) {
+                mTargets[i] = ReferenceCache.getTarget(
+                        encodedReferenceImages[i], DETECTOR_SETTINGS,
+                        mFeatureDetector, mDescriptorExtractor);
+            } else {
+                mTargets[i] = ReferenceCache.getTarget(
+                        referenceImagesBGR[i], DETECTOR_SETTINGS,
+                        mFeatureDetector, mDescriptorExtractor);
+            }
+            descriptors.add(mTargets[i].getDescriptors());
+            mTargetMatches[i] = new MatchBuffer();
+        }
         
-        mReferenceImage = Utils.loadResource(context,
-                referenceImageResourceID,
-                Highgui.CV_LOAD_IMAGE_COLOR);
-        
-        final Mat referenceImageGray = new Mat();
-        Imgproc.cvtColor(mReferenceImage, referenceImageGray,
-                Imgproc.COLOR_BGR2GRAY);
-        Imgproc.cvtColor(mReferenceImage, mReferenceImage,
-                Imgproc.COLOR_BGR2RGBA);
-        
-        mReferenceCorners.put(0, 0,
-                new double[] {0.0, 0.0});
-        mReferenceCorners.put(1, 0,
-                new double[] {referenceImageGray.cols(), 0.0});
-        mReferenceCorners.put(2, 0,
-                new double[] {referenceImageGray.cols(),
-                        referenceImageGray.rows()});
-        mReferenceCorners.put(3, 0,
-                new double[] {0.0, referenceImageGray.rows()});
-        
-        mFeatureDetector.detect(referenceImageGray,
-                mReferenceKeypoints);
-        mDescriptorExtractor.compute(referenceImageGray,
-                mReferenceKeypoints, mReferenceDescriptors);
+        // Index the descriptors of all targets together. Each match's
+        // imgIdx is the index of its target.
+        mMatcher = matcher;
+        mMatcher.train(descriptors);
         
         mCameraProjectionAdapter = cameraProjectionAdapter;
     }
     
+    // Returns the encoded bytes of the resources, without decoding
+    // them.
+    private static byte[][] readResources(final Context context,
+            final int[] resourceIDs) throws IOException {
+        final byte[][] images = new byte[resourceIDs.length][];
+        final byte[] buffer = new byte[4096];
+        for (int i = 0; i < resourceIDs.length; i++) {
+            final InputStream in = context.getResources()
+                    .openRawResource(resourceIDs[i]);
+            try {
+                final ByteArrayOutputStream out =
+                        new ByteArrayOutputStream(in.available());
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, length);
+                }
+                images[i] = out.toByteArray();
+            } finally {
+                in.close();
+            }
+        }
+        return images;
+    }
+    
+    public int getNumTargets() {
+        return mTargets.length;
+    }
+    
+    // Returns whether the target at the given index, in the order of
+    // the reference images, was found in the last frame.
+    public boolean isTargetFound(final int targetIndex) {
+        return mTargets[targetIndex].isFound();
+    }
+    
+    // Returns the pose of the target at the given index, or null if it
+    // was not found.
+    public float[] getGLPose(final int targetIndex) {
+        final ImageTarget target = mTargets[targetIndex];
+        return (target.isFound() ? target.getGLPose() : null);
+    }
+    
+    // Detects keypoints in a resized copy of each source image, for
+    // example at 0.5 or 0.25 times its size, which is faster but finds
+    // fewer keypoints. The scale must be in (0, 1]. Set it before
+    // preallocate(width, height), which allocates the resized image.
+    public void setDetectionScale(final double scale) {
+        if (scale <= 0.0 || scale > 1.0) {
+            throw new IllegalArgumentException(
+                    "The detection scale must be in (0, 1]");
+        }
+        mDetectionScale = scale;
+    }
+    
+    public double getDetectionScale() {
+        return mDetectionScale;
+    }
+    
+    // Matches each scene descriptor to its 2 nearest reference
+    // descriptors, and keeps the match only if the nearest distance
+    // is less than the ratio times the second nearest distance, for
+    // example 0.8. A scene descriptor with fewer than 2 candidates is
+    // not matched. A ratio of 0 turns the test off.
+    public void setRatioTestThreshold(final double ratio) {
+        if (ratio < 0.0 || ratio >= 1.0) {
+            throw new IllegalArgumentException(
+                    "The ratio must be in [0, 1)");
+        }
+        mRatioTestThreshold = ratio;
+    }
+    
+    public double getRatioTestThreshold() {
+        return mRatioTestThreshold;
+    }
+    
+    // Keeps a match only if the scene descriptor is also the nearest
+    // one to the reference descriptor.
+    public void setCrossCheckEnabled(final boolean isEnabled) {
+        mIsCrossCheckEnabled = isEnabled;
+    }
+    
+    public boolean isCrossCheckEnabled() {
+        return mIsCrossCheckEnabled;
+    }
+    
+    // Solves the pose with RANSAC, in the given number of iterations.
+    // A point is an inlier if it is reprojected within the given
+    // error, in pixels of the image that keypoints are detected in.
+    // 0 iterations turns RANSAC off.
+    public void setRansacParameters(final int iterations,
+            final float reprojectionError) {
+        if (iterations < 0 || reprojectionError <= 0f) {
+            throw new IllegalArgumentException(
+                    "The iterations must not be negative and the " +
+                            "reprojection error must be positive");
+        }
+        mRansacReprojectionError = reprojectionError;
+        mRansacIterations = iterations;
+    }
+    
+    public int getRansacIterations() {
+        return mRansacIterations;
+    }
+    
+    public float getRansacReprojectionError() {
+        return mRansacReprojectionError;
+    }
+    
+    // Returns the number of inliers of the target's last pose, or 0 if
+    // it was not found. Without RANSAC, every point of the pose is an
+    // inlier. A low count means a low-confidence pose.
+    public int getNumInliers(final int targetIndex) {
+        return mTargets[targetIndex].getNumInliers();
+    }
+    
+    // Returns the number of inliers of the pose that getGLPose()
+    // returns, or 0 if no target is found.
+    public int getNumInliers() {
+        final int targetIndex = mBestTargetIndex;
+        return (targetIndex < 0 ? 0 : getNumInliers(targetIndex));
+    }
+    
+    // Converts each pose's rotation vector to a matrix in Java, which
+    // skips a JNI call. The matrix is the same to within rounding.
+    public void setJavaRodriguesEnabled(final boolean isEnabled) {
+        mIsJavaRodriguesEnabled = isEnabled;
+    }
+    
+    public boolean isJavaRodriguesEnabled() {
+        return mIsJavaRodriguesEnabled;
+    }
+    
+    // Tracks the found target between full detections. A full
+    // detection runs at least every redetectionInterval frames, and
+    // whenever fewer than minTrackedFraction of the points that a
+    // detection found are still tracked. An interval of 1 or less
+    // turns tracking off.
+    public void setTrackingParameters(final int redetectionInterval,
+            final double minTrackedFraction) {
+        if (minTrackedFraction < 0.0 || minTrackedFraction > 1.0) {
+            throw new IllegalArgumentException(
+                    "The tracked fraction must be in [0, 1]");
+        }
+        mRedetectionInterval = redetectionInterval;
+        mMinTrackedFraction = minTrackedFraction;
+        mIsTrackingEnabled = (redetectionInterval > 1);
+    }
+    
+    public boolean isTrackingEnabled() {
+        return mIsTrackingEnabled;
+    }
+    
+    public int getRedetectionInterval() {
+        return mRedetectionInterval;
+    }
+    
+    public double getMinTrackedFraction() {
+        return mMinTrackedFraction;
+    }
+    
+    public long getNumDetectedFrames() {
+        return mNumDetectedFrames;
+    }
+    
+    public long getNumTrackedFrames() {
+        return mNumTrackedFrames;
+    }
+    
+    // Returns the fraction of frames that were fully detected rather
+    // than tracked, or 0 if there were no frames yet.
+    public double getRedetectionRate() {
+        final long numDetectedFrames = mNumDetectedFrames;
+        final long numFrames = numDetectedFrames + mNumTrackedFrames;
+        return (numFrames == 0L ? 0.0 :
+                (double)numDetectedFrames / numFrames);
+    }
+    
+    // Searches only the predicted region around the found targets,
+    // while any target is found.
+    public void setPredictedROIEnabled(final boolean isEnabled) {
+        mIsPredictedROIEnabled = isEnabled;
+    }
+    
+    public boolean isPredictedROIEnabled() {
+        return mIsPredictedROIEnabled;
+    }
+    
+    // Expands the predicted region on each side by the given fraction
+    // of the projected bounding box's width or height, to allow for
+    // motion since the last frame.
+    public void setPredictedROIMargin(final double margin) {
+        if (margin < 0.0) {
+            throw new IllegalArgumentException(
+                    "The margin must not be negative");
+        }
+        mPredictedROIMargin = margin;
+    }
+    
+    public double getPredictedROIMargin() {
+        return mPredictedROIMargin;
+    }
+    
+    // Returns the number of full detections that only searched a
+    // predicted region.
+    public long getNumPredictedROIFrames() {
+        return mNumPredictedROIFrames;
+    }
+    
+    @Override
+    public void preallocate(final int width, final int height) {
+        final double scale = mDetectionScale;
+        mMatPool.unlock();
+        mMatPool.preallocate(height, width, CvType.CV_8UC1, 1);
+        if (scale < 1.0) {
+            mMatPool.preallocate(getScaledLength(height, scale),
+                    getScaledLength(width, scale), CvType.CV_8UC1, 1);
+        }
+        allocatePosePointBuffers();
+        mMatPool.lock();
+    }
+    
+    @Override
+    public MatPool getMatPool() {
+        return mMatPool;
+    }
+    
+    // Returns the pose of the found target with the most inliers, or
+    // null if no target is found.
     @Override
     public float[] getGLPose() {
-        return (mTargetFound ? mGLPose : null);
+        final int targetIndex = mBestTargetIndex;
+        return (targetIndex < 0 ? null : getGLPose(targetIndex));
     }
     
     @Override
     public void apply(final Mat src, final Mat dst) {
-        Imgproc.cvtColor(src, mGraySrc, Imgproc.COLOR_RGBA2GRAY);
+        detect(src);
+        draw(src, dst);
+    }
+    
+    @Override
+    public void detect(final Mat src) {
+        final double scale = mDetectionScale;
         
-        mFeatureDetector.detect(mGraySrc, mSceneKeypoints);
-        mDescriptorExtractor.compute(mGraySrc, mSceneKeypoints,
-                mSceneDescriptors);
-        mDescriptorMatcher.match(mSceneDescriptors,
-                mReferenceDescriptors, mMatches);
+        final Mat graySrc = mMatPool.acquire(src.rows(), src.cols(),
+                CvType.CV_8UC1);
+        Imgproc.cvtColor(src, graySrc, Imgproc.COLOR_RGBA2GRAY);
+        final Mat detectionGray;
+        if (scale < 1.0) {
+            final int scaledRows = getScaledLength(src.rows(), scale);
+            final int scaledCols = getScaledLength(src.cols(), scale);
+            detectionGray = mMatPool.acquire(scaledRows, scaledCols,
+                    CvType.CV_8UC1);
+            mDetectionSize.width = scaledCols;
+            mDetectionSize.height = scaledRows;
+            Imgproc.resize(graySrc, detectionGray, mDetectionSize,
+                    0.0, 0.0, Imgproc.INTER_AREA);
+        } else {
+            detectionGray = graySrc;
+        }
         
-        findPose();
-        draw(src, dst);
+        final boolean isTrackingEnabled = mIsTrackingEnabled;
+        if (isTrackingEnabled && track(detectionGray, scale)) {
+            mNumTrackedFrames++;
+        } else {
+            if (mIsPredictedROIEnabled &&
+                    predictROI(detectionGray, scale)) {
+                final Mat roiGray = detectionGray.submat(mPredictedROI);
+                mFeatureDetector.detect(roiGray, mSceneKeypoints);
+                mDescriptorExtractor.compute(roiGray, mSceneKeypoints,
+                        mSceneDescriptors);
+                roiGray.release();
+                offsetSceneKeypoints(mPredictedROI.x,
+                        mPredictedROI.y);
+                mNumPredictedROIFrames++;
+            } else {
+                mFeatureDetector.detect(detectionGray,
+                        mSceneKeypoints);
+                mDescriptorExtractor.compute(detectionGray,
+                        mSceneKeypoints, mSceneDescriptors);
+            }
+            final double ratio = mRatioTestThreshold;
+            if (ratio > 0.0) {
+                mMatcher.knnMatch(mSceneDescriptors, mKnnMatches, 2);
+            } else {
+                mMatcher.match(mSceneDescriptors, mMatches);
+            }
+            findPoses(scale, ratio);
+            mNumDetectedFrames++;
+            if (isTrackingEnabled) {
+                startTracking(detectionGray);
+            } else {
+                mTrackedTargetIndex = -1;
+            }
+        }
+        
+        if (detectionGray != graySrc) {
+            mMatPool.release(detectionGray);
+        }
+        mMatPool.release(graySrc);
+    }
+    
+    // Sets mPredictedROI to the bounding box of the found targets'
+    // projected corners, expanded by the margin and clipped to the
+    // image. Returns false if no target is found or the region is too
+    // large to be worth cropping.
+    private boolean predictROI(final Mat gray, final double scale) {
+        if (mBestTargetIndex < 0) {
+            return false;
+        }
+        final MatOfDouble projection =
+                mCameraProjectionAdapter.getProjectionCV(scale);
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (final ImageTarget target : mTargets) {
+            if (!target.isFound()) {
+                continue;
+            }
+            
+            // The pose's rotation has y and z negated for OpenGL.
+            final double[] rVec = mPredictionRVecArray;
+            target.getRVec().get(0, 0, rVec);
+            target.getTVec().get(0, 0, mPredictionTVecArray);
+            if (mPredictionTVecArray[2] <= 0.0) {
+                return false;
+            }
+            rVec[1] = -rVec[1];
+            rVec[2] = -rVec[2];
+            mPredictionRVec.put(0, 0, rVec);
+            Calib3d.projectPoints(target.getCorners3D(),
+                    mPredictionRVec, target.getTVec(), projection,
+                    mDistCoeffs, mProjectedCorners);
+            mProjectedCorners.get(0, 0, mProjectedCornersArray);
+            for (int i = 0; i < 8; i += 2) {
+                minX = Math.min(minX, mProjectedCornersArray[i]);
+                maxX = Math.max(maxX, mProjectedCornersArray[i]);
+                minY = Math.min(minY, mProjectedCornersArray[i + 1]);
+                maxY = Math.max(maxY, mProjectedCornersArray[i + 1]);
+            }
+        }
+        if (minX > maxX) {
+            return false;
+        }
+        
+        final double margin = mPredictedROIMargin;
+        final double marginX = margin * (maxX - minX);
+        final double marginY = margin * (maxY - minY);
+        final int left = (int)Math.max(0.0, Math.floor(minX - marginX));
+        final int top = (int)Math.max(0.0, Math.floor(minY - marginY));
+        final int right = (int)Math.min(gray.cols(),
+                Math.ceil(maxX + marginX));
+        final int bottom = (int)Math.min(gray.rows(),
+                Math.ceil(maxY + marginY));
+        if (right - left < MIN_PREDICTED_ROI_LENGTH ||
+                bottom - top < MIN_PREDICTED_ROI_LENGTH ||
+                (right - left) * (double)(bottom - top) >
+                        MAX_PREDICTED_ROI_AREA_FRACTION *
+                                gray.cols() * gray.rows()) {
+            return false;
+        }
+        mPredictedROI.x = left;
+        mPredictedROI.y = top;
+        mPredictedROI.width = right - left;
+        mPredictedROI.height = bottom - top;
+        return true;
+    }
+    
+    // Moves the scene keypoints from the coordinates of a region to
+    // those of the image, in one bulk get and put.
+    private void offsetSceneKeypoints(final int x, final int y) {
+        final int numKeypoints = readSceneKeypoints();
+        if (numKeypoints == 0) {
+            return;
+        }
+        final int length = KEYPOINT_LENGTH * numKeypoints;
+        for (int i = 0; i < length; i += KEYPOINT_LENGTH) {
+            mSceneKeypointsArray[i] += x;
+            mSceneKeypointsArray[i + 1] += y;
+        }
+        mSceneKeypoints.put(0, 0, mSceneKeypointsArray);
     }
     
-    private void findPose() {
+    // Reads the scene keypoints into mSceneKeypointsArray, and returns
+    // their number.
+    private int readSceneKeypoints() {
+        final int numKeypoints = mSceneKeypoints.rows();
+        if (numKeypoints == 0) {
+            return 0;
+        }
+        final int length = KEYPOINT_LENGTH * numKeypoints;
+        if (mSceneKeypointsArray.length < length) {
+            mSceneKeypointsArray = new float[length];
+        }
+        mSceneKeypoints.get(0, 0, mSceneKeypointsArray);
+        return numKeypoints;
+    }
         
-        List<DMatch> matchesList = mMatches.toList();
-        if (matchesList.size() < 4) {
-            // There are too few matches to find the pose.
+    // Starts tracking the points of the target that the last full
+    // detection solved with the most inliers, if it has enough of
+    // them. Otherwise, stops tracking.
+    private void startTracking(final Mat gray) {
+        final int targetIndex = mTrackCandidateIndex;
+        if (targetIndex < 0 ||
+                mTargets[targetIndex].getNumInliers() < MIN_TRACKS) {
+            mTrackedTargetIndex = -1;
             return;
         }
+        mTrackedTargetIndex = targetIndex;
+        mNumInitialTracks = mNumTracks;
+        mFramesSinceDetection = 0;
+        gray.copyTo(mPrevTrackingGray);
+        selectTrackViews(mNumTracks);
+        mPrevTrackPoints.put(0, 0, mTrackScenePointsArray);
+    }
+    
+    // Tracks the points of the tracked target from the previous frame
+    // into the given one, and solves the target's pose from them.
+    // Returns false, and stops tracking, if a full detection is due or
+    // the pose cannot be found from the remaining tracks.
+    private boolean track(final Mat gray, final double scale) {
+        final int targetIndex = mTrackedTargetIndex;
+        if (targetIndex < 0 ||
+                mFramesSinceDetection >= mRedetectionInterval - 1 ||
+                gray.cols() != mPrevTrackingGray.cols() ||
+                gray.rows() != mPrevTrackingGray.rows()) {
+            mTrackedTargetIndex = -1;
+            return false;
+        }
+        
+        Video.calcOpticalFlowPyrLK(mPrevTrackingGray, gray,
+                mPrevTrackPoints, mNextTrackPoints, mTrackStatus,
+                mTrackErrors, TRACKING_WINDOW_SIZE, TRACKING_MAX_LEVEL);
+        mTrackStatus.get(0, 0, mTrackStatusArray);
+        
+        // Pair the reference points with the tracked scene points, in
+        // place of the good points of a full detection.
+        mNextTrackPoints.get(0, 0, mGoodScenePointsArray);
+        int numPoints = 0;
+        for (int i = 0; i < mNumTracks; i++) {
+            if (mTrackStatusArray[i] == 0) {
+                continue;
+            }
+            mGoodReferencePointsArray[3 * numPoints] =
+                    mTrackReferencePointsArray[3 * i];
+            mGoodReferencePointsArray[3 * numPoints + 1] =
+                    mTrackReferencePointsArray[3 * i + 1];
+            mGoodReferencePointsArray[3 * numPoints + 2] =
+                    mTrackReferencePointsArray[3 * i + 2];
+            mGoodScenePointsArray[2 * numPoints] =
+                    mGoodScenePointsArray[2 * i];
+            mGoodScenePointsArray[2 * numPoints + 1] =
+                    mGoodScenePointsArray[2 * i + 1];
+            numPoints++;
+        }
+        
+        final ImageTarget target = mTargets[targetIndex];
+        if (numPoints < MIN_TRACKS ||
+                numPoints < mMinTrackedFraction * mNumInitialTracks ||
+                !solvePose(target, numPoints, scale) ||
+                target.getNumInliers() < MIN_TRACKS) {
+            mTrackedTargetIndex = -1;
+            return false;
+        }
+        
+        // Keep tracking the points that the pose agrees with.
+        saveTracks(target.getNumInliers());
+        selectTrackViews(mNumTracks);
+        mPrevTrackPoints.put(0, 0, mTrackScenePointsArray);
+        gray.copyTo(mPrevTrackingGray);
+        mFramesSinceDetection++;
+        
+        for (int i = 0; i < mTargets.length; i++) {
+            if (i != targetIndex) {
+                mTargets[i].setLost();
+            }
+        }
+        mBestTargetIndex = targetIndex;
+        return true;
+    }
+    
+    // Copies the first numPoints good points to the tracks.
+    private void saveTracks(final int numPoints) {
+        System.arraycopy(mGoodReferencePointsArray, 0,
+                mTrackReferencePointsArray, 0, 3 * numPoints);
+        System.arraycopy(mGoodScenePointsArray, 0,
+                mTrackScenePointsArray, 0, 2 * numPoints);
+        mNumTracks = numPoints;
+    }
+    
+    private static int getScaledLength(final int length,
+            final double scale) {
+        return (int)Math.round(length * scale);
+    }
+    
+    private void allocatePosePointBuffers() {
+        if (mGoodReferencePointsBuffer == null) {
+            mGoodReferencePointsBuffer = mMatPool.acquire(
+                    MAX_POSE_POINTS, 1, CvType.CV_32FC3);
+            mGoodScenePointsBuffer = mMatPool.acquire(
+                    MAX_POSE_POINTS, 1, CvType.CV_32FC2);
+            mPrevTrackPointsBuffer = mMatPool.acquire(
+                    MAX_POSE_POINTS, 1, CvType.CV_32FC2);
+            mNextTrackPointsBuffer = mMatPool.acquire(
+                    MAX_POSE_POINTS, 1, CvType.CV_32FC2);
+            mTrackStatusBuffer = mMatPool.acquire(
+                    MAX_POSE_POINTS, 1, CvType.CV_8UC1);
+            mTrackErrorsBuffer = mMatPool.acquire(
+                    MAX_POSE_POINTS, 1, CvType.CV_32FC1);
+        }
+    }
+    
+    // Selects the views of the first numTracks rows of the tracking
+    // buffers. calcOpticalFlowPyrLK writes its outputs into the views,
+    // since they already have the size and type that it needs.
+    private void selectTrackViews(final int numTracks) {
+        allocatePosePointBuffers();
+        if (mPrevTrackPointsViews[numTracks] == null) {
+            Mat rows = mPrevTrackPointsBuffer.rowRange(0, numTracks);
+            mPrevTrackPointsViews[numTracks] = new MatOfPoint2f(rows);
+            rows.release();
+            rows = mNextTrackPointsBuffer.rowRange(0, numTracks);
+            mNextTrackPointsViews[numTracks] = new MatOfPoint2f(rows);
+            rows.release();
+            rows = mTrackStatusBuffer.rowRange(0, numTracks);
+            mTrackStatusViews[numTracks] = new MatOfByte(rows);
+            rows.release();
+            rows = mTrackErrorsBuffer.rowRange(0, numTracks);
+            mTrackErrorsViews[numTracks] = new MatOfFloat(rows);
+            rows.release();
+        }
+        mPrevTrackPoints = mPrevTrackPointsViews[numTracks];
+        mNextTrackPoints = mNextTrackPointsViews[numTracks];
+        mTrackStatus = mTrackStatusViews[numTracks];
+        mTrackErrors = mTrackErrorsViews[numTracks];
+    }
+    
+    // Returns a Mat of the first numPoints good reference points.
+    private MatOfPoint3f getGoodReferencePoints(final int numPoints) {
+        if (mGoodReferencePointsViews[numPoints] == null) {
+            final Mat rows =
+                    mGoodReferencePointsBuffer.rowRange(0, numPoints);
+            mGoodReferencePointsViews[numPoints] =
+                    new MatOfPoint3f(rows);
+            rows.release();
+        }
+        final MatOfPoint3f points =
+                mGoodReferencePointsViews[numPoints];
+        points.put(0, 0, mGoodReferencePointsArray);
+        return points;
+    }
+    
+    // Returns a Mat of the first numPoints good scene points.
+    private MatOfPoint2f getGoodScenePoints(final int numPoints) {
+        if (mGoodScenePointsViews[numPoints] == null) {
+            final Mat rows =
+                    mGoodScenePointsBuffer.rowRange(0, numPoints);
+            mGoodScenePointsViews[numPoints] = new MatOfPoint2f(rows);
+            rows.release();
+        }
+        final MatOfPoint2f points = mGoodScenePointsViews[numPoints];
+        points.put(0, 0, mGoodScenePointsArray);
+        return points;
+    }
+    
+    // Finds the pose of each target from its matches. The scene
+    // keypoints are in the coordinates of an image that is resized by
+    // the given scale, so the projection is scaled, too. If the ratio
+    // is positive, the matches are 2-NN matches for the ratio test.
+    private void findPoses(final double scale, final double ratio) {
+        
+        readSceneKeypoints();
+        
+        // Sort the matches by target. Each target's buffer also finds
+        // the minimum distance.
+        for (int i = 0; i < mTargets.length; i++) {
+            mTargetMatches[i].clear();
+        }
+        if (ratio > 0.0) {
+            final float[] nearest = mKnnMatchesArray;
+            for (int i = 0; i < mKnnMatches.size(); i++) {
+                final MatOfDMatch knnMatches = mKnnMatches.get(i);
+                if (knnMatches.rows() < 2) {
+                    // Without a second candidate, the ratio test
+                    // cannot show that the match is unambiguous.
+                    // LSH often finds fewer than 2.
+                    continue;
+                }
+                knnMatches.get(0, 0, nearest);
+                if (nearest[3] < ratio * nearest[MATCH_LENGTH + 3]) {
+                    addTargetMatch(nearest, 0);
+                }
+            }
+        } else {
+            final int length = MATCH_LENGTH * mMatches.rows();
+            if (length > 0) {
+                if (mMatchesArray.length < length) {
+                    mMatchesArray = new float[length];
+                }
+                mMatches.get(0, 0, mMatchesArray);
+            }
+            for (int i = 0; i < length; i += MATCH_LENGTH) {
+                addTargetMatch(mMatchesArray, i);
+            }
+        }
         
-        List<KeyPoint> referenceKeypointsList =
-                mReferenceKeypoints.toList();
-        List<KeyPoint> sceneKeypointsList =
-                mSceneKeypoints.toList();
+        if (mIsCrossCheckEnabled) {
+            mPackedSceneDescriptors.pack(mSceneDescriptors);
+            for (int i = 0; i < mTargets.length; i++) {
+                crossCheck(mTargets[i], mTargetMatches[i]);
+            }
+        }
         
-        // Calculate the max and min distances between keypoints.
-        double maxDist = 0.0;
-        double minDist = Double.MAX_VALUE;
-        for(DMatch match : matchesList) {
-            double dist = match.distance;
-            if (dist < minDist) {
-                minDist = dist;
+        int bestTargetIndex = -1;
+        int bestNumInliers = 0;
+        int bestNumSolvedInliers = 0;
+        mTrackCandidateIndex = -1;
+        for (int i = 0; i < mTargets.length; i++) {
+            final boolean isSolved = findPose(mTargets[i],
+                    mTargetMatches[i], ratio > 0.0, scale);
+            final int numInliers = mTargets[i].getNumInliers();
+            if (mTargets[i].isFound() && numInliers > bestNumInliers) {
+                bestTargetIndex = i;
+                bestNumInliers = numInliers;
             }
-            if (dist > maxDist) {
-                maxDist = dist;
+            if (isSolved && numInliers > bestNumSolvedInliers) {
+                // Keep the points, which the next target overwrites,
+                // in case tracking starts from them.
+                mTrackCandidateIndex = i;
+                bestNumSolvedInliers = numInliers;
+                saveTracks(numInliers);
+            }
+        }
+        mBestTargetIndex = bestTargetIndex;
+    }
+    
+    // Adds the match at the given offset of a MatOfDMatch's floats to
+    // its target's matches.
+    private void addTargetMatch(final float[] matches,
+            final int offset) {
+        mTargetMatches[(int)matches[offset + 2]].add(
+                (int)matches[offset], (int)matches[offset + 1],
+                matches[offset + 3]);
+    }
+    
+    // Removes the matches whose reference descriptor is nearer to
+    // another scene descriptor than to the matched one.
+    private void crossCheck(final ImageTarget target,
+            final MatchBuffer matches) {
+        final BinaryDescriptors referenceDescriptors =
+                target.getPackedDescriptors();
+        final long[] referenceWords = referenceDescriptors.getWords();
+        final int wordsPerRow = referenceDescriptors.getWordsPerRow();
+        int numKept = 0;
+        for (int i = 0; i < matches.size(); i++) {
+            if (mPackedSceneDescriptors.findNearestRow(referenceWords,
+                    matches.getTrainIndex(i) * wordsPerRow) ==
+                            matches.getQueryIndex(i)) {
+                matches.copy(i, numKept);
+                numKept++;
             }
         }
+        matches.truncate(numKept);
+    }
+    
+    // Returns whether a new pose was found. If so, the good points
+    // hold the points that it was found from.
+    private boolean findPose(final ImageTarget target,
+            final MatchBuffer matches, final boolean isRatioTested,
+            final double scale) {
         
-        if (minDist > 50.0) {
+        final double minDist = matches.getMinDistance();
+        if (matches.size() < 4) {
+            // There are too few matches to find the pose. With several
+            // targets, the other targets may have taken every match,
+            // so this target is lost.
+            target.setLost();
+            return false;
+        }
+        
+        // After the ratio test, the ambiguous matches are already
+        // rejected, so the distances need no further checks.
+        if (!isRatioTested && minDist > 50.0) {
             // The target is completely lost.
-            mTargetFound = false;
-            return;
-        } else if (minDist > 25.0) {
+            target.setLost();
+            return false;
+        } else if (!isRatioTested && minDist > 25.0) {
             // The target is lost but maybe it is still close.
             // Keep using any previously found pose.
-            return;
+            return false;
         }
         
-        // Identify "good" keypoints based on match distance.
-        List<Point3> goodReferencePointsList =
-                new ArrayList<Point3>();
-        ArrayList<Point> goodScenePointsList =
-                new ArrayList<Point>();
-        double maxGoodMatchDist = 1.75 * minDist;
-        for(DMatch match : matchesList) {
-            if (match.distance < maxGoodMatchDist) {
-                Point point =
-                        referenceKeypointsList.get(match.trainIdx).pt;
-                Point3 point3 = new Point3(point.x, point.y, 0.0);
-                goodReferencePointsList.add(point3);
-                goodScenePointsList.add(
-                        sceneKeypointsList.get(match.queryIdx).pt);
+        final float[] referencePoints = target.getReferencePoints();
+        final float[] sceneKeypoints = mSceneKeypointsArray;
+        
+        // Identify "good" keypoints based on match distance. Beyond
+        // MAX_POSE_POINTS, more points would add little accuracy.
+        int numGoodPoints = 0;
+        double maxGoodMatchDist = isRatioTested ?
+                Double.MAX_VALUE : 1.75 * minDist;
+        for (int i = 0; i < matches.size() &&
+                numGoodPoints < MAX_POSE_POINTS; i++) {
+            if (matches.getDistance(i) < maxGoodMatchDist) {
+                final int reference = 2 * matches.getTrainIndex(i);
+                final int scene =
+                        KEYPOINT_LENGTH * matches.getQueryIndex(i);
+                mGoodReferencePointsArray[3 * numGoodPoints] =
+                        referencePoints[reference];
+                mGoodReferencePointsArray[3 * numGoodPoints + 1] =
+                        referencePoints[reference + 1];
+                mGoodReferencePointsArray[3 * numGoodPoints + 2] = 0f;
+                mGoodScenePointsArray[2 * numGoodPoints] =
+                        sceneKeypoints[scene];
+                mGoodScenePointsArray[2 * numGoodPoints + 1] =
+                        sceneKeypoints[scene + 1];
+                numGoodPoints++;
             }
         }
         
-        if (goodReferencePointsList.size() < 4 ||
-                goodScenePointsList.size() < 4) {
+        if (numGoodPoints < 4) {
             // There are too few good points to find the pose.
-            return;
+            return false;
         }
         
-        MatOfPoint3f goodReferencePoints = new MatOfPoint3f();
-        goodReferencePoints.fromList(goodReferencePointsList);
+        return solvePose(target, numGoodPoints, scale);
+    }
+    
+    // Finds the target's pose from the first numPoints good points,
+    // and returns whether it was found. With RANSAC, the good points
+    // are then narrowed down to the inliers.
+    private boolean solvePose(final ImageTarget target,
+            final int numPoints, final double scale) {
         
-        MatOfPoint2f goodScenePoints = new MatOfPoint2f();
-        goodScenePoints.fromList(goodScenePointsList);
+        allocatePosePointBuffers();
+        MatOfPoint3f goodReferencePoints =
+                getGoodReferencePoints(numPoints);
+        MatOfPoint2f goodScenePoints =
+                getGoodScenePoints(numPoints);
+        
+        final MatOfDouble rVec = target.getRVec();
+        final MatOfDouble tVec = target.getTVec();
+        final MatOfDouble rotation = target.getRotation();
+        final float[] glPose = target.getGLPose();
         
         MatOfDouble projection =
-                mCameraProjectionAdapter.getProjectionCV();
-        Calib3d.solvePnP(goodReferencePoints, goodScenePoints,
-                projection, mDistCoeffs, mRVec, mTVec);
+                mCameraProjectionAdapter.getProjectionCV(scale);
+        final int ransacIterations = mRansacIterations;
+        final int numInliers;
+        if (ransacIterations > 0) {
+            Calib3d.solvePnPRansac(goodReferencePoints,
+                    goodScenePoints, projection, mDistCoeffs, rVec,
+                    tVec, false, ransacIterations,
+                    mRansacReprojectionError, numPoints, mInliers,
+                    Calib3d.ITERATIVE);
+            numInliers = mInliers.rows();
+            if (numInliers < MIN_POSE_INLIERS) {
+                // No pose is consistent with enough of the points.
+                target.setLost();
+                return false;
+            }
+            keepInliers(numInliers);
+        } else {
+            Calib3d.solvePnP(goodReferencePoints, goodScenePoints,
+                    projection, mDistCoeffs, rVec, tVec);
+            numInliers = numPoints;
+        }
         
-        double[] rVecArray = mRVec.toArray();
-        rVecArray[1] *= -1.0;
-        rVecArray[2] *= -1.0;
-        mRVec.fromArray(rVecArray);
+        // Read the vectors and the rotation matrix in bulk.
+        rVec.get(0, 0, mRVecArray);
+        mRVecArray[1] *= -1.0;
+        mRVecArray[2] *= -1.0;
+        rVec.put(0, 0, mRVecArray);
         
-        Calib3d.Rodrigues(mRVec, mRotation);
+        if (mIsJavaRodriguesEnabled) {
+            PoseMath.rodrigues(mRVecArray, mRotationArray);
+        } else {
+            Calib3d.Rodrigues(rVec, rotation);
+            rotation.get(0, 0, mRotationArray);
+        }
         
-        double[] tVecArray = mTVec.toArray();
+        tVec.get(0, 0, mTVecArray);
         
-        mGLPose[0]  =  (float)mRotation.get(0, 0)[0];
-        mGLPose[1]  =  (float)mRotation.get(1, 0)[0];
-        mGLPose[2]  =  (float)mRotation.get(2, 0)[0];
-        mGLPose[3]  =  0f;
-        mGLPose[4]  =  (float)mRotation.get(0, 1)[0];
-        mGLPose[5]  =  (float)mRotation.get(1, 1)[0];
-        mGLPose[6]  =  (float)mRotation.get(2, 1)[0];
-        mGLPose[7]  =  0f;
-        mGLPose[8]  =  (float)mRotation.get(0, 2)[0];
-        mGLPose[9]  =  (float)mRotation.get(1, 2)[0];
-        mGLPose[10] =  (float)mRotation.get(2, 2)[0];
-        mGLPose[11] =  0f;
-        mGLPose[12] =  (float)tVecArray[0];
-        mGLPose[13] = -(float)tVecArray[1];
-        mGLPose[14] = -(float)tVecArray[2];
-        mGLPose[15] =  1f;
+        PoseMath.toGLPose(mRotationArray, mTVecArray, glPose);
         
-        mTargetFound = true;
+        target.setFound(numPoints, numInliers);
+        return true;
+    }
+    
+    // Moves the good points that mInliers lists to the front, in
+    // order.
+    private void keepInliers(final int numInliers) {
+        mInliers.get(0, 0, mInlierIndices);
+        for (int i = 0; i < numInliers; i++) {
+            final int j = mInlierIndices[i];
+            mGoodReferencePointsArray[3 * i] =
+                    mGoodReferencePointsArray[3 * j];
+            mGoodReferencePointsArray[3 * i + 1] =
+                    mGoodReferencePointsArray[3 * j + 1];
+            mGoodReferencePointsArray[3 * i + 2] =
+                    mGoodReferencePointsArray[3 * j + 2];
+            mGoodScenePointsArray[2 * i] =
+                    mGoodScenePointsArray[2 * j];
+            mGoodScenePointsArray[2 * i + 1] =
+                    mGoodScenePointsArray[2 * j + 1];
+        }
     }
     
-    protected void draw(Mat src, Mat dst) {
+    @Override
+    public void draw(final Mat src, final Mat dst) {
         
         if (dst != src) {
             src.copyTo(dst);
         }
         
-        if (!mTargetFound) {
-            // The target has not been found.
+        if (mBestTargetIndex < 0) {
+            // No target has been found.
             
-            // Draw a thumbnail of the target in the upper-left
-            // corner so that the user knows what it is.
+            // Draw thumbnails of the targets along the top, starting
+            // in the upper-left corner, so that the user knows what
+            // they are.
             
-            int height = mReferenceImage.height();
-            int width = mReferenceImage.width();
             int maxDimension = Math.min(dst.width(),
                     dst.height()) / 2;
-            double aspectRatio = width / (double)height;
-            if (height > width) {
-                height = maxDimension;
-                width = (int)(height * aspectRatio);
-            } else {
-                width = maxDimension;
-                height = (int)(width / aspectRatio);
+            maxDimension = Math.min(maxDimension,
+                    dst.width() / mTargets.length);
+            int x = 0;
+            for (final ImageTarget target : mTargets) {
+                final Mat image = target.getImage();
+                int height = image.height();
+                int width = image.width();
+                double aspectRatio = width / (double)height;
+                if (height > width) {
+                    height = maxDimension;
+                    width = (int)(height * aspectRatio);
+                } else {
+                    width = maxDimension;
+                    height = (int)(width / aspectRatio);
+                }
+                Mat dstROI = dst.submat(0, height, x, x + width);
+                Imgproc.resize(image, dstROI, dstROI.size(),
+                        0.0, 0.0, Imgproc.INTER_AREA);
+                x += width;
             }
-            Mat dstROI = dst.submat(0, height, 0, width);
-            Imgproc.resize(mReferenceImage, dstROI, dstROI.size(),
-                    0.0, 0.0, Imgproc.INTER_AREA);
         }
     }
 }
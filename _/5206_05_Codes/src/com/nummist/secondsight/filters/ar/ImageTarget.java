@@ -0,0 +1,206 @@
+package com.nummist.secondsight.filters.ar;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point3;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.matching.BinaryDescriptors;
+
+// A reference image that an ImageDetectionFilter looks for: its
+// keypoints and descriptors, and the pose at which it was last found.
+final class ImageTarget {
+    
+    // The largest width or height of the thumbnail that is drawn
+    // while no target is found. Thumbnails are drawn at no more than
+    // half of the frame's height, so this suits frames up to 1024
+    // pixels high.
+    static final int THUMBNAIL_MAX_DIMENSION = 512;
+    
+    private final Mat mImage;
+    private final MatOfKeyPoint mKeypoints;
+    // The keypoints' x and y coordinates, which are read once so that
+    // each frame's matches can be paired with them without JNI calls.
+    private float[] mReferencePoints;
+    private final Mat mDescriptors;
+    private final BinaryDescriptors mPackedDescriptors =
+            new BinaryDescriptors();
+    private final Mat mCorners;
+    // The corners in the reference image's plane, for projection.
+    private final MatOfPoint3f mCorners3D = new MatOfPoint3f();
+    
+    private final MatOfDouble mRVec = new MatOfDouble();
+    private final MatOfDouble mTVec = new MatOfDouble();
+    private final MatOfDouble mRotation = new MatOfDouble();
+    private final float[] mGLPose = new float[16];
+    
+    // Written by detection and read by drawing and rendering, which
+    // may run on other threads.
+    private volatile boolean mIsFound = false;
+    
+    // The number of point correspondences of the last pose, and how
+    // many of them are inliers.
+    private volatile int mNumPosePoints = 0;
+    private volatile int mNumInliers = 0;
+    
+    // Takes ownership of a BGR reference image, which is converted to
+    // an RGBA thumbnail for drawing.
+    ImageTarget(final Mat referenceImageBGR,
+            final FeatureDetector featureDetector,
+            final DescriptorExtractor descriptorExtractor) {
+        
+        mImage = referenceImageBGR;
+        mKeypoints = new MatOfKeyPoint();
+        mDescriptors = new Mat();
+        mCorners = new Mat(4, 1, CvType.CV_32FC2);
+        
+        final Mat referenceImageGray = new Mat();
+        Imgproc.cvtColor(mImage, referenceImageGray,
+                Imgproc.COLOR_BGR2GRAY);
+        Imgproc.cvtColor(mImage, mImage, Imgproc.COLOR_BGR2RGBA);
+        final int maxDimension = Math.max(mImage.cols(), mImage.rows());
+        if (maxDimension > THUMBNAIL_MAX_DIMENSION) {
+            final double scale =
+                    THUMBNAIL_MAX_DIMENSION / (double)maxDimension;
+            Imgproc.resize(mImage, mImage, new Size(
+                    Math.round(scale * mImage.cols()),
+                    Math.round(scale * mImage.rows())),
+                    0.0, 0.0, Imgproc.INTER_AREA);
+        }
+        
+        mCorners.put(0, 0,
+                new double[] {0.0, 0.0});
+        mCorners.put(1, 0,
+                new double[] {referenceImageGray.cols(), 0.0});
+        mCorners.put(2, 0,
+                new double[] {referenceImageGray.cols(),
+                        referenceImageGray.rows()});
+        mCorners.put(3, 0,
+                new double[] {0.0, referenceImageGray.rows()});
+        
+        featureDetector.detect(referenceImageGray, mKeypoints);
+        descriptorExtractor.compute(referenceImageGray, mKeypoints,
+                mDescriptors);
+        mPackedDescriptors.pack(mDescriptors);
+        referenceImageGray.release();
+        initCorners3D();
+        initReferencePoints();
+    }
+    
+    // Takes ownership of precomputed data, for example from a
+    // ReferenceCache.
+    ImageTarget(final Mat thumbnailRGBA, final MatOfKeyPoint keypoints,
+            final Mat descriptors, final Mat corners) {
+        mImage = thumbnailRGBA;
+        mKeypoints = keypoints;
+        mDescriptors = descriptors;
+        mCorners = corners;
+        mPackedDescriptors.pack(mDescriptors);
+        initCorners3D();
+        initReferencePoints();
+    }
+    
+    private void initReferencePoints() {
+        final int numKeypoints = mKeypoints.rows();
+        mReferencePoints = new float[2 * numKeypoints];
+        if (numKeypoints == 0) {
+            return;
+        }
+        // Each keypoint is 7 floats, starting with x and y.
+        final float[] keypoints = new float[7 * numKeypoints];
+        mKeypoints.get(0, 0, keypoints);
+        for (int i = 0; i < numKeypoints; i++) {
+            mReferencePoints[2 * i] = keypoints[7 * i];
+            mReferencePoints[2 * i + 1] = keypoints[7 * i + 1];
+        }
+    }
+    
+    private void initCorners3D() {
+        final float[] corners = new float[8];
+        mCorners.get(0, 0, corners);
+        mCorners3D.fromArray(
+                new Point3(corners[0], corners[1], 0.0),
+                new Point3(corners[2], corners[3], 0.0),
+                new Point3(corners[4], corners[5], 0.0),
+                new Point3(corners[6], corners[7], 0.0));
+    }
+    
+    // The RGBA thumbnail of the reference image.
+    Mat getImage() {
+        return mImage;
+    }
+    
+    MatOfKeyPoint getKeypoints() {
+        return mKeypoints;
+    }
+    
+    // The keypoints' coordinates, as x and y pairs.
+    float[] getReferencePoints() {
+        return mReferencePoints;
+    }
+    
+    Mat getDescriptors() {
+        return mDescriptors;
+    }
+    
+    // The descriptors, packed for comparisons in Java.
+    BinaryDescriptors getPackedDescriptors() {
+        return mPackedDescriptors;
+    }
+    
+    Mat getCorners() {
+        return mCorners;
+    }
+    
+    MatOfPoint3f getCorners3D() {
+        return mCorners3D;
+    }
+    
+    MatOfDouble getRVec() {
+        return mRVec;
+    }
+    
+    MatOfDouble getTVec() {
+        return mTVec;
+    }
+    
+    MatOfDouble getRotation() {
+        return mRotation;
+    }
+    
+    float[] getGLPose() {
+        return mGLPose;
+    }
+    
+    boolean isFound() {
+        return mIsFound;
+    }
+    
+    int getNumPosePoints() {
+        return mNumPosePoints;
+    }
+    
+    int getNumInliers() {
+        return mNumInliers;
+    }
+    
+    // Called after mGLPose is updated from numPosePoints points, of
+    // which numInliers are inliers.
+    void setFound(final int numPosePoints, final int numInliers) {
+        mNumPosePoints = numPosePoints;
+        mNumInliers = numInliers;
+        mIsFound = true;
+    }
+    
+    void setLost() {
+        mIsFound = false;
+        mNumPosePoints = 0;
+        mNumInliers = 0;
+    }
+}
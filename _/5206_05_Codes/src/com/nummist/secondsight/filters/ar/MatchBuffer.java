@@ -0,0 +1,82 @@
+package com.nummist.secondsight.filters.ar;
+
+// The matches of one target in one frame, as parallel primitive
+// arrays. The arrays grow as needed and are reused from frame to
+// frame, so that sorting the matches by target does not allocate.
+final class MatchBuffer {
+    
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private int[] mQueryIndices = new int[INITIAL_CAPACITY];
+    private int[] mTrainIndices = new int[INITIAL_CAPACITY];
+    private float[] mDistances = new float[INITIAL_CAPACITY];
+    private int mSize;
+    private float mMinDistance = Float.MAX_VALUE;
+    
+    void clear() {
+        mSize = 0;
+        mMinDistance = Float.MAX_VALUE;
+    }
+    
+    void add(final int queryIndex, final int trainIndex,
+            final float distance) {
+        if (mSize == mQueryIndices.length) {
+            grow();
+        }
+        mQueryIndices[mSize] = queryIndex;
+        mTrainIndices[mSize] = trainIndex;
+        mDistances[mSize] = distance;
+        mSize++;
+        if (distance < mMinDistance) {
+            mMinDistance = distance;
+        }
+    }
+    
+    int size() {
+        return mSize;
+    }
+    
+    int getQueryIndex(final int i) {
+        return mQueryIndices[i];
+    }
+    
+    int getTrainIndex(final int i) {
+        return mTrainIndices[i];
+    }
+    
+    float getDistance(final int i) {
+        return mDistances[i];
+    }
+    
+    // The least distance of the matches that were added since the
+    // last clear(), or Float.MAX_VALUE if none were.
+    float getMinDistance() {
+        return mMinDistance;
+    }
+    
+    // Copies the match at index src over the one at index dst.
+    void copy(final int src, final int dst) {
+        mQueryIndices[dst] = mQueryIndices[src];
+        mTrainIndices[dst] = mTrainIndices[src];
+        mDistances[dst] = mDistances[src];
+    }
+    
+    // Removes the matches from the given index on. The minimum
+    // distance is not updated.
+    void truncate(final int size) {
+        mSize = size;
+    }
+    
+    private void grow() {
+        final int capacity = 2 * mQueryIndices.length;
+        final int[] queryIndices = new int[capacity];
+        final int[] trainIndices = new int[capacity];
+        final float[] distances = new float[capacity];
+        System.arraycopy(mQueryIndices, 0, queryIndices, 0, mSize);
+        System.arraycopy(mTrainIndices, 0, trainIndices, 0, mSize);
+        System.arraycopy(mDistances, 0, distances, 0, mSize);
+        mQueryIndices = queryIndices;
+        mTrainIndices = trainIndices;
+        mDistances = distances;
+    }
+}
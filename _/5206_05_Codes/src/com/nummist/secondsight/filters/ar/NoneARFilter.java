@@ -1,5 +1,7 @@
 package com.nummist.secondsight.filters.ar;
 
+import org.opencv.core.Mat;
+
 import com.nummist.secondsight.filters.NoneFilter;
 
 public class NoneARFilter extends NoneFilter implements ARFilter {
@@ -7,4 +9,14 @@ public class NoneARFilter extends NoneFilter implements ARFilter {
     public float[] getGLPose() {
         return null;
     }
+    
+    @Override
+    public void detect(final Mat src) {
+        // Do nothing.
+    }
+    
+    @Override
+    public void draw(final Mat src, final Mat dst) {
+        // Do nothing.
+    }
 }
@@ -0,0 +1,72 @@
+package com.nummist.secondsight.filters.ar;
+
+// Converts poses without JNI calls or allocation, on arrays that the
+// caller reuses. Rotation matrices are 3x3, in row-major order, like
+// a CV_64FC1 Mat's data.
+public final class PoseMath {
+    
+    private PoseMath() {
+    }
+    
+    // Sets the rotation matrix for a rotation vector, whose direction
+    // is the axis and whose length is the angle in radians. The result
+    // matches Calib3d.Rodrigues to within rounding.
+    public static void rodrigues(final double[] rVec,
+            final double[] rotation) {
+        final double theta = Math.sqrt(rVec[0] * rVec[0] +
+                rVec[1] * rVec[1] + rVec[2] * rVec[2]);
+        if (theta < 2.220446049250313e-16) { // DBL_EPSILON
+            rotation[0] = 1.0;
+            rotation[1] = 0.0;
+            rotation[2] = 0.0;
+            rotation[3] = 0.0;
+            rotation[4] = 1.0;
+            rotation[5] = 0.0;
+            rotation[6] = 0.0;
+            rotation[7] = 0.0;
+            rotation[8] = 1.0;
+            return;
+        }
+        
+        // R = cos(theta) * I + (1 - cos(theta)) * r * r^T +
+        //     sin(theta) * [r]x, for the unit axis r.
+        final double x = rVec[0] / theta;
+        final double y = rVec[1] / theta;
+        final double z = rVec[2] / theta;
+        final double c = Math.cos(theta);
+        final double s = Math.sin(theta);
+        final double c1 = 1.0 - c;
+        rotation[0] = c + c1 * x * x;
+        rotation[1] = c1 * x * y - s * z;
+        rotation[2] = c1 * x * z + s * y;
+        rotation[3] = c1 * x * y + s * z;
+        rotation[4] = c + c1 * y * y;
+        rotation[5] = c1 * y * z - s * x;
+        rotation[6] = c1 * x * z - s * y;
+        rotation[7] = c1 * y * z + s * x;
+        rotation[8] = c + c1 * z * z;
+    }
+    
+    // Sets a column-major OpenGL model-view matrix from a rotation
+    // matrix and an OpenCV translation, whose y and z are negated for
+    // OpenGL.
+    public static void toGLPose(final double[] rotation,
+            final double[] tVec, final float[] glPose) {
+        glPose[0]  =  (float)rotation[0];
+        glPose[1]  =  (float)rotation[3];
+        glPose[2]  =  (float)rotation[6];
+        glPose[3]  =  0f;
+        glPose[4]  =  (float)rotation[1];
+        glPose[5]  =  (float)rotation[4];
+        glPose[6]  =  (float)rotation[7];
+        glPose[7]  =  0f;
+        glPose[8]  =  (float)rotation[2];
+        glPose[9]  =  (float)rotation[5];
+        glPose[10] =  (float)rotation[8];
+        glPose[11] =  0f;
+        glPose[12] =  (float)tVec[0];
+        glPose[13] = -(float)tVec[1];
+        glPose[14] = -(float)tVec[2];
+        glPose[15] =  1f;
+    }
+}
@@ -0,0 +1,347 @@
+package com.nummist.secondsight.filters.ar;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.highgui.Highgui;
+
+// Caches the keypoints, descriptors, corners, and thumbnail of
+// reference images as binary files, so that a reference image that
+// was used before is neither decoded nor detected again, even after
+// a restart. A cached file is memory-mapped and copied into Mats in
+// bulk.
+//
+// A file is keyed by a hash of the image's content, either its
+// encoded bytes or its decoded pixels, and of the detector settings,
+// which include the OpenCV version. Each file holds the image hash
+// and the full settings that it was computed with, so a hash
+// collision or a stale file is detected and recomputed. The disk
+// cache is best-effort: a file that cannot be read or written is
+// treated as a miss.
+public final class ReferenceCache {
+    
+    private static final int MAGIC = 0x52454644; // "REFD"
+    private static final int VERSION = 1;
+    
+    private static final String FILE_PREFIX = "reference-";
+    private static final String FILE_SUFFIX = ".bin";
+    
+    // The number of floats in each keypoint of a MatOfKeyPoint: x, y,
+    // size, angle, response, octave, and class ID.
+    private static final int KEYPOINT_LENGTH = 7;
+    
+    // The number of floats in the corners: 4 (x, y) pairs.
+    private static final int CORNERS_LENGTH = 8;
+    
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    private static File sDirectory;
+    
+    private static int sNumComputed;
+    private static int sNumLoaded;
+    
+    private ReferenceCache() {
+    }
+    
+    // Sets the directory for the cache files, or null to compute the
+    // reference data every time.
+    public static synchronized void setDirectory(final File directory) {
+        sDirectory = directory;
+    }
+    
+    // Returns the number of targets that were computed and loaded
+    // from files since the process started.
+    public static synchronized int getComputedCount() {
+        return sNumComputed;
+    }
+    
+    public static synchronized int getLoadedCount() {
+        return sNumLoaded;
+    }
+    
+    // Returns a target for an encoded image, such as the bytes of a
+    // JPEG drawable. The image is only decoded if no valid file is
+    // cached.
+    static synchronized ImageTarget getTarget(final byte[] encodedImage,
+            final String detectorSettings,
+            final FeatureDetector featureDetector,
+            final DescriptorExtractor descriptorExtractor) {
+        final long imageHash = hash(FNV_OFFSET_BASIS, encodedImage);
+        final byte[] settings = getSettings(detectorSettings);
+        final File file = getFile(imageHash, settings);
+        final ImageTarget target = load(file, imageHash, settings);
+        if (target != null) {
+            return target;
+        }
+        final Mat imageBGR = Highgui.imdecode(
+                new MatOfByte(encodedImage),
+                Highgui.CV_LOAD_IMAGE_COLOR);
+        return compute(file, imageHash, settings, imageBGR,
+                featureDetector, descriptorExtractor);
+    }
+    
+    // Returns a target for a decoded BGR image, and takes ownership of
+    // the image.
+    static synchronized ImageTarget getTarget(final Mat imageBGR,
+            final String detectorSettings,
+            final FeatureDetector featureDetector,
+            final DescriptorExtractor descriptorExtractor) {
+        final byte[] settings = getSettings(detectorSettings);
+        long imageHash = 0L;
+        File file = null;
+        if (sDirectory != null) {
+            imageHash = hash(imageBGR);
+            file = getFile(imageHash, settings);
+            final ImageTarget target = load(file, imageHash, settings);
+            if (target != null) {
+                imageBGR.release();
+                return target;
+            }
+        }
+        return compute(file, imageHash, settings, imageBGR,
+                featureDetector, descriptorExtractor);
+    }
+    
+    // Returns the settings that the cached data depends on, besides
+    // the image, as UTF-8 bytes.
+    private static byte[] getSettings(final String detectorSettings) {
+        final String settings = detectorSettings + ";opencv=" +
+                Core.VERSION + ";thumbnail=" +
+                ImageTarget.THUMBNAIL_MAX_DIMENSION;
+        try {
+            return settings.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            // Every Java platform supports UTF-8.
+            throw new AssertionError(e);
+        }
+    }
+    
+    // Returns the file for the image and settings, or null if no
+    // directory is set.
+    private static File getFile(final long imageHash,
+            final byte[] settings) {
+        if (sDirectory == null) {
+            return null;
+        }
+        final long key = hash(imageHash, settings);
+        return new File(sDirectory, FILE_PREFIX +
+                Long.toHexString(key) + FILE_SUFFIX);
+    }
+    
+    // Returns the 64-bit FNV-1a hash of the bytes, continuing from the
+    // given hash.
+    private static long hash(long hash, final byte[] bytes) {
+        for (final byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+    
+    // Returns the hash of the image's size, type, and pixels.
+    private static long hash(final Mat image) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = (hash ^ image.cols()) * FNV_PRIME;
+        hash = (hash ^ image.rows()) * FNV_PRIME;
+        hash = (hash ^ image.type()) * FNV_PRIME;
+        final byte[] pixels =
+                new byte[(int)(image.total() * image.elemSize())];
+        image.get(0, 0, pixels);
+        return hash(hash, pixels);
+    }
+    
+    private static ImageTarget compute(final File file,
+            final long imageHash, final byte[] settings,
+            final Mat imageBGR, final FeatureDetector featureDetector,
+            final DescriptorExtractor descriptorExtractor) {
+        final ImageTarget target = new ImageTarget(imageBGR,
+                featureDetector, descriptorExtractor);
+        sNumComputed++;
+        if (file != null) {
+            write(file, imageHash, settings, target);
+        }
+        return target;
+    }
+    
+    // Returns the target in the file, or null if the file is missing,
+    // invalid, or was computed from another image or settings.
+    private static ImageTarget load(final File file,
+            final long imageHash, final byte[] settings) {
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final FileChannel channel = in.getChannel();
+                final ImageTarget target = read(channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0L,
+                        channel.size()), imageHash, settings);
+                if (target != null) {
+                    sNumLoaded++;
+                }
+                return target;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            return null;
+        } catch (final BufferUnderflowException e) {
+            // The file is truncated.
+            return null;
+        }
+    }
+    
+    private static ImageTarget read(final ByteBuffer buffer,
+            final long imageHash, final byte[] settings) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION ||
+                buffer.getLong() != imageHash ||
+                buffer.getInt() != settings.length) {
+            return null;
+        }
+        for (final byte b : settings) {
+            if (buffer.get() != b) {
+                return null;
+            }
+        }
+        
+        final float[] cornersArray = getFloats(buffer, CORNERS_LENGTH);
+        final Mat corners = new Mat(4, 1, CvType.CV_32FC2);
+        corners.put(0, 0, cornersArray);
+        
+        final int numKeypoints = buffer.getInt();
+        final float[] keypointsArray =
+                getFloats(buffer, KEYPOINT_LENGTH * numKeypoints);
+        final MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        if (numKeypoints > 0) {
+            keypoints.create(numKeypoints, 1,
+                    CvType.CV_32FC(KEYPOINT_LENGTH));
+            keypoints.put(0, 0, keypointsArray);
+        }
+        
+        final int descriptorRows = buffer.getInt();
+        final int descriptorCols = buffer.getInt();
+        final byte[] descriptorsArray = getBytes(buffer,
+                (long)descriptorRows * descriptorCols);
+        final Mat descriptors = new Mat();
+        if (descriptorRows > 0) {
+            descriptors.create(descriptorRows, descriptorCols,
+                    CvType.CV_8UC1);
+            descriptors.put(0, 0, descriptorsArray);
+        }
+        
+        final int thumbnailCols = buffer.getInt();
+        final int thumbnailRows = buffer.getInt();
+        final byte[] thumbnailArray = getBytes(buffer,
+                4L * thumbnailCols * thumbnailRows);
+        if (thumbnailCols <= 0 || thumbnailRows <= 0 ||
+                buffer.hasRemaining()) {
+            return null;
+        }
+        final Mat thumbnail = new Mat(thumbnailRows, thumbnailCols,
+                CvType.CV_8UC4);
+        thumbnail.put(0, 0, thumbnailArray);
+        
+        return new ImageTarget(thumbnail, keypoints, descriptors,
+                corners);
+    }
+    
+    // Reads the given number of floats in bulk. A negative or
+    // excessive number throws BufferUnderflowException, like a
+    // truncated file.
+    private static float[] getFloats(final ByteBuffer buffer,
+            final long length) {
+        if (length < 0L || 4L * length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final float[] floats = new float[(int)length];
+        buffer.asFloatBuffer().get(floats);
+        buffer.position(buffer.position() + 4 * floats.length);
+        return floats;
+    }
+    
+    private static byte[] getBytes(final ByteBuffer buffer,
+            final long length) {
+        if (length < 0L || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final byte[] bytes = new byte[(int)length];
+        buffer.get(bytes);
+        return bytes;
+    }
+    
+    // Writes the file under a temporary name and then renames it, so
+    // that a partly written file is never read. Only descriptors of
+    // bytes, such as FREAK's, are cached.
+    private static void write(final File file, final long imageHash,
+            final byte[] settings, final ImageTarget target) {
+        final Mat descriptors = target.getDescriptors();
+        if (!descriptors.empty() &&
+                descriptors.type() != CvType.CV_8UC1) {
+            return;
+        }
+        final MatOfKeyPoint keypoints = target.getKeypoints();
+        final Mat thumbnail = target.getImage();
+        
+        final float[] cornersArray = new float[CORNERS_LENGTH];
+        target.getCorners().get(0, 0, cornersArray);
+        final float[] keypointsArray =
+                new float[KEYPOINT_LENGTH * keypoints.rows()];
+        keypoints.get(0, 0, keypointsArray);
+        final byte[] descriptorsArray =
+                new byte[descriptors.rows() * descriptors.cols()];
+        descriptors.get(0, 0, descriptorsArray);
+        final byte[] thumbnailArray =
+                new byte[4 * thumbnail.cols() * thumbnail.rows()];
+        thumbnail.get(0, 0, thumbnailArray);
+        
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(imageHash);
+                out.writeInt(settings.length);
+                out.write(settings);
+                for (final float value : cornersArray) {
+                    out.writeFloat(value);
+                }
+                out.writeInt(keypoints.rows());
+                for (final float value : keypointsArray) {
+                    out.writeFloat(value);
+                }
+                out.writeInt(descriptors.rows());
+                out.writeInt(descriptors.cols());
+                out.write(descriptorsArray);
+                out.writeInt(thumbnail.cols());
+                out.writeInt(thumbnail.rows());
+                out.write(thumbnailArray);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (final IOException e) {
+            tempFile.delete();
+        }
+    }
+}
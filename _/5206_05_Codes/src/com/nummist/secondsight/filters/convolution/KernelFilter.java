@@ -0,0 +1,337 @@
+package com.nummist.secondsight.filters.convolution;
+
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import com.nummist.secondsight.filters.LocalFilter;
+
+// Convolves every channel with an arbitrary kernel, like
+// Imgproc.filter2D, using the cheapest execution that the kernel
+// allows. The kernel is analyzed once, at construction:
+//
+// - A constant kernel that sums to 1 is a box blur, whose cost does
+//   not depend on its size (STRATEGY_BOX).
+// - A kernel of rank 1, by its singular value decomposition, is the
+//   product of a column and a row, and is applied as two 1D passes
+//   (STRATEGY_SEPARABLE), at O(w + h) per pixel instead of O(w * h).
+// - Any other kernel with fewer than FILTER2D_DFT_MIN_AREA elements
+//   is applied directly by filter2D (STRATEGY_DIRECT).
+// - Any larger kernel is correlated with each channel in the
+//   frequency domain, through Core.dft (STRATEGY_DFT), at a cost that
+//   barely grows with the kernel.
+//
+// The blur, sharpen, emboss, and glow kernels can be selected in
+// CameraActivity, whose FramePipeline records the latency of each
+// frame's convolution under FrameStats.STAGE_CONVOLUTION. That is the
+// measured cost of the strategy that toString() names, across all of
+// a TiledFilter's workers, so it can be checked against the frame
+// budget.
+public class KernelFilter implements LocalFilter {
+    
+    // Selects the strategy from the kernel.
+    public static final int STRATEGY_AUTO = -1;
+    
+    public static final int STRATEGY_DIRECT = 0;
+    public static final int STRATEGY_SEPARABLE = 1;
+    public static final int STRATEGY_BOX = 2;
+    public static final int STRATEGY_DFT = 3;
+    
+    private static final String[] STRATEGY_NAMES = {
+            "direct", "separable", "box", "dft"
+    };
+    
+    // The least kernel area for which OpenCV 2.4's filter2D may
+    // correlate in the frequency domain itself: 50, or 130 for 8-bit
+    // images on CPUs with SSE3. Below it, filter2D is always direct.
+    public static final int FILTER2D_DFT_MIN_AREA = 50;
+    
+    // Singular values below this fraction of the largest are treated
+    // as 0 when the rank is counted.
+    private static final double RANK_TOLERANCE = 1e-5;
+    
+    private final float[] mKernelArray;
+    private final int mCols;
+    private final int mRows;
+    private final double mDelta;
+    private final int mStrategy;
+    private final int mRank;
+    
+    // The whole kernel, for STRATEGY_DIRECT and STRATEGY_DFT.
+    private final Mat mKernel;
+    
+    // The buffers of STRATEGY_DFT, for frames of one size. The
+    // kernel's spectrum depends on the size of the transform.
+    private final Mat mPadded = new Mat();
+    private final Mat mPaddedChannel = new Mat();
+    private final Mat mChannel = new Mat();
+    private final Mat mDFTInput = new Mat();
+    private final Mat mSpectrum = new Mat();
+    private final Mat mKernelSpectrum = new Mat();
+    private final Mat mDFTOutput = new Mat();
+    
+    // The row and column factors, for STRATEGY_SEPARABLE.
+    private final Mat mKernelX;
+    private final Mat mKernelY;
+    
+    private final Size mBoxSize;
+    private final Point mAnchor = new Point(-1, -1);
+    
+    // The kernel has rows * cols elements, row by row. Its anchor is
+    // its center, so both dimensions should be odd. The delta is
+    // added to each result.
+    public KernelFilter(final float[] kernel, final int cols,
+            final int rows, final double delta) {
+        this(kernel, cols, rows, delta, STRATEGY_AUTO);
+    }
+    
+    // Uses the given strategy instead of selecting one, for example to
+    // compare strategies. The box and separable strategies are only
+    // valid for kernels that are a normalized box or of rank 1, and
+    // the direct strategy for kernels of fewer than
+    // FILTER2D_DFT_MIN_AREA elements.
+    public KernelFilter(final float[] kernel, final int cols,
+            final int rows, final double delta, final int strategy) {
+        if (kernel.length != cols * rows) {
+            throw new IllegalArgumentException("Expected " +
+                    cols * rows + " elements, but got " +
+                    kernel.length);
+        }
+        mKernelArray = kernel.clone();
+        mCols = cols;
+        mRows = rows;
+        mDelta = delta;
+        
+        final Mat kernelMat = new Mat(rows, cols, CvType.CV_32FC1);
+        kernelMat.put(0, 0, kernel);
+        
+        // Find the rank, and the factors of a rank 1 kernel.
+        final Mat w = new Mat();
+        final Mat u = new Mat();
+        final Mat vt = new Mat();
+        Core.SVDecomp(kernelMat, w, u, vt);
+        final double largestSingularValue = w.get(0, 0)[0];
+        int rank = 0;
+        for (int i = 0; i < w.rows(); i++) {
+            if (w.get(i, 0)[0] >
+                    RANK_TOLERANCE * largestSingularValue) {
+                rank++;
+            }
+        }
+        mRank = rank;
+        
+        final boolean isBox = isNormalizedBox(kernel) && delta == 0.0;
+        final boolean isSeparable = rank <= 1 && cols > 1 && rows > 1;
+        if (strategy != STRATEGY_AUTO) {
+            if ((strategy == STRATEGY_BOX && !isBox) ||
+                    (strategy == STRATEGY_SEPARABLE && !isSeparable) ||
+                    (strategy == STRATEGY_DIRECT &&
+                            cols * rows >= FILTER2D_DFT_MIN_AREA)) {
+                throw new IllegalArgumentException("The kernel does " +
+                        "not allow the " + STRATEGY_NAMES[strategy] +
+                        " strategy");
+            }
+            mStrategy = strategy;
+        } else if (isBox) {
+            mStrategy = STRATEGY_BOX;
+        } else if (isSeparable) {
+            mStrategy = STRATEGY_SEPARABLE;
+        } else if (cols * rows < FILTER2D_DFT_MIN_AREA) {
+            mStrategy = STRATEGY_DIRECT;
+        } else {
+            mStrategy = STRATEGY_DFT;
+        }
+        
+        if (mStrategy == STRATEGY_SEPARABLE) {
+            // kernel = (u0 * sqrt(w0)) * (vt0 * sqrt(w0))
+            final double scale = Math.sqrt(largestSingularValue);
+            mKernelX = new Mat();
+            mKernelY = new Mat();
+            Core.multiply(vt.row(0), new Scalar(scale), mKernelX);
+            Core.multiply(u.col(0), new Scalar(scale), mKernelY);
+            kernelMat.release();
+            mKernel = null;
+        } else {
+            mKernelX = null;
+            mKernelY = null;
+            mKernel = kernelMat;
+        }
+        mBoxSize = new Size(cols, rows);
+        w.release();
+        u.release();
+        vt.release();
+    }
+    
+    // Returns a copy of the kernel, row by row.
+    public float[] getKernel() {
+        return mKernelArray.clone();
+    }
+    
+    public int getCols() {
+        return mCols;
+    }
+    
+    public int getRows() {
+        return mRows;
+    }
+    
+    public double getDelta() {
+        return mDelta;
+    }
+    
+    public int getStrategy() {
+        return mStrategy;
+    }
+    
+    public String getStrategyName() {
+        return STRATEGY_NAMES[mStrategy];
+    }
+    
+    public int getRank() {
+        return mRank;
+    }
+    
+    @Override
+    public int getRadius() {
+        return Math.max(mCols, mRows) / 2;
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        switch (mStrategy) {
+        case STRATEGY_BOX:
+            Imgproc.boxFilter(src, dst, -1, mBoxSize);
+            break;
+        case STRATEGY_SEPARABLE:
+            Imgproc.sepFilter2D(src, dst, -1, mKernelX, mKernelY,
+                    mAnchor, mDelta);
+            break;
+        case STRATEGY_DFT:
+            applyDFT(src, dst);
+            break;
+        default:
+            Imgproc.filter2D(src, dst, -1, mKernel, mAnchor, mDelta);
+            break;
+        }
+    }
+    
+    // Correlates each channel with the kernel in the frequency domain,
+    // like filter2D: the frame is padded with filter2D's default
+    // border, and each channel is transformed, multiplied by the
+    // conjugate of the kernel's spectrum, and transformed back. The
+    // transform covers the padded frame, so the correlation does not
+    // wrap around.
+    private void applyDFT(final Mat src, final Mat dst) {
+        final int rows = src.rows();
+        final int cols = src.cols();
+        final int anchorX = mCols / 2;
+        final int anchorY = mRows / 2;
+        Imgproc.copyMakeBorder(src, mPadded, anchorY,
+                mRows - 1 - anchorY, anchorX, mCols - 1 - anchorX,
+                Imgproc.BORDER_REFLECT_101);
+        final int paddedRows = mPadded.rows();
+        final int paddedCols = mPadded.cols();
+        final int dftRows = Core.getOptimalDFTSize(paddedRows);
+        final int dftCols = Core.getOptimalDFTSize(paddedCols);
+        if (mDFTInput.rows() != dftRows ||
+                mDFTInput.cols() != dftCols) {
+            // The frame size changed, so transform the kernel again.
+            // The input stays 0 outside of the padded frame.
+            mDFTInput.create(dftRows, dftCols, CvType.CV_32FC1);
+            mDFTInput.setTo(Scalar.all(0.0));
+            final Mat kernelRegion =
+                    mDFTInput.submat(0, mRows, 0, mCols);
+            mKernel.copyTo(kernelRegion);
+            kernelRegion.release();
+            Core.dft(mDFTInput, mKernelSpectrum, 0, mRows);
+            mDFTInput.setTo(Scalar.all(0.0));
+        }
+        
+        dst.create(src.size(), src.type());
+        final Mat input =
+                mDFTInput.submat(0, paddedRows, 0, paddedCols);
+        for (int channel = 0; channel < src.channels(); channel++) {
+            Core.extractChannel(mPadded, mPaddedChannel, channel);
+            mPaddedChannel.convertTo(input, CvType.CV_32F);
+            Core.dft(mDFTInput, mSpectrum, 0, paddedRows);
+            Core.mulSpectrums(mSpectrum, mKernelSpectrum, mSpectrum, 0,
+                    true);
+            Core.idft(mSpectrum, mDFTOutput,
+                    Core.DFT_SCALE | Core.DFT_REAL_OUTPUT, rows);
+            final Mat output = mDFTOutput.submat(0, rows, 0, cols);
+            output.convertTo(mChannel, src.depth(), 1.0, mDelta);
+            output.release();
+            Core.insertChannel(mChannel, dst, channel);
+        }
+        input.release();
+    }
+    
+    @Override
+    public String toString() {
+        return "KernelFilter " + mCols + "x" + mRows + ", rank " +
+                mRank + ", " + getStrategyName();
+    }
+    
+    // A box blur of the given radius.
+    public static KernelFilter newBlur(final int radius) {
+        final int size = 2 * radius + 1;
+        final float[] kernel = new float[size * size];
+        Arrays.fill(kernel, 1f / (size * size));
+        return new KernelFilter(kernel, size, size, 0.0);
+    }
+    
+    public static KernelFilter newSharpen() {
+        return new KernelFilter(new float[] {
+                 0f, -1f,  0f,
+                -1f,  5f, -1f,
+                 0f, -1f,  0f
+        }, 3, 3, 0.0);
+    }
+    
+    public static KernelFilter newEmboss() {
+        return new KernelFilter(new float[] {
+                -2f, -1f, 0f,
+                -1f,  1f, 1f,
+                 0f,  1f, 2f
+        }, 3, 3, 0.0);
+    }
+    
+    // Adds a wide Gaussian blur of the image, at the given strength,
+    // to the image itself.
+    public static KernelFilter newGlow(final int radius,
+            final float strength) {
+        final int size = 2 * radius + 1;
+        final double sigma = radius / 3.0;
+        final double[] gaussian = new double[size];
+        double sum = 0.0;
+        for (int i = 0; i < size; i++) {
+            final double x = i - radius;
+            gaussian[i] = Math.exp(-x * x / (2.0 * sigma * sigma));
+            sum += gaussian[i];
+        }
+        final float[] kernel = new float[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                kernel[y * size + x] = (float)(strength *
+                        gaussian[y] * gaussian[x] / (sum * sum));
+            }
+        }
+        kernel[radius * size + radius] += 1f;
+        return new KernelFilter(kernel, size, size, 0.0);
+    }
+    
+    private static boolean isNormalizedBox(final float[] kernel) {
+        for (final float value : kernel) {
+            if (value != kernel[0]) {
+                return false;
+            }
+        }
+        return Math.abs(kernel[0] * kernel.length - 1f) < 1e-6f;
+    }
+}
@@ -1,13 +1,34 @@
 package com.nummist.secondsight.filters.convolution;
 
+import java.nio.ByteBuffer;
+
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfInt;
 import org.opencv.imgproc.Imgproc;
 
-import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.LocalFilter;
+import com.nummist.secondsight.filters.swar.SwarKernels;
 
-public class StrokeEdgesFilter implements Filter {
+// Darkens the edges of an image, in proportion to a Laplacian-like
+// edge measure.
+//
+// In fast mode, the filter skips OpenCV and makes one pass in Java.
+// It convolves only the color channels with the kernel decomposed
+// as (a separable [1 2 1] x [1 2 1] blur) + (the 4 tips of the
+// diamond) - 20 * (the center pixel). It folds the inversion and the
+// 1/255 scaling of the multiplication into fixed-point arithmetic
+// at the output. Its color channels are identical to the exact
+// mode's. Its alpha channel passes through unchanged, which is also
+// the exact mode's result whenever alpha is uniform, as in camera
+// frames. Elsewhere, alpha can differ by up to 255.
+public class StrokeEdgesFilter implements LocalFilter {
+    
+    // The number of rows (or columns) on each side of a pixel that
+    // contribute to its edge value.
+    public static final int KERNEL_RADIUS = 2;
+    
+    private final boolean mIsFast;
     
     private final Mat mKernel = new MatOfInt(
     		0, 0,   1, 0, 0,
@@ -18,10 +39,233 @@ public class StrokeEdgesFilter implements Filter {
     );
     private final Mat mEdges = new Mat();
     
+    // The frame's pixels, in fast mode or when the SWAR kernels are
+    // preferred, and its edges, in the latter case. The arrays only
+    // grow, so that stripes of varying heights reuse them.
+    private byte[] mPixels;
+    private byte[] mEdgePixels;
+    private ByteBuffer mPixelBuffer;
+    private ByteBuffer mEdgeBuffer;
+    
+    // The output pixels, in fast mode.
+    private byte[] mStrokedPixels;
+    
+    // The byte offsets of the columns that surround each column,
+    // with the borders reflected like OpenCV's BORDER_REFLECT_101.
+    private int[] mColumnOffsets;
+    
+    // In fast mode, the vertical [1 2 1] sums of a row's color
+    // channels, indexed like the row's bytes.
+    private int[] mVerticalSums;
+    
+    public StrokeEdgesFilter() {
+        this(false);
+    }
+    
+    public StrokeEdgesFilter(final boolean isFast) {
+        mIsFast = isFast;
+    }
+    
+    public boolean isFast() {
+        return mIsFast;
+    }
+    
+    @Override
+    public int getRadius() {
+        return KERNEL_RADIUS;
+    }
+    
     @Override
     public void apply(final Mat src, final Mat dst) {
+        if (mIsFast) {
+            applyFast(src, dst);
+            return;
+        }
         Imgproc.filter2D(src, mEdges, -1, mKernel);
+        if (SwarKernels.isPreferred()) {
+            multiplyByInverseEdges(src, dst);
+            return;
+        }
         Core.bitwise_not(mEdges, mEdges);
         Core.multiply(src, mEdges, dst, 1.0/255.0);
     }
+    
+    // Sets dst = src * (255 - mEdges) / 255 in one pass with the SWAR
+    // kernel, instead of bitwise_not and multiply.
+    private void multiplyByInverseEdges(final Mat src, final Mat dst) {
+        final int length = 4 * src.cols() * src.rows();
+        if (mPixels == null || mPixels.length < length) {
+            mPixels = new byte[length];
+            mEdgePixels = new byte[length];
+            mPixelBuffer = SwarKernels.wrap(null, mPixels);
+            mEdgeBuffer = SwarKernels.wrap(null, mEdgePixels);
+        }
+        src.get(0, 0, mPixels);
+        mEdges.get(0, 0, mEdgePixels);
+        SwarKernels.multiplyByInverse(mPixelBuffer, mEdgeBuffer,
+                mPixelBuffer, 0, length);
+        dst.create(src.size(), src.type());
+        dst.put(0, 0, mPixels);
+    }
+    
+    private void applyFast(final Mat src, final Mat dst) {
+        final int cols = src.cols();
+        final int rows = src.rows();
+        final int length = 4 * cols * rows;
+        if (mPixels == null || mPixels.length < length) {
+            mPixels = new byte[length];
+            mStrokedPixels = new byte[length];
+        }
+        src.get(0, 0, mPixels);
+        applyFastToPixels(mPixels, mStrokedPixels, cols, rows, 0, rows);
+        dst.create(src.size(), src.type());
+        dst.put(0, 0, mStrokedPixels);
+    }
+    
+    // Applies the filter to interleaved RGBA bytes, writing the rows
+    // in [rowStart, rowEnd) of dst. The rows of src within
+    // KERNEL_RADIUS of that range must already hold their final
+    // input values. The result matches apply(Mat, Mat).
+    public void applyToPixels(final byte[] src, final byte[] dst,
+            final int cols, final int rows, final int rowStart,
+            final int rowEnd) {
+        if (mIsFast) {
+            applyFastToPixels(src, dst, cols, rows, rowStart, rowEnd);
+            return;
+        }
+        
+        final int stride = 4 * cols;
+        final int[] cx = getColumnOffsets(cols);
+        
+        for (int y = rowStart; y < rowEnd; y++) {
+            final int r0 = reflect(y - 2, rows) * stride;
+            final int r1 = reflect(y - 1, rows) * stride;
+            final int r2 = y * stride;
+            final int r3 = reflect(y + 1, rows) * stride;
+            final int r4 = reflect(y + 2, rows) * stride;
+            
+            for (int x = 0; x < cols; x++) {
+                final int c0 = cx[x];
+                final int c1 = cx[x + 1];
+                final int c2 = cx[x + 2];
+                final int c3 = cx[x + 3];
+                final int c4 = cx[x + 4];
+                
+                for (int ch = 0; ch < 4; ch++) {
+                    int edge =
+                            (src[r0 + c2 + ch] & 0xff) +
+                            (src[r1 + c1 + ch] & 0xff) +
+                            ((src[r1 + c2 + ch] & 0xff) << 1) +
+                            (src[r1 + c3 + ch] & 0xff) +
+                            (src[r2 + c0 + ch] & 0xff) +
+                            ((src[r2 + c1 + ch] & 0xff) << 1) -
+                            ((src[r2 + c2 + ch] & 0xff) << 4) +
+                            ((src[r2 + c3 + ch] & 0xff) << 1) +
+                            (src[r2 + c4 + ch] & 0xff) +
+                            (src[r3 + c1 + ch] & 0xff) +
+                            ((src[r3 + c2 + ch] & 0xff) << 1) +
+                            (src[r3 + c3 + ch] & 0xff) +
+                            (src[r4 + c2 + ch] & 0xff);
+                    if (edge < 0) {
+                        edge = 0;
+                    } else if (edge > 255) {
+                        edge = 255;
+                    }
+                    
+                    // dst = round(src * (255 - edge) / 255)
+                    final int i = r2 + c2 + ch;
+                    dst[i] = (byte)(((src[i] & 0xff) * (255 - edge) * 2
+                            + 255) / 510);
+                }
+            }
+        }
+    }
+    
+    private void applyFastToPixels(final byte[] src, final byte[] dst,
+            final int cols, final int rows, final int rowStart,
+            final int rowEnd) {
+        
+        final int stride = 4 * cols;
+        final int[] cx = getColumnOffsets(cols);
+        if (mVerticalSums == null || mVerticalSums.length < stride) {
+            mVerticalSums = new int[stride];
+        }
+        final int[] v = mVerticalSums;
+        
+        for (int y = rowStart; y < rowEnd; y++) {
+            final int r0 = reflect(y - 2, rows) * stride;
+            final int r1 = reflect(y - 1, rows) * stride;
+            final int r2 = y * stride;
+            final int r3 = reflect(y + 1, rows) * stride;
+            final int r4 = reflect(y + 2, rows) * stride;
+            
+            // The vertical pass of the blur.
+            for (int i = 0; i < stride; i += 4) {
+                for (int ch = 0; ch < 3; ch++) {
+                    v[i + ch] =
+                            (src[r1 + i + ch] & 0xff) +
+                            ((src[r2 + i + ch] & 0xff) << 1) +
+                            (src[r3 + i + ch] & 0xff);
+                }
+            }
+            
+            for (int x = 0; x < cols; x++) {
+                final int c0 = cx[x];
+                final int c1 = cx[x + 1];
+                final int c2 = cx[x + 2];
+                final int c3 = cx[x + 3];
+                final int c4 = cx[x + 4];
+                
+                for (int ch = 0; ch < 3; ch++) {
+                    // The horizontal pass of the blur, plus the tips,
+                    // minus the center.
+                    int edge =
+                            v[c1 + ch] + (v[c2 + ch] << 1) + v[c3 + ch] +
+                            (src[r0 + c2 + ch] & 0xff) +
+                            (src[r2 + c0 + ch] & 0xff) +
+                            (src[r2 + c4 + ch] & 0xff) +
+                            (src[r4 + c2 + ch] & 0xff) -
+                            (src[r2 + c2 + ch] & 0xff) * 20;
+                    if (edge < 0) {
+                        edge = 0;
+                    } else if (edge > 255) {
+                        edge = 255;
+                    }
+                    
+                    // dst = round(src * (255 - edge) / 255), with the
+                    // division as a shift and add.
+                    final int i = r2 + c2 + ch;
+                    final int t = (src[i] & 0xff) * (255 - edge) + 128;
+                    dst[i] = (byte)((t + (t >> 8)) >> 8);
+                }
+                dst[r2 + c2 + 3] = src[r2 + c2 + 3];
+            }
+        }
+    }
+    
+    private int[] getColumnOffsets(final int cols) {
+        if (mColumnOffsets == null ||
+                mColumnOffsets.length != cols + 2 * KERNEL_RADIUS) {
+            mColumnOffsets = new int[cols + 2 * KERNEL_RADIUS];
+            for (int i = 0; i < mColumnOffsets.length; i++) {
+                mColumnOffsets[i] =
+                        4 * reflect(i - KERNEL_RADIUS, cols);
+            }
+        }
+        return mColumnOffsets;
+    }
+    
+    private static int reflect(int i, final int length) {
+        if (length == 1) {
+            return 0;
+        }
+        while (i < 0 || i >= length) {
+            if (i < 0) {
+                i = -i;
+            } else {
+                i = 2 * length - 2 - i;
+            }
+        }
+        return i;
+    }
 }
@@ -10,34 +10,60 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfInt;
 
-import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.PixelFilter;
 
-public class CurveFilter implements Filter {
+public class CurveFilter implements PixelFilter {
     
 	// The lookup table.
     private final Mat mLUT = new MatOfInt();
     
+    // A copy of the lookup table as interleaved RGBA bytes. It is
+    // shared with other filters that have the same curves.
+    private final byte[] mLUTArray;
+    
     public CurveFilter(
             final double[] vValIn, final double[] vValOut,
             final double[] rValIn, final double[] rValOut,
             final double[] gValIn, final double[] gValOut,
             final double[] bValIn, final double[] bValOut) {
         
-        // Create the interpolation functions.
-        UnivariateFunction vFunc = newFunc(vValIn, vValOut);
-        UnivariateFunction rFunc = newFunc(rValIn, rValOut);
-        UnivariateFunction gFunc = newFunc(gValIn, gValOut);
-        UnivariateFunction bFunc = newFunc(bValIn, bValOut);
+        // Get the compiled lookup table, compiling it only if these
+        // curves have never been used before.
+        mLUTArray = CurveLUTCache.getLUT(new double[][] {
+                vValIn, vValOut, rValIn, rValOut,
+                gValIn, gValOut, bValIn, bValOut
+        });
         
-        // Create and populate the lookup table.
+        // Populate the lookup table in one call.
         mLUT.create(256, 1, CvType.CV_8UC4);
+        mLUT.put(0, 0, mLUTArray);
+    }
+    
+    // Compiles the lookup table for control points in the order of
+    // the constructor's arguments. The values are rounded (half to
+    // even) and saturated like OpenCV's conversion to 8 bits, so
+    // Core.LUT gives the same results as before the table was cached.
+    static byte[] compileLUT(final double[][] controlPoints) {
+        
+        // Create the interpolation functions.
+        UnivariateFunction vFunc = newFunc(controlPoints[0],
+                controlPoints[1]);
+        UnivariateFunction rFunc = newFunc(controlPoints[2],
+                controlPoints[3]);
+        UnivariateFunction gFunc = newFunc(controlPoints[4],
+                controlPoints[5]);
+        UnivariateFunction bFunc = newFunc(controlPoints[6],
+                controlPoints[7]);
+        
+        final byte[] lut = new byte[CurveLUTCache.LUT_LENGTH];
         for (int i = 0; i < 256; i++) {
             final double v = vFunc.value(i);
-            final double r = rFunc.value(v);
-            final double g = gFunc.value(v);
-            final double b = bFunc.value(v);
-            mLUT.put(i, 0, r, g, b, i); // alpha is unchanged
+            lut[4 * i]     = toByte(rFunc.value(v));
+            lut[4 * i + 1] = toByte(gFunc.value(v));
+            lut[4 * i + 2] = toByte(bFunc.value(v));
+            lut[4 * i + 3] = (byte)i; // alpha is unchanged
         }
+        return lut;
     }
     
     @Override
@@ -46,7 +72,24 @@ public class CurveFilter implements Filter {
         Core.LUT(src, mLUT, dst);
     }
     
-    private UnivariateFunction newFunc(final double[] valIn,
+    @Override
+    public void applyToPixels(final byte[] pixels, final int offset,
+            final int length) {
+        final byte[] lut = mLUTArray;
+        final int end = offset + length;
+        for (int i = offset; i < end; i += 4) {
+            pixels[i]     = lut[ (pixels[i]     & 0xff) << 2     ];
+            pixels[i + 1] = lut[((pixels[i + 1] & 0xff) << 2) + 1];
+            pixels[i + 2] = lut[((pixels[i + 2] & 0xff) << 2) + 2];
+            pixels[i + 3] = lut[((pixels[i + 3] & 0xff) << 2) + 3];
+        }
+    }
+    
+    private static byte toByte(final double value) {
+        return (byte)Math.max(0, Math.min(255, (int)Math.rint(value)));
+    }
+    
+    private static UnivariateFunction newFunc(final double[] valIn,
     		final double[] valOut) {
         UnivariateInterpolator interpolator;
         if (valIn.length > 2) {
@@ -0,0 +1,174 @@
+package com.nummist.secondsight.filters.curve;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Caches the compiled lookup tables of CurveFilters, keyed by their
+// control points, so that the spline interpolation only runs the
+// first time a curve is ever used. Tables are kept in memory for the
+// life of the process and, once a directory is set, as small binary
+// files that survive restarts.
+//
+// Each file holds the control points that it was compiled from, so
+// a hash collision or a stale file is detected and recompiled. The
+// disk cache is best-effort: a file that cannot be read or written is
+// treated as a miss.
+public final class CurveLUTCache {
+    
+    private static final int MAGIC = 0x43555256; // "CURV"
+    private static final int VERSION = 1;
+    
+    private static final String FILE_PREFIX = "curve-";
+    private static final String FILE_SUFFIX = ".lut";
+    
+    // The number of bytes in a table: 256 interleaved RGBA entries.
+    static final int LUT_LENGTH = 1024;
+    
+    private static final Map<Long, byte[]> sLUTs =
+            new HashMap<Long, byte[]>();
+    
+    private static File sDirectory;
+    
+    private static int sNumCompiled;
+    private static int sNumLoaded;
+    
+    private CurveLUTCache() {
+    }
+    
+    // Sets the directory for the cache files, or null to keep the
+    // tables in memory only.
+    public static synchronized void setDirectory(final File directory) {
+        sDirectory = directory;
+    }
+    
+    // Forgets the tables in memory, but not the files.
+    public static synchronized void clearMemory() {
+        sLUTs.clear();
+    }
+    
+    // Returns the number of tables that were compiled and loaded from
+    // files since the process started.
+    public static synchronized int getCompiledCount() {
+        return sNumCompiled;
+    }
+    
+    public static synchronized int getLoadedCount() {
+        return sNumLoaded;
+    }
+    
+    // Returns the table for the control points, which alternate
+    // between input and output values for the v, r, g, and b curves.
+    // The returned array is shared and must not be modified.
+    static synchronized byte[] getLUT(final double[][] controlPoints) {
+        final long key = hash(controlPoints);
+        byte[] lut = sLUTs.get(key);
+        if (lut != null) {
+            return lut;
+        }
+        
+        final File file = (sDirectory == null) ? null :
+                new File(sDirectory, FILE_PREFIX +
+                        Long.toHexString(key) + FILE_SUFFIX);
+        if (file != null && file.isFile()) {
+            lut = read(file, controlPoints);
+            if (lut != null) {
+                sNumLoaded++;
+            }
+        }
+        if (lut == null) {
+            lut = CurveFilter.compileLUT(controlPoints);
+            sNumCompiled++;
+            if (file != null) {
+                write(file, controlPoints, lut);
+            }
+        }
+        sLUTs.put(key, lut);
+        return lut;
+    }
+    
+    // Returns the 64-bit FNV-1a hash of the control points.
+    private static long hash(final double[][] controlPoints) {
+        long hash = 0xcbf29ce484222325L;
+        for (final double[] values : controlPoints) {
+            hash = (hash ^ values.length) * 0x100000001b3L;
+            for (final double value : values) {
+                hash = (hash ^ Double.doubleToLongBits(value)) *
+                        0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+    
+    // Returns the table in the file, or null if the file is invalid
+    // or was compiled from other control points.
+    private static byte[] read(final File file,
+            final double[][] controlPoints) {
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                        in.readInt() != controlPoints.length) {
+                    return null;
+                }
+                for (final double[] values : controlPoints) {
+                    if (in.readInt() != values.length) {
+                        return null;
+                    }
+                    for (final double value : values) {
+                        if (Double.doubleToLongBits(in.readDouble()) !=
+                                Double.doubleToLongBits(value)) {
+                            return null;
+                        }
+                    }
+                }
+                final byte[] lut = new byte[LUT_LENGTH];
+                in.readFully(lut);
+                return lut;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+    
+    // Writes the file under a temporary name and then renames it, so
+    // that a partly written file is never read.
+    private static void write(final File file,
+            final double[][] controlPoints, final byte[] lut) {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(controlPoints.length);
+                for (final double[] values : controlPoints) {
+                    out.writeInt(values.length);
+                    for (final double value : values) {
+                        out.writeDouble(value);
+                    }
+                }
+                out.write(lut);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (final IOException e) {
+            tempFile.delete();
+        }
+    }
+}
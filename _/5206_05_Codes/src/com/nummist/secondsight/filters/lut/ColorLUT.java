@@ -0,0 +1,237 @@
+package com.nummist.secondsight.filters.lut;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.PixelFilter;
+
+// A 3D color lookup table: the RGB output of a sequence of per-pixel
+// filters at each point of a size x size x size lattice. Colors
+// between the lattice points are interpolated tetrahedrally, from the
+// 4 corners of the tetrahedron of the lattice cube that contains
+// them. Alpha is unchanged.
+//
+// The lattice points are at the byte values that are closest to an
+// even spacing, so that colors on the lattice are exact. A table is
+// immutable once it is baked, so it may be shared between threads.
+public final class ColorLUT {
+    
+    public static final int SIZE_17 = 17;
+    public static final int SIZE_33 = 33;
+    public static final int SIZE_65 = 65;
+    
+    private final int mSize;
+    
+    // The baked RGBA output at each lattice point, with the blue index
+    // varying fastest.
+    private final byte[] mTable;
+    
+    // The byte offsets between neighboring lattice points in red and
+    // green. In blue, the offset is 4.
+    private final int mRedStride;
+    private final int mGreenStride;
+    
+    // For each byte value, the index of the lattice point at or below
+    // it (at most size - 2), and its position between that point and
+    // the next, from 0 to 256.
+    private final int[] mIndices = new int[256];
+    private final int[] mFractions = new int[256];
+    
+    private ColorLUT(final int size, final byte[] table) {
+        mSize = size;
+        mTable = table;
+        mGreenStride = 4 * size;
+        mRedStride = 4 * size * size;
+        
+        for (int v = 0; v < 256; v++) {
+            int index = 0;
+            while (index < size - 2 &&
+                    getLatticeValue(index + 1, size) <= v) {
+                index++;
+            }
+            final int low = getLatticeValue(index, size);
+            final int span = getLatticeValue(index + 1, size) - low;
+            mIndices[v] = index;
+            mFractions[v] = ((v - low) * 256 + span / 2) / span;
+        }
+    }
+    
+    // Bakes the filters, applied in order, into a table. Each filter
+    // is applied to an image of the lattice's colors with its own
+    // apply(src, dst), so the table matches the filters' OpenCV
+    // results at every lattice point.
+    public static ColorLUT bake(final PixelFilter[] filters,
+            final int size) {
+        final byte[] table = newLatticePixels(size);
+        final Mat lattice = new Mat(size * size, size, CvType.CV_8UC4);
+        lattice.put(0, 0, table);
+        for (final PixelFilter filter : filters) {
+            filter.apply(lattice, lattice);
+        }
+        lattice.get(0, 0, table);
+        lattice.release();
+        return new ColorLUT(size, table);
+    }
+    
+    public int getSize() {
+        return mSize;
+    }
+    
+    // Looks up the colors of interleaved RGBA bytes in place.
+    public void apply(final byte[] pixels, final int offset,
+            final int length) {
+        final byte[] table = mTable;
+        final int[] indices = mIndices;
+        final int[] fractions = mFractions;
+        final int dr = mRedStride;
+        final int dg = mGreenStride;
+        final int db = 4;
+        final int end = offset + length;
+        for (int i = offset; i < end; i += 4) {
+            final int r = pixels[i] & 0xff;
+            final int g = pixels[i + 1] & 0xff;
+            final int b = pixels[i + 2] & 0xff;
+            final int fr = fractions[r];
+            final int fg = fractions[g];
+            final int fb = fractions[b];
+            final int c000 = indices[r] * dr + indices[g] * dg +
+                    indices[b] * db;
+            
+            // Select the tetrahedron from the order of the fractions.
+            // Its corners are c000, c000 + o1, c000 + o2, and c111.
+            final int o1;
+            final int o2;
+            final int w0;
+            final int w1;
+            final int w2;
+            final int w3;
+            if (fr >= fg) {
+                if (fg >= fb) {
+                    o1 = dr; o2 = dr + dg;
+                    w0 = 256 - fr; w1 = fr - fg; w2 = fg - fb; w3 = fb;
+                } else if (fr >= fb) {
+                    o1 = dr; o2 = dr + db;
+                    w0 = 256 - fr; w1 = fr - fb; w2 = fb - fg; w3 = fg;
+                } else {
+                    o1 = db; o2 = dr + db;
+                    w0 = 256 - fb; w1 = fb - fr; w2 = fr - fg; w3 = fg;
+                }
+            } else {
+                if (fr >= fb) {
+                    o1 = dg; o2 = dr + dg;
+                    w0 = 256 - fg; w1 = fg - fr; w2 = fr - fb; w3 = fb;
+                } else if (fg >= fb) {
+                    o1 = dg; o2 = dg + db;
+                    w0 = 256 - fg; w1 = fg - fb; w2 = fb - fr; w3 = fr;
+                } else {
+                    o1 = db; o2 = dg + db;
+                    w0 = 256 - fb; w1 = fb - fg; w2 = fg - fr; w3 = fr;
+                }
+            }
+            final int c1 = c000 + o1;
+            final int c2 = c000 + o2;
+            final int c111 = c000 + dr + dg + db;
+            
+            for (int ch = 0; ch < 3; ch++) {
+                pixels[i + ch] = (byte)((
+                        w0 * (table[c000 + ch] & 0xff) +
+                        w1 * (table[c1 + ch] & 0xff) +
+                        w2 * (table[c2 + ch] & 0xff) +
+                        w3 * (table[c111 + ch] & 0xff) + 128) >> 8);
+            }
+        }
+    }
+    
+    // The difference between a table and the filters that it was
+    // baked from, in 8-bit levels of the color channels.
+    public static final class Accuracy {
+        public final int maxError;
+        public final double meanError;
+        public final int numColors;
+        
+        Accuracy(final int maxError, final double meanError,
+                final int numColors) {
+            this.maxError = maxError;
+            this.meanError = meanError;
+            this.numColors = numColors;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("max error %d, mean error %.3f, " +
+                    "over %d colors", maxError, meanError, numColors);
+        }
+    }
+    
+    // Compares the table to the filters, applied in order, at every
+    // step-th value of each channel (and at 255). A step of 1 compares
+    // all 2^24 colors.
+    public Accuracy measureAccuracy(final PixelFilter[] filters,
+            final int step) {
+        final int numValues = (255 + step - 1) / step + 1;
+        final byte[] expected = new byte[4 * numValues * numValues *
+                numValues];
+        int i = 0;
+        for (int r = 0; r < numValues; r++) {
+            for (int g = 0; g < numValues; g++) {
+                for (int b = 0; b < numValues; b++) {
+                    expected[i++] = (byte)Math.min(255, r * step);
+                    expected[i++] = (byte)Math.min(255, g * step);
+                    expected[i++] = (byte)Math.min(255, b * step);
+                    expected[i++] = (byte)255;
+                }
+            }
+        }
+        final byte[] actual = expected.clone();
+        apply(actual, 0, actual.length);
+        
+        final Mat colors = new Mat(numValues * numValues, numValues,
+                CvType.CV_8UC4);
+        colors.put(0, 0, expected);
+        for (final PixelFilter filter : filters) {
+            filter.apply(colors, colors);
+        }
+        colors.get(0, 0, expected);
+        colors.release();
+        
+        int maxError = 0;
+        long totalError = 0L;
+        for (i = 0; i < expected.length; i += 4) {
+            for (int ch = 0; ch < 3; ch++) {
+                final int error = Math.abs((expected[i + ch] & 0xff) -
+                        (actual[i + ch] & 0xff));
+                totalError += error;
+                if (error > maxError) {
+                    maxError = error;
+                }
+            }
+        }
+        final int numColors = expected.length / 4;
+        return new Accuracy(maxError,
+                totalError / (3.0 * numColors), numColors);
+    }
+    
+    // Returns the byte value of a lattice point.
+    private static int getLatticeValue(final int index,
+            final int size) {
+        return (index * 255 + (size - 1) / 2) / (size - 1);
+    }
+    
+    // Returns opaque RGBA pixels with the color of each lattice point,
+    // with the blue index varying fastest.
+    private static byte[] newLatticePixels(final int size) {
+        final byte[] pixels = new byte[4 * size * size * size];
+        int i = 0;
+        for (int r = 0; r < size; r++) {
+            for (int g = 0; g < size; g++) {
+                for (int b = 0; b < size; b++) {
+                    pixels[i++] = (byte)getLatticeValue(r, size);
+                    pixels[i++] = (byte)getLatticeValue(g, size);
+                    pixels[i++] = (byte)getLatticeValue(b, size);
+                    pixels[i++] = (byte)255;
+                }
+            }
+        }
+        return pixels;
+    }
+}
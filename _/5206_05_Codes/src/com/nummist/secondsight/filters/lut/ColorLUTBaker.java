@@ -0,0 +1,99 @@
+package com.nummist.secondsight.filters.lut;
+
+import android.util.Log;
+
+import com.nummist.secondsight.filters.PixelFilter;
+
+// Bakes ColorLUTs on a background thread, so that the filters that
+// are being baked can keep running unbaked in the meantime. Only the
+// newest request is kept: a request that has not started when
+// another one arrives is dropped.
+public class ColorLUTBaker {
+    
+    // A tag for log output.
+    private static final String TAG = "ColorLUTBaker";
+    
+    // The spacing of the colors that each table is compared to its
+    // filters at. A step of 5 compares 52^3 colors.
+    private static final int ACCURACY_STEP = 5;
+    
+    public interface Callback {
+        // Called on the baker's thread.
+        public abstract void onBaked(final ColorLUT lut,
+                final ColorLUT.Accuracy accuracy);
+    }
+    
+    private final Thread mThread;
+    
+    private PixelFilter[] mPendingFilters;
+    private int mPendingSize;
+    private Callback mPendingCallback;
+    private boolean mIsClosed;
+    
+    public ColorLUTBaker() {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBaker();
+            }
+        }, "ColorLUTBaker");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+    
+    // Bakes the filters, applied in order, into a table of the given
+    // size. The filters must not be used by any other thread.
+    public synchronized void bake(final PixelFilter[] filters,
+            final int size, final Callback callback) {
+        if (mIsClosed) {
+            return;
+        }
+        mPendingFilters = filters;
+        mPendingSize = size;
+        mPendingCallback = callback;
+        notifyAll();
+    }
+    
+    // Drops any pending request and stops the thread once the current
+    // bake, if any, finishes.
+    public synchronized void close() {
+        mIsClosed = true;
+        mPendingFilters = null;
+        mPendingCallback = null;
+        notifyAll();
+    }
+    
+    private void runBaker() {
+        while (true) {
+            final PixelFilter[] filters;
+            final int size;
+            final Callback callback;
+            synchronized (this) {
+                while (!mIsClosed && mPendingFilters == null) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        // Only close() stops the thread.
+                    }
+                }
+                if (mIsClosed) {
+                    return;
+                }
+                filters = mPendingFilters;
+                size = mPendingSize;
+                callback = mPendingCallback;
+                mPendingFilters = null;
+                mPendingCallback = null;
+            }
+            
+            final long startNanos = System.nanoTime();
+            final ColorLUT lut = ColorLUT.bake(filters, size);
+            final long bakeNanos = System.nanoTime() - startNanos;
+            final ColorLUT.Accuracy accuracy =
+                    lut.measureAccuracy(filters, ACCURACY_STEP);
+            Log.i(TAG, String.format("Baked %d^3 table in %.1f ms; %s",
+                    size, bakeNanos / 1000000.0, accuracy));
+            callback.onBaked(lut, accuracy);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.nummist.secondsight.filters.lut;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.PixelFilter;
+
+// Applies a baked ColorLUT in one pass, in place of the sequence of
+// per-pixel filters that it was baked from. The table may be shared
+// by several filters, for example one per thread.
+public class ColorLUTFilter implements PixelFilter {
+    
+    private final ColorLUT mLUT;
+    
+    // The frame's pixels.
+    private byte[] mPixels;
+    
+    public ColorLUTFilter(final ColorLUT lut) {
+        mLUT = lut;
+    }
+    
+    public ColorLUT getLUT() {
+        return mLUT;
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        final int length = 4 * src.cols() * src.rows();
+        if (mPixels == null || mPixels.length < length) {
+            mPixels = new byte[length];
+        }
+        src.get(0, 0, mPixels);
+        mLUT.apply(mPixels, 0, length);
+        dst.create(src.size(), src.type());
+        dst.put(0, 0, mPixels);
+    }
+    
+    @Override
+    public void applyToPixels(final byte[] pixels, final int offset,
+            final int length) {
+        mLUT.apply(pixels, offset, length);
+    }
+}
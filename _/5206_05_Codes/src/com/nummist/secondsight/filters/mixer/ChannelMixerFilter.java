@@ -0,0 +1,241 @@
+package com.nummist.secondsight.filters.mixer;
+
+import java.nio.ByteBuffer;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.PixelFilter;
+import com.nummist.secondsight.filters.swar.SwarKernels;
+
+// Mixes the channels of RGBA pixels in one interleaved pass, with no
+// split into planes and no merge back.
+//
+// A linear mix multiplies each pixel by a 4x4 matrix, whose rows are
+// the output channels, using Core.transform. The Java kernel sums the
+// products in the same order, in float, and rounds half to even like
+// OpenCV, so the two paths agree exactly whenever the products are
+// exact, as with weights such as 0.5.
+//
+// A min or max mix replaces one channel with the minimum or maximum
+// of a set of channels. OpenCV has no interleaved kernel for that, so
+// both paths use the Java kernel.
+//
+// Where SwarKernels are preferred, the Java kernel handles two pixels
+// at a time for min and max mixes, and for linear mixes that set
+// channels to the average of two others.
+public class ChannelMixerFilter implements PixelFilter {
+    
+    public static final int MIX_LINEAR = 0;
+    public static final int MIX_MIN = 1;
+    public static final int MIX_MAX = 2;
+    
+    private final int mMix;
+    
+    // For a linear mix, the matrix, row by row.
+    private final float[] mMatrix;
+    
+    // For a linear mix, whether each output channel is unchanged, so
+    // that the Java kernel can skip it.
+    private final boolean[] mIsChannelUnchanged;
+    
+    // For a linear mix, the matrix for Core.transform.
+    private final Mat mTransform;
+    
+    // For a linear mix whose changed channels are all the average of
+    // the same two channels, those two channels and a bit mask of the
+    // changed channels. Otherwise, the mask is 0.
+    private final int mAverageChannelA;
+    private final int mAverageChannelB;
+    private final int mAverageDstChannelMask;
+    
+    // For a min or max mix, the output channel and the channels that
+    // it is the minimum or maximum of.
+    private final int mDstChannel;
+    private final int[] mSrcChannels;
+    
+    // For a min or max mix, the frame's pixels.
+    private byte[] mPixels;
+    
+    // The buffer over the last pixels that the SWAR kernels filtered
+    // on each thread. A JavaPixelFilter's workers filter bands of one
+    // frame concurrently, so they must not share a field.
+    private final ThreadLocal<ByteBuffer> mPixelBuffers =
+            new ThreadLocal<ByteBuffer>();
+    
+    // Creates a linear mix. The matrix has 16 elements, row by row,
+    // with a row for each output channel and a column for each input
+    // channel.
+    public ChannelMixerFilter(final float[] matrix) {
+        if (matrix.length != 16) {
+            throw new IllegalArgumentException(
+                    "Expected a 4x4 matrix, but got " + matrix.length +
+                    " elements");
+        }
+        mMix = MIX_LINEAR;
+        mMatrix = matrix.clone();
+        mIsChannelUnchanged = new boolean[4];
+        for (int row = 0; row < 4; row++) {
+            boolean isUnchanged = true;
+            for (int col = 0; col < 4; col++) {
+                if (mMatrix[4 * row + col] != ((row == col) ? 1f : 0f)) {
+                    isUnchanged = false;
+                }
+            }
+            mIsChannelUnchanged[row] = isUnchanged;
+        }
+        mTransform = new Mat(4, 4, CvType.CV_32FC1);
+        mTransform.put(0, 0, mMatrix);
+        
+        int averageChannelA = -1;
+        int averageChannelB = -1;
+        int averageDstChannelMask = 0;
+        for (int row = 0; row < 4 && averageChannelA != -2; row++) {
+            if (mIsChannelUnchanged[row]) {
+                continue;
+            }
+            int channelA = -1;
+            int channelB = -1;
+            for (int col = 0; col < 4; col++) {
+                final float weight = mMatrix[4 * row + col];
+                if (weight == 0.5f && channelA < 0) {
+                    channelA = col;
+                } else if (weight == 0.5f && channelB < 0) {
+                    channelB = col;
+                } else if (weight != 0f) {
+                    channelB = -1;
+                    break;
+                }
+            }
+            if (channelB < 0 || (averageChannelA >= 0 &&
+                    (channelA != averageChannelA ||
+                            channelB != averageChannelB))) {
+                // This is not the same average as the other rows.
+                averageChannelA = -2;
+                averageDstChannelMask = 0;
+            } else {
+                averageChannelA = channelA;
+                averageChannelB = channelB;
+                averageDstChannelMask |= 1 << row;
+            }
+        }
+        mAverageChannelA = averageChannelA;
+        mAverageChannelB = averageChannelB;
+        mAverageDstChannelMask = averageDstChannelMask;
+        
+        mDstChannel = -1;
+        mSrcChannels = null;
+    }
+    
+    // Creates a min or max mix, where the output channel is the
+    // minimum or maximum of the source channels. The other channels
+    // are unchanged.
+    public ChannelMixerFilter(final int mix, final int dstChannel,
+            final int[] srcChannels) {
+        if (mix != MIX_MIN && mix != MIX_MAX) {
+            throw new IllegalArgumentException("Unknown mix: " + mix);
+        }
+        mMix = mix;
+        mMatrix = null;
+        mIsChannelUnchanged = null;
+        mTransform = null;
+        mAverageChannelA = -1;
+        mAverageChannelB = -1;
+        mAverageDstChannelMask = 0;
+        mDstChannel = dstChannel;
+        mSrcChannels = srcChannels.clone();
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        if (mMix == MIX_LINEAR) {
+            Core.transform(src, dst, mTransform);
+            return;
+        }
+        
+        final int length = 4 * src.cols() * src.rows();
+        if (mPixels == null || mPixels.length < length) {
+            mPixels = new byte[length];
+        }
+        src.get(0, 0, mPixels);
+        applyToPixels(mPixels, 0, length);
+        dst.create(src.size(), src.type());
+        dst.put(0, 0, mPixels);
+    }
+    
+    @Override
+    public void applyToPixels(final byte[] pixels, final int offset,
+            final int length) {
+        if (SwarKernels.isPreferred()) {
+            if (mMix != MIX_LINEAR) {
+                SwarKernels.extremum(getPixelBuffer(pixels), offset,
+                        length, mMix == MIX_MIN, mDstChannel,
+                        mSrcChannels);
+                return;
+            } else if (mAverageDstChannelMask != 0) {
+                SwarKernels.average(getPixelBuffer(pixels), offset,
+                        length, mAverageChannelA, mAverageChannelB,
+                        mAverageDstChannelMask);
+                return;
+            }
+        }
+        if (mMix == MIX_LINEAR) {
+            applyLinear(pixels, offset, length);
+        } else {
+            applyExtremum(pixels, offset, length);
+        }
+    }
+    
+    // Returns a buffer over the pixels, reusing the calling thread's
+    // last buffer if it wraps the same array.
+    private ByteBuffer getPixelBuffer(final byte[] pixels) {
+        final ByteBuffer lastBuffer = mPixelBuffers.get();
+        final ByteBuffer buffer = SwarKernels.wrap(lastBuffer, pixels);
+        if (buffer != lastBuffer) {
+            mPixelBuffers.set(buffer);
+        }
+        return buffer;
+    }
+    
+    private void applyLinear(final byte[] pixels, final int offset,
+            final int length) {
+        final float[] m = mMatrix;
+        final boolean[] isChannelUnchanged = mIsChannelUnchanged;
+        final int end = offset + length;
+        for (int i = offset; i < end; i += 4) {
+            final float v0 = pixels[i] & 0xff;
+            final float v1 = pixels[i + 1] & 0xff;
+            final float v2 = pixels[i + 2] & 0xff;
+            final float v3 = pixels[i + 3] & 0xff;
+            for (int ch = 0, row = 0; ch < 4; ch++, row += 4) {
+                if (isChannelUnchanged[ch]) {
+                    continue;
+                }
+                final float value = m[row] * v0 + m[row + 1] * v1 +
+                        m[row + 2] * v2 + m[row + 3] * v3;
+                final int rounded = (int)Math.rint(value);
+                pixels[i + ch] = (byte)((rounded < 0) ? 0 :
+                        (rounded > 255) ? 255 : rounded);
+            }
+        }
+    }
+    
+    private void applyExtremum(final byte[] pixels, final int offset,
+            final int length) {
+        final int[] srcChannels = mSrcChannels;
+        final int dstChannel = mDstChannel;
+        final boolean isMin = (mMix == MIX_MIN);
+        final int end = offset + length;
+        for (int i = offset; i < end; i += 4) {
+            int value = pixels[i + srcChannels[0]] & 0xff;
+            for (int k = 1; k < srcChannels.length; k++) {
+                final int other = pixels[i + srcChannels[k]] & 0xff;
+                if (isMin ? (other < value) : (other > value)) {
+                    value = other;
+                }
+            }
+            pixels[i + dstChannel] = (byte)value;
+        }
+    }
+}
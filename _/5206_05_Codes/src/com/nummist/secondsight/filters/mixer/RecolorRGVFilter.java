@@ -1,28 +1,9 @@
 package com.nummist.secondsight.filters.mixer;
 
-import java.util.ArrayList;
+public class RecolorRGVFilter extends ChannelMixerFilter {
 
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-
-import com.nummist.secondsight.filters.Filter;
-
-public class RecolorRGVFilter implements Filter {
-    
-	private final ArrayList<Mat> mChannels = new ArrayList<Mat>(4);
-    
-    @Override
-    public void apply(final Mat src, final Mat dst) {
-        Core.split(src, mChannels);
-        
-        final Mat r = mChannels.get(0);
-        final Mat g = mChannels.get(1);
-        final Mat b = mChannels.get(2);
-        
+    public RecolorRGVFilter() {
         // dst.b = min(dst.r, dst.g, dst.b)
-        Core.min(b, r, b);
-        Core.min(b, g, b);
-        
-        Core.merge(mChannels, dst);
+        super(MIX_MIN, 2, new int[] { 0, 1, 2 });
     }
 }
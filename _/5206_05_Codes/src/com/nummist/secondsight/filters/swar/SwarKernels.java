@@ -0,0 +1,204 @@
+package com.nummist.secondsight.filters.swar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Per-pixel kernels that work on two RGBA pixels at a time, packed
+// into a long (SIMD within a register). Each channel of the two pixels
+// is a lane of the long, such as bits 0-7 and 32-39 for red, so one
+// shift, mask, add or compare handles both pixels.
+//
+// A long is read from a little-endian ByteBuffer that wraps the pixel
+// array. On a 64-bit desktop JVM, that is one load, so the kernels
+// beat their scalar equivalents. On Dalvik, it is assembled from
+// single bytes, so the scalar kernels are preferred there. The system
+// property "secondsight.swar" ("true" or "false") overrides the
+// choice.
+//
+// The kernels are bit-exact with the scalar kernels.
+public final class SwarKernels {
+    
+    // The low byte of each pixel's lane.
+    private static final long LANES = 0x000000ff000000ffL;
+    private static final long LANE_ONES = 0x0000000100000001L;
+    
+    // A guard bit above each lane, so that a subtraction cannot
+    // borrow from the other lane.
+    private static final long LANE_GUARDS = 0x0000010000000100L;
+    
+    // The low byte of each 16-bit lane, and half of 255 in each.
+    private static final long LANES_16 = 0x00ff00ff00ff00ffL;
+    private static final long HALVES_16 = 0x0080008000800080L;
+    
+    private static volatile boolean sIsPreferred = selectPreferred();
+    
+    private SwarKernels() {
+    }
+    
+    // Returns whether filters should use these kernels instead of
+    // their scalar ones.
+    public static boolean isPreferred() {
+        return sIsPreferred;
+    }
+    
+    // Overrides the runtime selection, for example to compare the
+    // backends.
+    public static void setPreferred(final boolean isPreferred) {
+        sIsPreferred = isPreferred;
+    }
+    
+    // Returns a little-endian buffer over the pixels, reusing the
+    // given buffer if it already wraps them. The buffer is only read
+    // and written at absolute indices, so threads may share it.
+    public static ByteBuffer wrap(final ByteBuffer buffer,
+            final byte[] pixels) {
+        if (buffer != null && buffer.array() == pixels) {
+            return buffer;
+        }
+        return ByteBuffer.wrap(pixels).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    // Sets each channel in dstChannelMask (bit 0 for red, and so on)
+    // to the average of channels a and b, rounded half to even like
+    // Core.addWeighted.
+    public static void average(final ByteBuffer pixels,
+            final int offset, final int length, final int channelA,
+            final int channelB, final int dstChannelMask) {
+        long keepMask = -1L;
+        for (int ch = 0; ch < 4; ch++) {
+            if ((dstChannelMask & (1 << ch)) != 0) {
+                keepMask &= ~(LANES << (8 * ch));
+            }
+        }
+        final int shiftA = 8 * channelA;
+        final int shiftB = 8 * channelB;
+        
+        final int pairEnd = offset + (length & ~7);
+        for (int i = offset; i < pairEnd; i += 8) {
+            final long x = pixels.getLong(i);
+            final long sum = ((x >>> shiftA) & LANES) +
+                    ((x >>> shiftB) & LANES);
+            final long half = (sum >>> 1) & LANES;
+            final long average = half + (sum & half & LANE_ONES);
+            long y = x & keepMask;
+            for (int ch = 0; ch < 4; ch++) {
+                if ((dstChannelMask & (1 << ch)) != 0) {
+                    y |= average << (8 * ch);
+                }
+            }
+            pixels.putLong(i, y);
+        }
+        
+        if (pairEnd < offset + length) {
+            // One pixel is left over.
+            final int sum = (pixels.get(pairEnd + channelA) & 0xff) +
+                    (pixels.get(pairEnd + channelB) & 0xff);
+            final int half = sum >> 1;
+            final byte average = (byte)(half + (sum & half & 1));
+            for (int ch = 0; ch < 4; ch++) {
+                if ((dstChannelMask & (1 << ch)) != 0) {
+                    pixels.put(pairEnd + ch, average);
+                }
+            }
+        }
+    }
+    
+    // Sets the destination channel to the minimum (or maximum) of the
+    // source channels.
+    public static void extremum(final ByteBuffer pixels,
+            final int offset, final int length, final boolean isMin,
+            final int dstChannel, final int[] srcChannels) {
+        final int dstShift = 8 * dstChannel;
+        final long keepMask = ~(LANES << dstShift);
+        
+        final int pairEnd = offset + (length & ~7);
+        for (int i = offset; i < pairEnd; i += 8) {
+            final long x = pixels.getLong(i);
+            long value = (x >>> (8 * srcChannels[0])) & LANES;
+            for (int k = 1; k < srcChannels.length; k++) {
+                final long other = (x >>> (8 * srcChannels[k])) & LANES;
+                
+                // Each lane's guard bit survives the subtraction
+                // if and only if value >= other in that lane.
+                final long isGreaterOrEqual =
+                        (((value | LANE_GUARDS) - other) >>> 8) &
+                        LANE_ONES;
+                final long mask = isGreaterOrEqual * 0xffL;
+                if (isMin) {
+                    value = (other & mask) | (value & ~mask);
+                } else {
+                    value = (value & mask) | (other & ~mask);
+                }
+            }
+            pixels.putLong(i, (x & keepMask) | (value << dstShift));
+        }
+        
+        if (pairEnd < offset + length) {
+            // One pixel is left over.
+            int value = pixels.get(pairEnd + srcChannels[0]) & 0xff;
+            for (int k = 1; k < srcChannels.length; k++) {
+                final int other =
+                        pixels.get(pairEnd + srcChannels[k]) & 0xff;
+                if (isMin ? (other < value) : (other > value)) {
+                    value = other;
+                }
+            }
+            pixels.put(pairEnd + dstChannel, (byte)value);
+        }
+    }
+    
+    // Sets dst = round(src * (255 - edges) / 255) in every channel,
+    // like Core.bitwise_not followed by Core.multiply with a scale of
+    // 1/255. The inversion is folded into the multiplication. The
+    // buffers may be the same.
+    public static void multiplyByInverse(final ByteBuffer src,
+            final ByteBuffer edges, final ByteBuffer dst,
+            final int offset, final int length) {
+        final int pairEnd = offset + (length & ~7);
+        for (int i = offset; i < pairEnd; i += 8) {
+            final long s = src.getLong(i);
+            final long e = ~edges.getLong(i);
+            
+            // Multiply each byte, and gather the products of the even
+            // and odd bytes into 16-bit lanes.
+            long even = 0L;
+            long odd = 0L;
+            for (int shift = 0; shift < 64; shift += 16) {
+                even |= (((s >>> shift) & 0xffL) *
+                        ((e >>> shift) & 0xffL)) << shift;
+                odd |= (((s >>> (shift + 8)) & 0xffL) *
+                        ((e >>> (shift + 8)) & 0xffL)) << shift;
+            }
+            
+            dst.putLong(i, divideBy255(even) |
+                    (divideBy255(odd) << 8));
+        }
+        
+        for (int i = pairEnd; i < offset + length; i++) {
+            // One pixel is left over.
+            final int product = (src.get(i) & 0xff) *
+                    (~edges.get(i) & 0xff);
+            dst.put(i, (byte)((product + 128 +
+                    ((product + 128) >> 8)) >> 8));
+        }
+    }
+    
+    // Divides each 16-bit lane, which holds at most 255 * 255, by 255
+    // with rounding. No lane can carry into the next.
+    private static long divideBy255(final long products) {
+        final long t = products + HALVES_16;
+        return ((t + ((t >>> 8) & LANES_16)) >>> 8) & LANES_16;
+    }
+    
+    private static boolean selectPreferred() {
+        final String override = System.getProperty("secondsight.swar");
+        if (override != null) {
+            return Boolean.parseBoolean(override);
+        }
+        // Android's runtimes, Dalvik and ART, both report "Dalvik".
+        final String vmName = System.getProperty("java.vm.name", "");
+        final String dataModel =
+                System.getProperty("sun.arch.data.model", "");
+        return !vmName.equals("Dalvik") && dataModel.equals("64");
+    }
+}
@@ -0,0 +1,169 @@
+package com.nummist.secondsight.matching;
+
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+// Binary descriptors, such as FREAK's or ORB's, packed into longs so
+// that the Hamming distance between two rows takes one Long.bitCount
+// per 64 bits. Each row is padded with zero bits to a whole number of
+// longs. The arrays are reused whenever they are big enough.
+public final class BinaryDescriptors {
+    
+    private byte[] mBytes = new byte[0];
+    // The first row of each packed Mat, and the number of rows.
+    private int[] mImageStarts = new int[1];
+    private int mNumImages;
+    private long[] mWords = new long[0];
+    private int mNumRows;
+    private int mBytesPerRow;
+    private int mWordsPerRow;
+    
+    // Packs a CV_8UC1 Mat with one descriptor per row.
+    public void pack(final Mat descriptors) {
+        clear();
+        append(descriptors);
+    }
+    
+    // Packs several CV_8UC1 Mats of the same width, one after
+    // another. Each Mat is an image, like in a train collection.
+    public void pack(final List<Mat> descriptors) {
+        clear();
+        for (final Mat mat : descriptors) {
+            append(mat);
+        }
+    }
+    
+    private void clear() {
+        mNumRows = 0;
+        mBytesPerRow = 0;
+        mWordsPerRow = 0;
+        mNumImages = 0;
+    }
+    
+    private void append(final Mat descriptors) {
+        if (mImageStarts.length < mNumImages + 2) {
+            final int[] imageStarts = new int[2 * (mNumImages + 1)];
+            System.arraycopy(mImageStarts, 0, imageStarts, 0,
+                    mNumImages + 1);
+            mImageStarts = imageStarts;
+        }
+        mImageStarts[mNumImages] = mNumRows;
+        mNumImages++;
+        mImageStarts[mNumImages] = mNumRows;
+        
+        final int rows = descriptors.rows();
+        if (rows == 0) {
+            return;
+        }
+        final int cols = descriptors.cols();
+        if (mNumRows == 0) {
+            mBytesPerRow = cols;
+            mWordsPerRow = (cols + 7) / 8;
+        } else if (cols != mBytesPerRow) {
+            throw new IllegalArgumentException(
+                    "The descriptors must all have " + mBytesPerRow +
+                            " bytes");
+        }
+        
+        final int numBytes = rows * cols;
+        if (mBytes.length < numBytes) {
+            mBytes = new byte[numBytes];
+        }
+        descriptors.get(0, 0, mBytes);
+        
+        final int numWords = (mNumRows + rows) * mWordsPerRow;
+        if (mWords.length < numWords) {
+            final long[] words = new long[Math.max(numWords,
+                    2 * mWords.length)];
+            System.arraycopy(mWords, 0, words, 0,
+                    mNumRows * mWordsPerRow);
+            mWords = words;
+        }
+        
+        for (int row = 0; row < rows; row++) {
+            final int byteOffset = row * cols;
+            final int wordOffset = (mNumRows + row) * mWordsPerRow;
+            for (int word = 0; word < mWordsPerRow; word++) {
+                long value = 0L;
+                final int end = Math.min(8 * word + 8, cols);
+                for (int i = end - 1; i >= 8 * word; i--) {
+                    value = (value << 8) |
+                            (mBytes[byteOffset + i] & 0xffL);
+                }
+                mWords[wordOffset + word] = value;
+            }
+        }
+        mNumRows += rows;
+        mImageStarts[mNumImages] = mNumRows;
+    }
+    
+    // The packed rows, which hold getWordsPerRow() longs each. Bit
+    // (8 * i + j) of a row is bit j of its descriptor's byte i.
+    public long[] getWords() {
+        return mWords;
+    }
+    
+    public int getNumRows() {
+        return mNumRows;
+    }
+    
+    public int getBytesPerRow() {
+        return mBytesPerRow;
+    }
+    
+    public int getWordsPerRow() {
+        return mWordsPerRow;
+    }
+    
+    public int getNumImages() {
+        return mNumImages;
+    }
+    
+    // Returns the index of the packed Mat that holds a row.
+    public int getImageIndex(final int row) {
+        int low = 0;
+        int high = mNumImages - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mImageStarts[mid] <= row) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+    
+    // Returns the first row of a packed Mat.
+    public int getImageStart(final int imageIndex) {
+        return mImageStarts[imageIndex];
+    }
+    
+    // Returns the first of the rows that are nearest to a packed row
+    // of the same size, or -1 if there are no rows.
+    public int findNearestRow(final long[] words, final int offset) {
+        int nearestRow = -1;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (int row = 0; row < mNumRows; row++) {
+            final int distance = distance(words, offset, mWords,
+                    row * mWordsPerRow, mWordsPerRow);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearestRow = row;
+            }
+        }
+        return nearestRow;
+    }
+    
+    // Returns the Hamming distance between numWords longs of a, from
+    // aOffset, and of b, from bOffset.
+    public static int distance(final long[] a, final int aOffset,
+            final long[] b, final int bOffset, final int numWords) {
+        int distance = 0;
+        for (int i = 0; i < numWords; i++) {
+            distance += Long.bitCount(a[aOffset + i] ^ b[bOffset + i]);
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,242 @@
+package com.nummist.secondsight.matching;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+
+import com.nummist.secondsight.parallel.WorkerPool;
+
+// Matches binary descriptors by brute force in pure Java, with the
+// same results as OpenCV's BRUTEFORCE_HAMMING matcher: each query's
+// match is the nearest train row, and of equally near rows, the first
+// one in the order of the train collection.
+//
+// The descriptors are packed into longs, so a distance takes one
+// Long.bitCount per 64 bits. The query x train pairs are visited in
+// tiles, so that a tile of train rows stays in the cache while every
+// query of a tile is compared to it. A comparison stops as soon as
+// its partial distance reaches the query's best distance so far, since
+// a later row must be strictly nearer to win. In a kNN match, the
+// comparison stops at the query's kth best distance so far.
+//
+// With a WorkerPool, the query tiles are shared between its workers.
+public class BlockedHammingMatcher implements FeatureMatcher,
+        WorkerPool.Task {
+    
+    // The rows per tile. A train tile of FREAK descriptors is 16 KB.
+    private static final int QUERY_TILE_ROWS = 32;
+    private static final int TRAIN_TILE_ROWS = 256;
+    
+    private final WorkerPool mWorkerPool;
+    
+    private final BinaryDescriptors mTrainDescriptors =
+            new BinaryDescriptors();
+    private final BinaryDescriptors mQueryDescriptors =
+            new BinaryDescriptors();
+    private final MatchWriter mMatchWriter = new MatchWriter();
+    
+    // The k best train rows and distances of each query so far,
+    // nearest first, at [k * query, k * query + k). A missing match
+    // has row -1.
+    private int[] mBestRows = new int[0];
+    private int[] mBestDistances = new int[0];
+    
+    // The state of the current match.
+    private final AtomicInteger mNextQueryTile = new AtomicInteger();
+    private int mNumQueryTiles;
+    private int mK;
+    
+    public BlockedHammingMatcher() {
+        this(null);
+    }
+    
+    // The worker pool may be null, to match on the calling thread.
+    public BlockedHammingMatcher(final WorkerPool workerPool) {
+        mWorkerPool = workerPool;
+    }
+    
+    @Override
+    public void train(final List<Mat> trainDescriptors) {
+        mTrainDescriptors.pack(trainDescriptors);
+    }
+    
+    @Override
+    public void match(final Mat queryDescriptors,
+            final MatOfDMatch matches) {
+        mMatchWriter.clear();
+        final int numQueries = findBest(queryDescriptors, 1);
+        for (int query = 0; query < numQueries; query++) {
+            mMatchWriter.add(query, mTrainDescriptors,
+                    mBestRows[query], mBestDistances[query]);
+        }
+        mMatchWriter.write(matches);
+    }
+    
+    @Override
+    public void knnMatch(final Mat queryDescriptors,
+            final List<MatOfDMatch> matches, final int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        final int numQueries = findBest(queryDescriptors, k);
+        mMatchWriter.resize(matches, queryDescriptors.rows());
+        for (int query = 0; query < matches.size(); query++) {
+            mMatchWriter.clear();
+            if (query < numQueries) {
+                for (int i = k * query;
+                        i < k * query + k && mBestRows[i] >= 0; i++) {
+                    mMatchWriter.add(query, mTrainDescriptors,
+                            mBestRows[i], mBestDistances[i]);
+                }
+            }
+            mMatchWriter.write(matches.get(query));
+        }
+    }
+    
+    // Finds the k best train rows of each query, and returns the
+    // number of queries, or 0 if there are no train rows.
+    private int findBest(final Mat queryDescriptors, final int k) {
+        mQueryDescriptors.pack(queryDescriptors);
+        final int numQueries = mQueryDescriptors.getNumRows();
+        if (numQueries == 0 || mTrainDescriptors.getNumRows() == 0) {
+            return 0;
+        }
+        if (mQueryDescriptors.getBytesPerRow() !=
+                mTrainDescriptors.getBytesPerRow()) {
+            throw new IllegalArgumentException(
+                    "The query and train descriptors must have " +
+                            "the same size");
+        }
+        if (mBestRows.length < k * numQueries) {
+            mBestRows = new int[k * numQueries];
+            mBestDistances = new int[k * numQueries];
+        }
+            
+        mK = k;
+        mNumQueryTiles = (numQueries + QUERY_TILE_ROWS - 1) /
+                QUERY_TILE_ROWS;
+        mNextQueryTile.set(0);
+        if (mWorkerPool == null ||
+                mWorkerPool.getNumWorkers() < 2 ||
+                mNumQueryTiles < 2) {
+            run(0);
+        } else {
+            mWorkerPool.run(this);
+        }
+        return numQueries;
+    }
+    
+    @Override
+    public void run(final int workerIndex) {
+        int tile;
+        while ((tile = mNextQueryTile.getAndIncrement()) <
+                mNumQueryTiles) {
+            final int queryStart = tile * QUERY_TILE_ROWS;
+            final int queryEnd = Math.min(
+                    queryStart + QUERY_TILE_ROWS,
+                    mQueryDescriptors.getNumRows());
+            if (mK == 1) {
+                matchQueryTile(queryStart, queryEnd);
+            } else {
+                knnMatchQueryTile(queryStart, queryEnd, mK);
+            }
+        }
+    }
+    
+    private void matchQueryTile(final int queryStart,
+            final int queryEnd) {
+        final long[] queryWords = mQueryDescriptors.getWords();
+        final long[] trainWords = mTrainDescriptors.getWords();
+        final int wordsPerRow = mTrainDescriptors.getWordsPerRow();
+        final int numTrainRows = mTrainDescriptors.getNumRows();
+        final int[] bestRows = mBestRows;
+        final int[] bestDistances = mBestDistances;
+        
+        for (int query = queryStart; query < queryEnd; query++) {
+            bestRows[query] = -1;
+            bestDistances[query] = Integer.MAX_VALUE;
+        }
+        
+        for (int trainStart = 0; trainStart < numTrainRows;
+                trainStart += TRAIN_TILE_ROWS) {
+            final int trainEnd = Math.min(trainStart + TRAIN_TILE_ROWS,
+                    numTrainRows);
+            for (int query = queryStart; query < queryEnd; query++) {
+                final int queryOffset = query * wordsPerRow;
+                int bestRow = bestRows[query];
+                int bestDistance = bestDistances[query];
+                for (int row = trainStart; row < trainEnd; row++) {
+                    final int rowOffset = row * wordsPerRow;
+                    int distance = 0;
+                    for (int i = 0; i < wordsPerRow; i++) {
+                        distance += Long.bitCount(
+                                queryWords[queryOffset + i] ^
+                                        trainWords[rowOffset + i]);
+                        if (distance >= bestDistance) {
+                            break;
+                        }
+                    }
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        bestRow = row;
+                    }
+                }
+                bestRows[query] = bestRow;
+                bestDistances[query] = bestDistance;
+            }
+        }
+    }
+    
+    private void knnMatchQueryTile(final int queryStart,
+            final int queryEnd, final int k) {
+        final long[] queryWords = mQueryDescriptors.getWords();
+        final long[] trainWords = mTrainDescriptors.getWords();
+        final int wordsPerRow = mTrainDescriptors.getWordsPerRow();
+        final int numTrainRows = mTrainDescriptors.getNumRows();
+        final int[] bestRows = mBestRows;
+        final int[] bestDistances = mBestDistances;
+        
+        for (int i = k * queryStart; i < k * queryEnd; i++) {
+            bestRows[i] = -1;
+            bestDistances[i] = Integer.MAX_VALUE;
+        }
+        
+        for (int trainStart = 0; trainStart < numTrainRows;
+                trainStart += TRAIN_TILE_ROWS) {
+            final int trainEnd = Math.min(trainStart + TRAIN_TILE_ROWS,
+                    numTrainRows);
+            for (int query = queryStart; query < queryEnd; query++) {
+                final int queryOffset = query * wordsPerRow;
+                final int first = k * query;
+                final int last = first + k - 1;
+                for (int row = trainStart; row < trainEnd; row++) {
+                    final int rowOffset = row * wordsPerRow;
+                    final int worstDistance = bestDistances[last];
+                    int distance = 0;
+                    for (int i = 0; i < wordsPerRow; i++) {
+                        distance += Long.bitCount(
+                                queryWords[queryOffset + i] ^
+                                        trainWords[rowOffset + i]);
+                        if (distance >= worstDistance) {
+                            break;
+                        }
+                    }
+                    if (distance < worstDistance) {
+                        // Insert the row after any equally near rows.
+                        int i = last;
+                        while (i > first &&
+                                bestDistances[i - 1] > distance) {
+                            bestDistances[i] = bestDistances[i - 1];
+                            bestRows[i] = bestRows[i - 1];
+                            i--;
+                        }
+                        bestDistances[i] = distance;
+                        bestRows[i] = row;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.nummist.secondsight.matching;
+
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+
+// Finds the best match for each query descriptor among one or more
+// sets of train descriptors, like OpenCV's DescriptorMatcher with a
+// train collection.
+public interface FeatureMatcher {
+    
+    // Replaces the train descriptors with the given sets, one per
+    // image, and builds any index over them. The Mats must stay
+    // unchanged while the matcher uses them.
+    public void train(final List<Mat> trainDescriptors);
+    
+    // Finds the best match for each query descriptor. Each match's
+    // trainIdx is the row in the set whose index is its imgIdx. Some
+    // query descriptors may have no match if the matcher is
+    // approximate.
+    public void match(final Mat queryDescriptors,
+            final MatOfDMatch matches);
+    
+    // Finds the k best matches for each query descriptor, nearest
+    // first, like DescriptorMatcher.knnMatch. The list gets one entry
+    // per query descriptor, which may hold fewer than k matches.
+    public void knnMatch(final Mat queryDescriptors,
+            final List<MatOfDMatch> matches, final int k);
+}
@@ -0,0 +1,335 @@
+package com.nummist.secondsight.matching;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+
+// Matches binary descriptors approximately, with a multi-table
+// locality-sensitive hash index, like FLANN's LSH index. Each table
+// hashes a descriptor to a key of keySize bits, sampled at random
+// positions. Near descriptors share most bits, so they likely share
+// a key in at least one table. A query is compared only to the train
+// descriptors in its buckets, instead of to all of them.
+//
+// More tables raise the recall and the cost. A bigger key makes the
+// buckets smaller, so the matching is faster but misses more. With
+// multi-probe level 1, a query also looks in the buckets of the keys
+// that differ from its own by one bit, which raises the recall
+// without more tables.
+//
+// The index is built once, by train(). Each table is an array of
+// train rows, sorted by key, so a bucket is found by binary search.
+public class LSHMatcher implements FeatureMatcher {
+    
+    public static final int DEFAULT_NUM_TABLES = 6;
+    public static final int DEFAULT_KEY_SIZE = 12;
+    public static final int DEFAULT_MULTI_PROBE_LEVEL = 1;
+    
+    public static final int MAX_KEY_SIZE = 30;
+    public static final int MAX_MULTI_PROBE_LEVEL = 1;
+    
+    // The sampled bits are the same for every run, so the results are
+    // repeatable.
+    private static final long SEED = 0x5ec0d5167L;
+    
+    private final int mNumTables;
+    private final int mKeySize;
+    private final int mMultiProbeLevel;
+    
+    private final BinaryDescriptors mTrainDescriptors =
+            new BinaryDescriptors();
+    private final BinaryDescriptors mQueryDescriptors =
+            new BinaryDescriptors();
+    private final MatchWriter mMatchWriter = new MatchWriter();
+    
+    // For each table, the sampled bit positions, and the train rows
+    // with their keys, sorted by key.
+    private int[][] mKeyBits;
+    private int[][] mSortedKeys;
+    private int[][] mSortedRows;
+    
+    // The query that last compared each train row, so that a row in
+    // several of a query's buckets is compared once.
+    private int[] mVisitStamps = new int[0];
+    private int mStamp;
+    
+    // The k best train rows and distances of the current query,
+    // nearest first.
+    private int[] mBestRows = new int[1];
+    private int[] mBestDistances = new int[1];
+    private int mNumBest;
+    
+    // The number of train rows that the last match() compared, over
+    // all queries.
+    private long mNumComparisons;
+    
+    public LSHMatcher() {
+        this(DEFAULT_NUM_TABLES, DEFAULT_KEY_SIZE,
+                DEFAULT_MULTI_PROBE_LEVEL);
+    }
+    
+    public LSHMatcher(final int numTables, final int keySize,
+            final int multiProbeLevel) {
+        if (numTables < 1) {
+            throw new IllegalArgumentException(
+                    "There must be at least 1 table");
+        }
+        if (keySize < 1 || keySize > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException(
+                    "The key size must be in [1, " + MAX_KEY_SIZE +
+                            "]");
+        }
+        if (multiProbeLevel < 0 ||
+                multiProbeLevel > MAX_MULTI_PROBE_LEVEL) {
+            throw new IllegalArgumentException(
+                    "The multi-probe level must be in [0, " +
+                            MAX_MULTI_PROBE_LEVEL + "]");
+        }
+        mNumTables = numTables;
+        mKeySize = keySize;
+        mMultiProbeLevel = multiProbeLevel;
+    }
+    
+    public int getNumTables() {
+        return mNumTables;
+    }
+    
+    public int getKeySize() {
+        return mKeySize;
+    }
+    
+    public int getMultiProbeLevel() {
+        return mMultiProbeLevel;
+    }
+    
+    public long getNumComparisons() {
+        return mNumComparisons;
+    }
+    
+    @Override
+    public void train(final List<Mat> trainDescriptors) {
+        mTrainDescriptors.pack(trainDescriptors);
+        final int numRows = mTrainDescriptors.getNumRows();
+        final int numBits = 8 * mTrainDescriptors.getBytesPerRow();
+        if (numRows > 0 && numBits < mKeySize) {
+            throw new IllegalArgumentException(
+                    "The key size exceeds the descriptor size");
+        }
+        
+        final Random random = new Random(SEED);
+        final long[] keysAndRows = new long[numRows];
+        mKeyBits = new int[mNumTables][];
+        mSortedKeys = new int[mNumTables][numRows];
+        mSortedRows = new int[mNumTables][numRows];
+        for (int table = 0; table < mNumTables; table++) {
+            mKeyBits[table] = sampleBits(random, numBits);
+            for (int row = 0; row < numRows; row++) {
+                final long key = getKey(mKeyBits[table],
+                        mTrainDescriptors.getWords(),
+                        row * mTrainDescriptors.getWordsPerRow());
+                keysAndRows[row] = (key << 32) | row;
+            }
+            Arrays.sort(keysAndRows);
+            for (int i = 0; i < numRows; i++) {
+                mSortedKeys[table][i] = (int)(keysAndRows[i] >>> 32);
+                mSortedRows[table][i] = (int)keysAndRows[i];
+            }
+        }
+        
+        mVisitStamps = new int[numRows];
+        mStamp = 0;
+    }
+    
+    // Returns mKeySize distinct bit positions in [0, numBits), in
+    // increasing order.
+    private int[] sampleBits(final Random random, final int numBits) {
+        final int[] bits = new int[mKeySize];
+        if (numBits == 0) {
+            return bits;
+        }
+        final boolean[] isSampled = new boolean[numBits];
+        for (int i = 0; i < mKeySize; i++) {
+            int bit;
+            do {
+                bit = random.nextInt(numBits);
+            } while (isSampled[bit]);
+            isSampled[bit] = true;
+        }
+        int i = 0;
+        for (int bit = 0; bit < numBits; bit++) {
+            if (isSampled[bit]) {
+                bits[i++] = bit;
+            }
+        }
+        return bits;
+    }
+    
+    private static int getKey(final int[] keyBits, final long[] words,
+            final int offset) {
+        int key = 0;
+        for (int i = 0; i < keyBits.length; i++) {
+            final int bit = keyBits[i];
+            key |= (int)((words[offset + (bit >>> 6)] >>> bit) & 1L)
+                    << i;
+        }
+        return key;
+    }
+    
+    @Override
+    public void match(final Mat queryDescriptors,
+            final MatOfDMatch matches) {
+        mMatchWriter.clear();
+        final int numQueries = pack(queryDescriptors, 1);
+        for (int query = 0; query < numQueries; query++) {
+            matchQuery(query);
+            if (mNumBest > 0) {
+                mMatchWriter.add(query, mTrainDescriptors,
+                        mBestRows[0], mBestDistances[0]);
+            }
+        }
+        mMatchWriter.write(matches);
+    }
+    
+    @Override
+    public void knnMatch(final Mat queryDescriptors,
+            final List<MatOfDMatch> matches, final int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        final int numQueries = pack(queryDescriptors, k);
+        mMatchWriter.resize(matches, queryDescriptors.rows());
+        for (int query = 0; query < matches.size(); query++) {
+            mMatchWriter.clear();
+            if (query < numQueries) {
+                matchQuery(query);
+                for (int i = 0; i < mNumBest; i++) {
+                    mMatchWriter.add(query, mTrainDescriptors,
+                            mBestRows[i], mBestDistances[i]);
+                }
+            }
+            mMatchWriter.write(matches.get(query));
+        }
+    }
+    
+    // Packs the query descriptors for a search of the k best matches,
+    // and returns the number of queries, or 0 if there are no train
+    // rows.
+    private int pack(final Mat queryDescriptors, final int k) {
+        mNumComparisons = 0L;
+        mQueryDescriptors.pack(queryDescriptors);
+        final int numQueries = mQueryDescriptors.getNumRows();
+        if (numQueries == 0 || mTrainDescriptors.getNumRows() == 0) {
+            return 0;
+        }
+        if (mQueryDescriptors.getBytesPerRow() !=
+                mTrainDescriptors.getBytesPerRow()) {
+            throw new IllegalArgumentException(
+                    "The query and train descriptors must have " +
+                            "the same size");
+        }
+        if (mBestRows.length != k) {
+            mBestRows = new int[k];
+            mBestDistances = new int[k];
+        }
+        return numQueries;
+    }
+    
+    // Finds the best matches of a query among the rows in its buckets.
+    private void matchQuery(final int query) {
+        mStamp++;
+        if (mStamp == 0) {
+            // The stamps wrapped around, so forget the old ones.
+            Arrays.fill(mVisitStamps, 0);
+            mStamp = 1;
+        }
+        mNumBest = 0;
+        
+        final int queryOffset =
+                query * mQueryDescriptors.getWordsPerRow();
+        for (int table = 0; table < mNumTables; table++) {
+            final int key = getKey(mKeyBits[table],
+                    mQueryDescriptors.getWords(), queryOffset);
+            probe(table, key, queryOffset);
+            if (mMultiProbeLevel > 0) {
+                for (int i = 0; i < mKeySize; i++) {
+                    probe(table, key ^ (1 << i), queryOffset);
+                }
+            }
+        }
+    }
+    
+    // Compares the query to the train rows in a bucket. Of equally
+    // near rows, the first one wins, like in a brute-force search.
+    private void probe(final int table, final int key,
+            final int queryOffset) {
+        final int[] sortedKeys = mSortedKeys[table];
+        final int[] sortedRows = mSortedRows[table];
+        final long[] trainWords = mTrainDescriptors.getWords();
+        final long[] queryWords = mQueryDescriptors.getWords();
+        final int wordsPerRow = mTrainDescriptors.getWordsPerRow();
+        
+        for (int i = lowerBound(sortedKeys, key);
+                i < sortedKeys.length && sortedKeys[i] == key; i++) {
+            final int row = sortedRows[i];
+            if (mVisitStamps[row] == mStamp) {
+                continue;
+            }
+            mVisitStamps[row] = mStamp;
+            mNumComparisons++;
+            final int distance = BinaryDescriptors.distance(
+                    queryWords, queryOffset, trainWords,
+                    row * wordsPerRow, wordsPerRow);
+            insert(row, distance);
+        }
+    }
+    
+    // Inserts a row among the best rows, if it is nearer than the
+    // worst of them, or as near but earlier.
+    private void insert(final int row, final int distance) {
+        final int k = mBestRows.length;
+        int i = mNumBest;
+        if (i == k) {
+            if (!isBefore(row, distance, mBestRows[k - 1],
+                    mBestDistances[k - 1])) {
+                return;
+            }
+            i--;
+        } else {
+            mNumBest++;
+        }
+        while (i > 0 && isBefore(row, distance, mBestRows[i - 1],
+                mBestDistances[i - 1])) {
+            mBestRows[i] = mBestRows[i - 1];
+            mBestDistances[i] = mBestDistances[i - 1];
+            i--;
+        }
+        mBestRows[i] = row;
+        mBestDistances[i] = distance;
+    }
+    
+    private static boolean isBefore(final int row, final int distance,
+            final int otherRow, final int otherDistance) {
+        return distance < otherDistance ||
+                (distance == otherDistance && row < otherRow);
+    }
+    
+    // Returns the index of the first element that is not less than
+    // the key.
+    private static int lowerBound(final int[] sortedKeys,
+            final int key) {
+        int low = 0;
+        int high = sortedKeys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (sortedKeys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,71 @@
+package com.nummist.secondsight.matching;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfDMatch;
+
+// Collects matches against packed train descriptors and writes them
+// into a MatOfDMatch in one put, without creating DMatch objects.
+final class MatchWriter {
+    
+    // (queryIdx, trainIdx, imgIdx, distance) for each match, which is
+    // the layout of a MatOfDMatch.
+    private float[] mMatchArray = new float[0];
+    private int mNumMatches;
+    
+    // The Mats that resize() removed from a list of kNN matches, to
+    // be added back when the number of queries grows again.
+    private final List<MatOfDMatch> mSpareMatches =
+            new ArrayList<MatOfDMatch>();
+    
+    void clear() {
+        mNumMatches = 0;
+    }
+    
+    // Adds a match of a query row to a row of the train descriptors,
+    // which is mapped back to its image and its row in that image.
+    void add(final int queryIdx, final BinaryDescriptors train,
+            final int trainRow, final int distance) {
+        if (mMatchArray.length < 4 * (mNumMatches + 1)) {
+            final float[] matchArray =
+                    new float[Math.max(64, 2 * mMatchArray.length)];
+            System.arraycopy(mMatchArray, 0, matchArray, 0,
+                    4 * mNumMatches);
+            mMatchArray = matchArray;
+        }
+        final int imageIndex = train.getImageIndex(trainRow);
+        final int i = 4 * mNumMatches;
+        mMatchArray[i] = queryIdx;
+        mMatchArray[i + 1] = trainRow - train.getImageStart(imageIndex);
+        mMatchArray[i + 2] = imageIndex;
+        mMatchArray[i + 3] = distance;
+        mNumMatches++;
+    }
+    
+    int getNumMatches() {
+        return mNumMatches;
+    }
+    
+    void write(final MatOfDMatch matches) {
+        matches.create(mNumMatches, 1, CvType.CV_32FC4);
+        if (mNumMatches > 0) {
+            matches.put(0, 0, mMatchArray);
+        }
+    }
+    
+    // Resizes a list of kNN matches to the given number of queries,
+    // reusing the Mats that it already holds and those that earlier
+    // calls removed, so that a number of queries that varies from
+    // frame to frame allocates no new Mats once it has peaked.
+    void resize(final List<MatOfDMatch> matches, final int numQueries) {
+        while (matches.size() > numQueries) {
+            mSpareMatches.add(matches.remove(matches.size() - 1));
+        }
+        while (matches.size() < numQueries) {
+            matches.add(mSpareMatches.isEmpty() ? new MatOfDMatch() :
+                    mSpareMatches.remove(mSpareMatches.size() - 1));
+        }
+    }
+}
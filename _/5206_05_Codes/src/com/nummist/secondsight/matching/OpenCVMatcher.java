@@ -0,0 +1,45 @@
+package com.nummist.secondsight.matching;
+
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+
+// Matches with one of OpenCV's descriptor matchers, by default the
+// brute-force Hamming matcher.
+public class OpenCVMatcher implements FeatureMatcher {
+    
+    private final DescriptorMatcher mMatcher;
+    
+    public OpenCVMatcher() {
+        this(DescriptorMatcher.BRUTEFORCE_HAMMING);
+    }
+    
+    // The type is one of DescriptorMatcher's types.
+    public OpenCVMatcher(final int matcherType) {
+        mMatcher = DescriptorMatcher.create(matcherType);
+    }
+    
+    @Override
+    public void train(final List<Mat> trainDescriptors) {
+        mMatcher.clear();
+        mMatcher.add(trainDescriptors);
+        mMatcher.train();
+    }
+    
+    @Override
+    public void match(final Mat queryDescriptors,
+            final MatOfDMatch matches) {
+        mMatcher.match(queryDescriptors, matches);
+    }
+    
+    // OpenCV's wrapper converts the matches into a new MatOfDMatch per
+    // query descriptor on every call, so unlike LSHMatcher and
+    // BlockedHammingMatcher, this allocates per frame.
+    @Override
+    public void knnMatch(final Mat queryDescriptors,
+            final List<MatOfDMatch> matches, final int k) {
+        mMatcher.knnMatch(queryDescriptors, matches, k);
+    }
+}
@@ -0,0 +1,183 @@
+package com.nummist.secondsight.parallel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.FilterChain;
+import com.nummist.secondsight.filters.FilterFactory;
+import com.nummist.secondsight.filters.LocalFilter;
+import com.nummist.secondsight.filters.PixelFilter;
+
+// Applies a filter to horizontal stripes of a frame on all of a
+// WorkerPool's workers. Each worker has its own instance of the
+// filter, and takes the next stripe whenever it finishes one, so
+// that a whole chain of filters runs on a stripe while the stripe
+// is still in the worker's cache.
+//
+// A stripe of a local filter, such as StrokeEdgesFilter, is extended
+// by the filter's radius on each side (its halo), filtered into the
+// worker's own Mat, and then trimmed back into dst. Stripes of a
+// pixel filter are filtered straight into dst. A filter that is not
+// local, such as an AR filter, is applied to the whole frame on the
+// calling thread.
+//
+// All stripes but the last have the same height, and the window of
+// rows that a local filter sees is the same height for every stripe:
+// at the top and bottom of the frame, the window is shifted inwards
+// rather than clipped. So the workers' filters, and their buffers,
+// always see one size of input, and nothing is reallocated when a
+// worker moves from one stripe to another.
+public class TiledFilter implements Filter, WorkerPool.Task {
+    
+    // The number of stripes per worker. Extra stripes balance the load
+    // when some workers are slower than others.
+    public static final int DEFAULT_STRIPES_PER_WORKER = 4;
+    
+    private final WorkerPool mWorkerPool;
+    private final Filter[] mFilters;
+    private final int mRadius;
+    private final int mStripesPerWorker;
+    
+    // Each worker's output for a stripe's window.
+    private final Mat[] mStripeMats;
+    
+    // A copy of the frame, when the filter is local and applied in
+    // place, so that no stripe's halo is overwritten by another
+    // stripe.
+    private final Mat mInputCopy = new Mat();
+    
+    // The state of the current apply(src, dst) call.
+    private final AtomicInteger mNextStripe = new AtomicInteger();
+    private int mNumStripes;
+    private int mRowsPerStripe;
+    private int mWindowRows;
+    private Mat mInput;
+    private Mat mOutput;
+    
+    public TiledFilter(final FilterFactory filterFactory,
+            final WorkerPool workerPool) {
+        this(filterFactory, workerPool, DEFAULT_STRIPES_PER_WORKER);
+    }
+    
+    public TiledFilter(final FilterFactory filterFactory,
+            final WorkerPool workerPool, final int stripesPerWorker) {
+        mWorkerPool = workerPool;
+        mFilters = new Filter[workerPool.getNumWorkers()];
+        mStripeMats = new Mat[mFilters.length];
+        for (int i = 0; i < mFilters.length; i++) {
+            mFilters[i] = filterFactory.create();
+            mStripeMats[i] = new Mat();
+        }
+        mRadius = getRadius(mFilters[0]);
+        mStripesPerWorker = stripesPerWorker;
+    }
+    
+    // Returns the number of rows that a stripe's halo adds on each
+    // side, or -1 if the filter cannot be applied in stripes.
+    public int getRadius() {
+        return mRadius;
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        final int rows = src.rows();
+        final int maxStripes = Math.min(rows,
+                mFilters.length * mStripesPerWorker);
+        if (mRadius < 0 || maxStripes < 2) {
+            mFilters[0].apply(src, dst);
+            return;
+        }
+        mRowsPerStripe = (rows + maxStripes - 1) / maxStripes;
+        mNumStripes = (rows + mRowsPerStripe - 1) / mRowsPerStripe;
+        mWindowRows = mRowsPerStripe + 2 * mRadius;
+        if (mWindowRows > rows) {
+            // The halos would cover the whole frame.
+            mFilters[0].apply(src, dst);
+            return;
+        }
+        
+        dst.create(src.size(), src.type());
+        if (mRadius > 0 && src == dst) {
+            src.copyTo(mInputCopy);
+            mInput = mInputCopy;
+        } else {
+            mInput = src;
+        }
+        mOutput = dst;
+        mNextStripe.set(0);
+        try {
+            mWorkerPool.run(this);
+        } finally {
+            mInput = null;
+            mOutput = null;
+        }
+    }
+    
+    @Override
+    public void run(final int workerIndex) {
+        final Filter filter = mFilters[workerIndex];
+        final Mat stripeMat = mStripeMats[workerIndex];
+        final int rows = mInput.rows();
+        final int cols = mInput.cols();
+        
+        int stripe;
+        while ((stripe = mNextStripe.getAndIncrement()) < mNumStripes) {
+            final int rowStart = stripe * mRowsPerStripe;
+            final int rowEnd =
+                    Math.min(rows, rowStart + mRowsPerStripe);
+            final Mat dstStripe =
+                    mOutput.submat(rowStart, rowEnd, 0, cols);
+            if (mRadius == 0) {
+                final Mat srcStripe =
+                        mInput.submat(rowStart, rowEnd, 0, cols);
+                filter.apply(srcStripe, dstStripe);
+                srcStripe.release();
+            } else {
+                // The window holds at least mRadius rows on each side
+                // of the stripe, except where it meets the frame's
+                // border, which the filter then handles as it would
+                // for the whole frame.
+                final int windowStart = Math.max(0, Math.min(
+                        rowStart - mRadius, rows - mWindowRows));
+                final Mat srcStripe = mInput.submat(windowStart,
+                        windowStart + mWindowRows, 0, cols);
+                filter.apply(srcStripe, stripeMat);
+                final Mat trimmedStripe = stripeMat.submat(
+                        rowStart - windowStart, rowEnd - windowStart,
+                        0, cols);
+                trimmedStripe.copyTo(dstStripe);
+                trimmedStripe.release();
+                srcStripe.release();
+            }
+            dstStripe.release();
+        }
+    }
+    
+    // Returns the number of rows of input on each side of an output
+    // row that the filter reads, or -1 if that is not bounded.
+    public static int getRadius(final Filter filter) {
+        if (filter instanceof PixelFilter) {
+            return 0;
+        }
+        if (filter instanceof LocalFilter) {
+            return ((LocalFilter)filter).getRadius();
+        }
+        if (filter instanceof FilterChain) {
+            // Each stage widens the input that an output row depends
+            // on.
+            int radius = 0;
+            for (final Filter stage :
+                    ((FilterChain)filter).getStages()) {
+                final int stageRadius = getRadius(stage);
+                if (stageRadius < 0) {
+                    return -1;
+                }
+                radius += stageRadius;
+            }
+            return radius;
+        }
+        return -1;
+    }
+}
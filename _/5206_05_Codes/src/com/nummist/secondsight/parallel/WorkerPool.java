@@ -0,0 +1,149 @@
+package com.nummist.secondsight.parallel;
+
+// A fixed set of threads that run a task together. The thread that
+// calls run(task) is worker 0, and the pool's threads are workers 1
+// to getNumWorkers() - 1, so a pool of 1 worker has no threads.
+//
+// The workers of a task usually divide its work by taking indices
+// from a shared counter, so that a worker that finishes early takes
+// on more of the work.
+public class WorkerPool {
+    
+    public interface Task {
+        // Called once on each worker, concurrently.
+        public abstract void run(final int workerIndex);
+    }
+    
+    private final Thread[] mThreads;
+    
+    // Serializes calls to run(task).
+    private final Object mRunLock = new Object();
+    
+    // The state of the current task, guarded by this.
+    private Task mTask;
+    private int mGeneration;
+    private int mNumPendingWorkers;
+    private RuntimeException mFailure;
+    private boolean mIsClosed;
+    
+    // Creates a pool with one worker per processor.
+    public WorkerPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    public WorkerPool(final int numWorkers) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException(
+                    "A pool needs at least 1 worker");
+        }
+        mThreads = new Thread[numWorkers - 1];
+        for (int i = 0; i < mThreads.length; i++) {
+            final int workerIndex = i + 1;
+            mThreads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker(workerIndex);
+                }
+            }, "WorkerPool-" + workerIndex);
+            mThreads[i].setDaemon(true);
+            mThreads[i].start();
+        }
+    }
+    
+    public int getNumWorkers() {
+        return mThreads.length + 1;
+    }
+    
+    // Runs the task on every worker and returns when all of them are
+    // done. If the task throws on any worker, the exception is
+    // rethrown here.
+    public void run(final Task task) {
+        synchronized (mRunLock) {
+            synchronized (this) {
+                if (mIsClosed) {
+                    throw new IllegalStateException(
+                            "The pool is closed");
+                }
+                mTask = task;
+                mFailure = null;
+                mNumPendingWorkers = mThreads.length;
+                mGeneration++;
+                notifyAll();
+            }
+            
+            RuntimeException failure = null;
+            try {
+                task.run(0);
+            } catch (final RuntimeException e) {
+                failure = e;
+            }
+            
+            boolean interrupted = false;
+            synchronized (this) {
+                while (mNumPendingWorkers > 0) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                mTask = null;
+                if (failure == null) {
+                    failure = mFailure;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+    
+    // Stops the threads once they finish the current task.
+    public synchronized void close() {
+        mIsClosed = true;
+        notifyAll();
+    }
+    
+    private void runWorker(final int workerIndex) {
+        int generation = 0;
+        while (true) {
+            final Task task;
+            synchronized (this) {
+                while (!mIsClosed && mGeneration == generation) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        // Only close() stops a worker, since run(task)
+                        // waits for every worker.
+                    }
+                }
+                if (mGeneration == generation) {
+                    // The pool is closed and there is no new task.
+                    return;
+                }
+                generation = mGeneration;
+                task = mTask;
+            }
+            
+            RuntimeException failure = null;
+            try {
+                task.run(workerIndex);
+            } catch (final RuntimeException e) {
+                failure = e;
+            }
+            
+            synchronized (this) {
+                if (failure != null && mFailure == null) {
+                    mFailure = failure;
+                }
+                mNumPendingWorkers--;
+                if (mNumPendingWorkers == 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.nummist.secondsight.pipeline;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+import com.nummist.secondsight.filters.ar.ARFilter;
+import com.nummist.secondsight.stats.FrameStats;
+
+// Runs the filters on their own threads so that the camera callback
+// only copies frames in and out:
+//
+// capture (camera thread) -> detection ring -> detection thread
+// capture (camera thread) -> capture ring -> color thread
+//         -> display ring -> display (camera thread)
+//
+// Detection is a side branch: it updates the AR filter's pose but
+// never holds up the preview, however long it takes. Every ring is
+// latest-frame-wins, so a slow stage drops frames instead of
+// queuing them.
+public class FramePipeline {
+    
+    // The number of preallocated frames in each ring.
+    public static final int DEFAULT_NUM_SLOTS = 3;
+    
+    private final FrameRing mDetectionRing;
+    private final FrameRing mCaptureRing;
+    private final FrameRing mDisplayRing;
+    
+    private final FrameStats mStats;
+    
+    private volatile ARFilter mARFilter;
+    private volatile Filter mColorFilter;
+    // The stage of mColorFilter in mStats.
+    private volatile int mColorStage = FrameStats.STAGE_FUSED_COLOR;
+    
+    private Thread mDetectionThread;
+    private Thread mColorThread;
+    
+    // The display slot that the camera thread holds, or -1.
+    private int mDisplaySlot = -1;
+    
+    public FramePipeline(final int width, final int height) {
+        this(width, height, DEFAULT_NUM_SLOTS);
+    }
+    
+    public FramePipeline(final int width, final int height,
+            final int numSlots) {
+        this(width, height, numSlots, new FrameStats());
+    }
+    
+    // The detection and color filter latencies are recorded in
+    // stats.
+    public FramePipeline(final int width, final int height,
+            final int numSlots, final FrameStats stats) {
+        mStats = stats;
+        mDetectionRing = new FrameRing("detection", numSlots,
+                height, width, CvType.CV_8UC4);
+        mCaptureRing = new FrameRing("capture", numSlots,
+                height, width, CvType.CV_8UC4);
+        mDisplayRing = new FrameRing("display", numSlots,
+                height, width, CvType.CV_8UC4);
+    }
+    
+    // The AR filter may be null.
+    public void setARFilter(final ARFilter filter) {
+        mARFilter = filter;
+    }
+    
+    // The color filter may be null.
+    public void setColorFilter(final Filter filter) {
+        setColorFilter(filter, FrameStats.STAGE_FUSED_COLOR);
+    }
+    
+    // The color filter may be null. Its latency is recorded as the
+    // given stage of the stats. A frame that is filtered while the
+    // filter changes may be recorded as the previous stage.
+    public void setColorFilter(final Filter filter, final int stage) {
+        mColorStage = stage;
+        mColorFilter = filter;
+    }
+    
+    public FrameStats getStats() {
+        return mStats;
+    }
+    
+    public FrameRing getDetectionRing() {
+        return mDetectionRing;
+    }
+    
+    public FrameRing getCaptureRing() {
+        return mCaptureRing;
+    }
+    
+    public FrameRing getDisplayRing() {
+        return mDisplayRing;
+    }
+    
+    public synchronized void start() {
+        if (mColorThread != null) {
+            return;
+        }
+        mDetectionThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runDetection();
+            }
+        }, "FramePipeline-detection");
+        mColorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runColor();
+            }
+        }, "FramePipeline-color");
+        mDetectionThread.start();
+        mColorThread.start();
+    }
+    
+    // Stops the threads and releases the frames. The pipeline cannot
+    // be restarted.
+    public synchronized void stop() {
+        mDetectionRing.close();
+        mCaptureRing.close();
+        mDisplayRing.close();
+        if (mColorThread != null) {
+            joinUninterruptibly(mDetectionThread);
+            joinUninterruptibly(mColorThread);
+            mDetectionThread = null;
+            mColorThread = null;
+        }
+        mDetectionRing.release();
+        mCaptureRing.release();
+        mDisplayRing.release();
+    }
+    
+    // Called on the camera thread with each new camera frame. Returns
+    // the newest processed frame if it has not been returned before,
+    // or null otherwise. The returned frame remains valid, and may be
+    // modified, until the next call.
+    public Mat submit(final Mat rgba) {
+        if (mARFilter != null) {
+            final int detectionSlot = mDetectionRing.acquireWrite();
+            rgba.copyTo(mDetectionRing.getFrame(detectionSlot));
+            mDetectionRing.publish(detectionSlot);
+        }
+        
+        final int captureSlot = mCaptureRing.acquireWrite();
+        rgba.copyTo(mCaptureRing.getFrame(captureSlot));
+        mCaptureRing.publish(captureSlot);
+        
+        final int displaySlot = mDisplayRing.pollRead();
+        if (displaySlot < 0) {
+            return null;
+        }
+        if (mDisplaySlot >= 0) {
+            mDisplayRing.releaseRead(mDisplaySlot);
+        }
+        mDisplaySlot = displaySlot;
+        return mDisplayRing.getFrame(displaySlot);
+    }
+    
+    @Override
+    public String toString() {
+        return mDetectionRing + "; " + mCaptureRing + "; " +
+                mDisplayRing;
+    }
+    
+    private void runDetection() {
+        try {
+            while (true) {
+                final int slot = mDetectionRing.acquireRead();
+                if (slot < 0) {
+                    return;
+                }
+                final ARFilter arFilter = mARFilter;
+                if (arFilter != null) {
+                    final long startNanos = System.nanoTime();
+                    arFilter.detect(mDetectionRing.getFrame(slot));
+                    mStats.recordSince(FrameStats.STAGE_DETECTION,
+                            startNanos);
+                }
+                mDetectionRing.releaseRead(slot);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void runColor() {
+        try {
+            while (true) {
+                final int captureSlot = mCaptureRing.acquireRead();
+                if (captureSlot < 0) {
+                    return;
+                }
+                final Mat src = mCaptureRing.getFrame(captureSlot);
+                
+                // Draw the AR filter's overlay first so that the
+                // color filter applies to it, too.
+                final ARFilter arFilter = mARFilter;
+                if (arFilter != null) {
+                    arFilter.draw(src, src);
+                }
+                
+                final int displaySlot = mDisplayRing.acquireWrite();
+                final Mat dst = mDisplayRing.getFrame(displaySlot);
+                final Filter colorFilter = mColorFilter;
+                if (colorFilter != null) {
+                    final int colorStage = mColorStage;
+                    final long startNanos = System.nanoTime();
+                    colorFilter.apply(src, dst);
+                    mStats.recordSince(colorStage, startNanos);
+                } else {
+                    src.copyTo(dst);
+                }
+                mCaptureRing.releaseRead(captureSlot);
+                mDisplayRing.publish(displaySlot);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void joinUninterruptibly(final Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.nummist.secondsight.pipeline;
+
+import org.opencv.core.Mat;
+
+// A fixed-size ring of preallocated frames that connects one writer
+// thread to one reader thread. The reader always gets the newest
+// published frame: any older, unread frames are dropped. The writer
+// never waits; when no slot is free, it reuses the oldest unread
+// frame, which is also counted as dropped.
+public class FrameRing {
+    
+    private static final int STATE_FREE = 0;
+    private static final int STATE_WRITING = 1;
+    private static final int STATE_READY = 2;
+    private static final int STATE_READING = 3;
+    
+    private final String mName;
+    private final Mat[] mFrames;
+    private final int[] mStates;
+    private final long[] mSequenceNumbers;
+    
+    private long mNextSequenceNumber;
+    private int mDepth;
+    private long mPublishedCount;
+    private long mDroppedCount;
+    private boolean mClosed;
+    
+    public FrameRing(final String name, final int numSlots,
+            final int rows, final int cols, final int type) {
+        if (numSlots < 3) {
+            // One slot each for the writer, the reader, and the
+            // newest published frame.
+            throw new IllegalArgumentException(
+                    "A frame ring needs at least 3 slots");
+        }
+        mName = name;
+        mFrames = new Mat[numSlots];
+        mStates = new int[numSlots];
+        mSequenceNumbers = new long[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            mFrames[i] = new Mat(rows, cols, type);
+        }
+    }
+    
+    public String getName() {
+        return mName;
+    }
+    
+    public Mat getFrame(final int slot) {
+        return mFrames[slot];
+    }
+    
+    // Returns a slot that the caller may write to.
+    public synchronized int acquireWrite() {
+        for (int i = 0; i < mStates.length; i++) {
+            if (mStates[i] == STATE_FREE) {
+                mStates[i] = STATE_WRITING;
+                return i;
+            }
+        }
+        
+        // Every slot is busy, so drop the oldest unread frame.
+        final int oldest = findReady(false);
+        if (oldest < 0) {
+            throw new IllegalStateException(
+                    "No slot is free or ready in " + mName);
+        }
+        mStates[oldest] = STATE_WRITING;
+        mDepth--;
+        mDroppedCount++;
+        return oldest;
+    }
+    
+    // Makes a written slot's frame available to the reader.
+    public synchronized void publish(final int slot) {
+        mStates[slot] = STATE_READY;
+        mSequenceNumbers[slot] = mNextSequenceNumber++;
+        mDepth++;
+        mPublishedCount++;
+        notifyAll();
+    }
+    
+    // Returns a written slot without publishing its frame.
+    public synchronized void cancelWrite(final int slot) {
+        mStates[slot] = STATE_FREE;
+    }
+    
+    // Waits for a frame and returns the slot of the newest one, or
+    // returns -1 if the ring is closed.
+    public synchronized int acquireRead() throws InterruptedException {
+        while (mDepth == 0 && !mClosed) {
+            wait();
+        }
+        if (mClosed) {
+            return -1;
+        }
+        return takeNewest();
+    }
+    
+    // Returns the slot of the newest frame, or -1 if there is none.
+    public synchronized int pollRead() {
+        if (mDepth == 0 || mClosed) {
+            return -1;
+        }
+        return takeNewest();
+    }
+    
+    public synchronized void releaseRead(final int slot) {
+        mStates[slot] = STATE_FREE;
+    }
+    
+    // Wakes the reader, which then gets -1 from acquireRead().
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+    
+    // Releases the frames. Call this only after both threads are
+    // done with the ring.
+    public synchronized void release() {
+        for (final Mat frame : mFrames) {
+            frame.release();
+        }
+    }
+    
+    // Returns the number of published frames that are unread.
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+    
+    public synchronized long getPublishedCount() {
+        return mPublishedCount;
+    }
+    
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return mName + ": depth " + mDepth + ", published " +
+                mPublishedCount + ", dropped " + mDroppedCount;
+    }
+    
+    private int takeNewest() {
+        final int newest = findReady(true);
+        for (int i = 0; i < mStates.length; i++) {
+            if (i != newest && mStates[i] == STATE_READY) {
+                mStates[i] = STATE_FREE;
+                mDroppedCount++;
+            }
+        }
+        mStates[newest] = STATE_READING;
+        mDepth = 0;
+        return newest;
+    }
+    
+    private int findReady(final boolean newest) {
+        int found = -1;
+        for (int i = 0; i < mStates.length; i++) {
+            if (mStates[i] == STATE_READY && (found < 0 ||
+                    (mSequenceNumbers[i] > mSequenceNumbers[found])
+                            == newest)) {
+                found = i;
+            }
+        }
+        return found;
+    }
+}
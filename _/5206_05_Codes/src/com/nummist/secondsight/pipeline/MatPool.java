@@ -0,0 +1,163 @@
+package com.nummist.secondsight.pipeline;
+
+import org.opencv.core.Mat;
+
+// Native Mats that are allocated up front, once the frame size is
+// known, and then handed out and returned for each frame, so that
+// processing a frame allocates no native buffers.
+//
+// Acquiring a Mat of a size and type that has no free Mat allocates
+// one, and counts the allocation. Once the pool is locked, such an
+// allocation is unexpected: it is counted separately, and in strict
+// mode it throws, so that debug builds catch it immediately.
+//
+// A pool is not thread-safe. Each thread that processes frames
+// should have its own pool.
+public class MatPool {
+    
+    private final String mName;
+    
+    private Mat[] mMats = new Mat[8];
+    private int[] mRows = new int[8];
+    private int[] mCols = new int[8];
+    private int[] mTypes = new int[8];
+    private boolean[] mInUse = new boolean[8];
+    private int mSize;
+    
+    private int mAllocationCount;
+    private int mUnexpectedAllocationCount;
+    private boolean mLocked;
+    private boolean mStrict;
+    
+    public MatPool(final String name) {
+        mName = name;
+    }
+    
+    // Ensures that the pool has at least count Mats of a size and
+    // type.
+    public void preallocate(final int rows, final int cols,
+            final int type, final int count) {
+        int numExisting = 0;
+        for (int i = 0; i < mSize; i++) {
+            if (mRows[i] == rows && mCols[i] == cols &&
+                    mTypes[i] == type) {
+                numExisting++;
+            }
+        }
+        for (int i = numExisting; i < count; i++) {
+            add(rows, cols, type, false);
+        }
+    }
+    
+    // Returns a free Mat of a size and type, allocating one if there
+    // is none. The Mat's contents are undefined.
+    public Mat acquire(final int rows, final int cols, final int type) {
+        for (int i = 0; i < mSize; i++) {
+            if (!mInUse[i] && mRows[i] == rows && mCols[i] == cols &&
+                    mTypes[i] == type) {
+                mInUse[i] = true;
+                return mMats[i];
+            }
+        }
+        if (mLocked) {
+            mUnexpectedAllocationCount++;
+            if (mStrict) {
+                throw new IllegalStateException(mName +
+                        " allocated a " + rows + "x" + cols +
+                        " Mat of type " + type + " after it was locked");
+            }
+        }
+        return mMats[add(rows, cols, type, true)];
+    }
+    
+    // Returns a Mat that was acquired from this pool.
+    public void release(final Mat mat) {
+        for (int i = 0; i < mSize; i++) {
+            if (mMats[i] == mat) {
+                mInUse[i] = false;
+                return;
+            }
+        }
+        throw new IllegalArgumentException(
+                "The Mat is not from " + mName);
+    }
+    
+    // Returns every acquired Mat, for example at the end of a frame.
+    public void releaseAll() {
+        for (int i = 0; i < mSize; i++) {
+            mInUse[i] = false;
+        }
+    }
+    
+    // Marks the end of the allocations that are expected, for example
+    // after the buffers are preallocated.
+    public void lock() {
+        mLocked = true;
+    }
+    
+    // Allows allocations again, for example before preallocating for
+    // a new frame size.
+    public void unlock() {
+        mLocked = false;
+    }
+    
+    // In strict mode, an allocation after lock() throws.
+    public void setStrict(final boolean strict) {
+        mStrict = strict;
+    }
+    
+    public int getAllocationCount() {
+        return mAllocationCount;
+    }
+    
+    // Returns the number of allocations after lock().
+    public int getUnexpectedAllocationCount() {
+        return mUnexpectedAllocationCount;
+    }
+    
+    // Frees the native memory of all of the Mats, including those in
+    // use.
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mMats[i].release();
+            mMats[i] = null;
+        }
+        mSize = 0;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%s: %d Mats, %d allocations, " +
+                "%d after lock", mName, mSize, mAllocationCount,
+                mUnexpectedAllocationCount);
+    }
+    
+    private int add(final int rows, final int cols, final int type,
+            final boolean inUse) {
+        if (mSize == mMats.length) {
+            final int capacity = 2 * mSize;
+            final Mat[] mats = new Mat[capacity];
+            final int[] rowsArray = new int[capacity];
+            final int[] colsArray = new int[capacity];
+            final int[] types = new int[capacity];
+            final boolean[] inUseArray = new boolean[capacity];
+            System.arraycopy(mMats, 0, mats, 0, mSize);
+            System.arraycopy(mRows, 0, rowsArray, 0, mSize);
+            System.arraycopy(mCols, 0, colsArray, 0, mSize);
+            System.arraycopy(mTypes, 0, types, 0, mSize);
+            System.arraycopy(mInUse, 0, inUseArray, 0, mSize);
+            mMats = mats;
+            mRows = rowsArray;
+            mCols = colsArray;
+            mTypes = types;
+            mInUse = inUseArray;
+        }
+        mMats[mSize] = new Mat(rows, cols, type);
+        mRows[mSize] = rows;
+        mCols[mSize] = cols;
+        mTypes[mSize] = type;
+        mInUse[mSize] = inUse;
+        mAllocationCount++;
+        return mSize++;
+    }
+}
@@ -0,0 +1,18 @@
+package com.nummist.secondsight.sources;
+
+import org.opencv.core.Mat;
+
+// A source of RGBA frames, like the camera's, that can drive the
+// filters without a camera view.
+public interface FrameSource {
+    
+    // Reads the next frame into rgba. Returns false when there are no
+    // more frames.
+    public boolean read(final Mat rgba);
+    
+    // Returns the timestamp of the last frame read, in nanoseconds
+    // since the first frame.
+    public long getTimestampNanos();
+    
+    public void close();
+}
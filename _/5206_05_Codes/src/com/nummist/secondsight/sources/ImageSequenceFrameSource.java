@@ -0,0 +1,79 @@
+package com.nummist.secondsight.sources;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+// Replays the images in a directory, in order of file name, as if they
+// were frames captured at a fixed frame rate.
+public class ImageSequenceFrameSource implements FrameSource {
+    
+    private static final String[] EXTENSIONS = {
+            ".bmp", ".jpeg", ".jpg", ".png"
+    };
+    
+    private final File[] mFiles;
+    private final long mFrameIntervalNanos;
+    
+    private int mNextIndex;
+    private long mTimestampNanos;
+    
+    public ImageSequenceFrameSource(final File directory,
+            final double framesPerSecond) throws IOException {
+        mFiles = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                final String lowerCaseName = name.toLowerCase();
+                for (final String extension : EXTENSIONS) {
+                    if (lowerCaseName.endsWith(extension)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+        if (mFiles == null) {
+            throw new IOException("Failed to list images in " +
+                    directory);
+        }
+        Arrays.sort(mFiles);
+        mFrameIntervalNanos = (long)(1e9 / framesPerSecond);
+    }
+    
+    public int getNumFrames() {
+        return mFiles.length;
+    }
+    
+    @Override
+    public boolean read(final Mat rgba) {
+        while (mNextIndex < mFiles.length) {
+            final int index = mNextIndex++;
+            final Mat bgr = Highgui.imread(mFiles[index].getPath(),
+                    Highgui.CV_LOAD_IMAGE_COLOR);
+            if (bgr.empty()) {
+                // Skip files that fail to decode.
+                continue;
+            }
+            Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+            bgr.release();
+            mTimestampNanos = index * mFrameIntervalNanos;
+            return true;
+        }
+        return false;
+    }
+    
+    @Override
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+    
+    @Override
+    public void close() {
+        mNextIndex = mFiles.length;
+    }
+}
@@ -0,0 +1,50 @@
+package com.nummist.secondsight.sources;
+
+import org.opencv.core.Mat;
+
+// Delivers another source's frames no earlier than their timestamps,
+// measured from the first read, like a live camera would. Without
+// this wrapper, a source delivers frames as fast as it can decode
+// them.
+public class PacedFrameSource implements FrameSource {
+    
+    private final FrameSource mSource;
+    private long mStartNanos = -1L;
+    
+    public PacedFrameSource(final FrameSource source) {
+        mSource = source;
+    }
+    
+    @Override
+    public boolean read(final Mat rgba) {
+        if (!mSource.read(rgba)) {
+            return false;
+        }
+        final long nowNanos = System.nanoTime();
+        if (mStartNanos < 0L) {
+            mStartNanos = nowNanos - mSource.getTimestampNanos();
+        }
+        final long waitNanos =
+                mStartNanos + mSource.getTimestampNanos() - nowNanos;
+        if (waitNanos > 0L) {
+            try {
+                Thread.sleep(waitNanos / 1000000L,
+                        (int)(waitNanos % 1000000L));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public long getTimestampNanos() {
+        return mSource.getTimestampNanos();
+    }
+    
+    @Override
+    public void close() {
+        mSource.close();
+    }
+}
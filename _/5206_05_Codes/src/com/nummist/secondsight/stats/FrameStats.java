@@ -0,0 +1,78 @@
+package com.nummist.secondsight.stats;
+
+// The latency histograms of each stage of frame processing. A stage
+// is over budget when it alone takes longer than a frame interval.
+public class FrameStats {
+    
+    // The frame interval at 30 FPS.
+    public static final long DEFAULT_FRAME_BUDGET_NANOS =
+            1000000000L / 30L;
+    
+    // The stages.
+    public static final int STAGE_DETECTION = 0;
+    public static final int STAGE_CURVE = 1;
+    public static final int STAGE_MIXER = 2;
+    public static final int STAGE_CONVOLUTION = 3;
+    // Two or more of the curve, mixer, and convolution filters, fused
+    // into one pass, so that they cannot be timed separately. When
+    // CameraActivity's color stages are unfused, for diagnostics,
+    // this is their total, and each is also timed under its own
+    // stage.
+    public static final int STAGE_FUSED_COLOR = 4;
+    public static final int STAGE_FLIP = 5;
+    public static final int STAGE_PHOTO = 6;
+    // The whole camera callback, including the stages that run on the
+    // camera thread.
+    public static final int STAGE_CAMERA_FRAME = 7;
+    
+    private static final String[] STAGE_NAMES = {
+            "detection", "curve", "mixer", "convolution",
+            "fused color", "flip", "photo", "camera frame"
+    };
+    
+    private final LatencyHistogram[] mHistograms =
+            new LatencyHistogram[STAGE_NAMES.length];
+    
+    public FrameStats() {
+        this(DEFAULT_FRAME_BUDGET_NANOS);
+    }
+    
+    public FrameStats(final long frameBudgetNanos) {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram(STAGE_NAMES[i],
+                    frameBudgetNanos);
+        }
+    }
+    
+    // Records a latency that was measured from startNanos, a
+    // System.nanoTime() value, until now.
+    public void recordSince(final int stage, final long startNanos) {
+        mHistograms[stage].record(System.nanoTime() - startNanos);
+    }
+    
+    public LatencyHistogram getHistogram(final int stage) {
+        return mHistograms[stage];
+    }
+    
+    public void reset() {
+        for (final LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+    
+    // Returns a line for each stage that has recorded a latency.
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (final LatencyHistogram histogram : mHistograms) {
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(histogram);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package com.nummist.secondsight.stats;
+
+// Counts latencies in fixed-width buckets that are allocated up
+// front, so recording a latency never allocates. Percentiles are
+// reported as the upper bound of the bucket that contains them, so
+// they are accurate to within BUCKET_NANOS.
+//
+// Each histogram may be recorded on one thread and read on another.
+public class LatencyHistogram {
+    
+    // The width of each bucket: 50 microseconds.
+    public static final long BUCKET_NANOS = 50000L;
+    
+    // The number of buckets, which cover 0 to 200 milliseconds.
+    // Longer latencies are counted in the last bucket, but the
+    // maximum is still exact.
+    public static final int NUM_BUCKETS = 4000;
+    
+    private final String mName;
+    private final long mBudgetNanos;
+    private final int[] mBuckets = new int[NUM_BUCKETS];
+    
+    private int mCount;
+    private int mOverBudgetCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+    
+    // Latencies that are longer than budgetNanos are counted as over
+    // budget.
+    public LatencyHistogram(final String name,
+            final long budgetNanos) {
+        mName = name;
+        mBudgetNanos = budgetNanos;
+    }
+    
+    public String getName() {
+        return mName;
+    }
+    
+    public long getBudgetNanos() {
+        return mBudgetNanos;
+    }
+    
+    public synchronized void record(final long nanos) {
+        int bucket = (int)Math.min(nanos / BUCKET_NANOS,
+                NUM_BUCKETS - 1);
+        if (bucket < 0) {
+            bucket = 0;
+        }
+        mBuckets[bucket]++;
+        mCount++;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+        if (nanos > mBudgetNanos) {
+            mOverBudgetCount++;
+        }
+    }
+    
+    public synchronized int getCount() {
+        return mCount;
+    }
+    
+    public synchronized int getOverBudgetCount() {
+        return mOverBudgetCount;
+    }
+    
+    public synchronized long getMeanNanos() {
+        if (mCount == 0) {
+            return 0L;
+        }
+        return mTotalNanos / mCount;
+    }
+    
+    public synchronized long getMaxNanos() {
+        return mMaxNanos;
+    }
+    
+    // Returns the latency that the given fraction (0 to 1) of the
+    // recorded latencies do not exceed.
+    public synchronized long getPercentileNanos(final double fraction) {
+        if (mCount == 0) {
+            return 0L;
+        }
+        final int rank = Math.max(1, (int)Math.ceil(fraction * mCount));
+        int count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            count += mBuckets[i];
+            if (count >= rank) {
+                return Math.min((i + 1) * BUCKET_NANOS, mMaxNanos);
+            }
+        }
+        return mMaxNanos;
+    }
+    
+    public synchronized void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mOverBudgetCount = 0;
+        mTotalNanos = 0L;
+        mMaxNanos = 0L;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d frames, p50 %.2f ms, " +
+                "p95 %.2f ms, p99 %.2f ms, max %.2f ms, " +
+                "%d over %.1f ms budget",
+                mName, mCount, getPercentileNanos(0.5) / 1e6,
+                getPercentileNanos(0.95) / 1e6,
+                getPercentileNanos(0.99) / 1e6, mMaxNanos / 1e6,
+                mOverBudgetCount, mBudgetNanos / 1e6);
+    }
+}
@@ -0,0 +1,33 @@
+package com.nummist.secondsight.stats;
+
+import org.opencv.core.Mat;
+
+import com.nummist.secondsight.filters.Filter;
+
+// Applies a filter and records its latency under a stage of a
+// FrameStats, for example to time each filter of a chain
+// separately.
+public class TimedFilter implements Filter {
+    
+    private final Filter mFilter;
+    private final FrameStats mStats;
+    private final int mStage;
+    
+    public TimedFilter(final Filter filter, final FrameStats stats,
+            final int stage) {
+        mFilter = filter;
+        mStats = stats;
+        mStage = stage;
+    }
+    
+    public Filter getFilter() {
+        return mFilter;
+    }
+    
+    @Override
+    public void apply(final Mat src, final Mat dst) {
+        final long startNanos = System.nanoTime();
+        mFilter.apply(src, dst);
+        mStats.recordSince(mStage, startNanos);
+    }
+}